@@ -22,6 +22,9 @@ public abstract class AbstractFileIoAction {
 		"TIF Image (*.tif, *.tiff)", "tif", "tiff");
 	public static final FileFilter LABELING_FILTER = new FileNameExtensionFilter(
 		"Labeling (*.labeling)", "labeling");
+	public static final FileFilter BINARY_LABELING_FILTER =
+		new FileNameExtensionFilter("Binary Labeling (*.labelingbin)",
+			"labelingbin");
 	public static final FileFilter HDF5_FILTER = new FileNameExtensionFilter(
 		"HDF5 + XML (*.h5, *.xml)", "h5", "xml");
 
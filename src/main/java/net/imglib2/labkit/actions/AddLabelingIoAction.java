@@ -1,8 +1,6 @@
 
 package net.imglib2.labkit.actions;
 
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
 import net.imglib2.labkit.Extensible;
 import net.imglib2.labkit.MenuBar;
 import net.imglib2.labkit.labeling.Label;
@@ -10,7 +8,6 @@ import net.imglib2.labkit.models.Holder;
 import net.imglib2.labkit.labeling.Labeling;
 import net.imglib2.labkit.labeling.LabelingSerializer;
 import net.imglib2.roi.IterableRegion;
-import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.type.logic.BitType;
 
 import java.io.IOException;
@@ -30,6 +27,7 @@ public class AddLabelingIoAction extends AbstractFileIoAction {
 
 	public AddLabelingIoAction(Extensible extensible, Holder<Labeling> labeling) {
 		super(extensible, AbstractFileIoAction.LABELING_FILTER,
+			AbstractFileIoAction.BINARY_LABELING_FILTER,
 			AbstractFileIoAction.TIFF_FILTER);
 		this.labeling = labeling;
 		serializer = new LabelingSerializer(extensible.context());
@@ -56,14 +54,7 @@ public class AddLabelingIoAction extends AbstractFileIoAction {
 		String newLabelName = suggestName(label.name(), labeling.getLabels()
 			.stream().map(Label::name).collect(Collectors.toList()));
 		if (newLabelName == null) return;
-		Label newLabel = labeling.addLabel(newLabelName);
-		Cursor<Void> cursor = region.cursor();
-		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			ra.setPosition(cursor);
-			ra.get().add(newLabel);
-		}
+		labeling.applyMask(labeling.addLabel(newLabelName), region);
 	}
 
 	private String suggestName(String label, List<String> labels) {
@@ -27,6 +27,7 @@ public class LabelingIoAction extends AbstractFileIoAction {
 		LabelingModel labelingModel)
 	{
 		super(extensible, AbstractFileIoAction.LABELING_FILTER,
+			AbstractFileIoAction.BINARY_LABELING_FILTER,
 			AbstractFileIoAction.TIFF_FILTER);
 		this.labelingModel = labelingModel;
 		serializer = new LabelingSerializer(extensible.context());
@@ -12,7 +12,7 @@ import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.roi.IterableRegion;
-import net.imglib2.sparse.SparseIterableRegion;
+import net.imglib2.sparse.RunLengthRegion;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
@@ -92,12 +92,14 @@ public class TransformedSphere {
 	private static IterableRegion<BitType> iterableRegion(
 		TransformedSphere sphere, Interval interval)
 	{
-		SparseIterableRegion result = new SparseIterableRegion(interval);
+		// NB: The pixels are added in flat iteration order, each line of the
+		// sphere ends up as a single run.
+		RunLengthRegion result = new RunLengthRegion(interval);
 		Cursor<BitType> cursor = Views.flatIterable(adoptToDimension(result, 3))
 			.cursor();
 		while (cursor.hasNext()) {
 			cursor.fwd();
-			cursor.get().set(sphere.contains(cursor));
+			if (sphere.contains(cursor)) cursor.get().setOne();
 		}
 		return result;
 	}
@@ -0,0 +1,212 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.Cursor;
+import net.imglib2.roi.labeling.LabelingMapping;
+import net.imglib2.sparse.IntervalIndexer2;
+import net.imglib2.sparse.LongBitmap;
+import net.imglib2.sparse.SparseIterableRegion;
+import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.type.numeric.integer.IntType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the set of pixels of each label of a {@link Labeling}. The index is
+ * updated incrementally, whenever a pixel of the index image changes. This
+ * allows to get the pixels of a label, without scanning the whole labeling.
+ */
+class LabelIndex implements SparseRandomAccessIntType.ChangeListener {
+
+	private final SparseRandomAccessIntType indexImg;
+
+	private final LabelingMapping<Label> mapping;
+
+	private final Map<Label, LongBitmap> bitmaps = new ConcurrentHashMap<>();
+
+	/**
+	 * Caches the labels to add and remove, for each change of a pixels index.
+	 * The key is the pair of old and new index.
+	 */
+	private final Map<Long, Transition> transitions = new ConcurrentHashMap<>();
+
+	private volatile LabelingJournal journal = null;
+
+	LabelIndex(LabelingMapping<Label> mapping,
+		SparseRandomAccessIntType indexImg)
+	{
+		this.indexImg = indexImg;
+		this.mapping = mapping;
+		IntervalIndexer2 indexer = new IntervalIndexer2(indexImg);
+		Cursor<IntType> cursor = indexImg.sparseCursor();
+		while (cursor.hasNext()) {
+			int index = cursor.next().get();
+			long code = indexer.positionToIndex(cursor);
+			for (Label label : mapping.labelsAtIndex(index))
+				bitmap(label).add(code);
+		}
+		indexImg.setChangeListener(this);
+	}
+
+	/**
+	 * @return A copy of the set of pixels, that have the given label.
+	 */
+	SparseIterableRegion region(Label label) {
+		LongBitmap bitmap = bitmaps.get(label);
+		if (bitmap == null) return new SparseIterableRegion(indexImg);
+		synchronized (bitmap) {
+			return new SparseIterableRegion(indexImg, bitmap.copy());
+		}
+	}
+
+	/**
+	 * @return The pixels of the given set, that have the given label.
+	 */
+	LongBitmap intersection(Label label, LongBitmap codes) {
+		LongBitmap bitmap = bitmaps.get(label);
+		if (bitmap == null) return new LongBitmap();
+		synchronized (bitmap) {
+			return LongBitmap.intersection(codes, bitmap);
+		}
+	}
+
+	/**
+	 * Runs an action that renumbers the label sets: It changes the indices of
+	 * pixels, and the label sets of the mapping, but not the labels of any
+	 * pixel. The index is not updated while the action runs.
+	 */
+	void renumber(Runnable action) {
+		indexImg.setChangeListener(null);
+		try {
+			action.run();
+		}
+		finally {
+			transitions.clear();
+			indexImg.setChangeListener(this);
+		}
+	}
+
+	/**
+	 * Sets the journal, that is notified about every change of the pixels of a
+	 * label. Use {@code null} to remove it.
+	 */
+	void setJournal(LabelingJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Removes all pixels from the given label. To be used, after the label was
+	 * removed from all label sets.
+	 */
+	void clear(Label label) {
+		bitmaps.remove(label);
+		LabelingJournal journal = this.journal;
+		if (journal != null) journal.cleared(label);
+	}
+
+	/**
+	 * Moves all pixels of label {@code from} to label {@code into}. To be used,
+	 * after the label sets were changed accordingly.
+	 */
+	void merge(Label from, Label into) {
+		LongBitmap removed = bitmaps.remove(from);
+		if (removed == null) return;
+		// NB: The bitmap of label into is modified in place, and not replaced.
+		// Concurrent calls of valueChanged() may still hold and lock it.
+		LongBitmap bitmap = bitmap(into);
+		synchronized (removed) {
+			LabelingJournal journal = this.journal;
+			if (journal != null) journal.added(into, removed);
+			synchronized (bitmap) {
+				bitmap.addAll(removed);
+			}
+		}
+	}
+
+	/**
+	 * Stops listening to the index image, and releases the index.
+	 */
+	void close() {
+		indexImg.setChangeListener(null);
+		journal = null;
+		bitmaps.clear();
+		transitions.clear();
+	}
+
+	@Override
+	public boolean isPrepared(int oldIndex, int newIndex) {
+		return transitions.containsKey(key(oldIndex, newIndex));
+	}
+
+	@Override
+	public void prepare(int oldIndex, int newIndex) {
+		transition(oldIndex, newIndex);
+	}
+
+	@Override
+	public void valueChanged(long code, int oldIndex, int newIndex) {
+		Transition transition = transition(oldIndex, newIndex);
+		for (Label label : transition.removed) {
+			LongBitmap bitmap = bitmap(label);
+			synchronized (bitmap) {
+				bitmap.remove(code);
+			}
+		}
+		for (Label label : transition.added) {
+			LongBitmap bitmap = bitmap(label);
+			synchronized (bitmap) {
+				bitmap.add(code);
+			}
+		}
+		LabelingJournal journal = this.journal;
+		if (journal != null) journal.changed(code, transition.removed,
+			transition.added);
+	}
+
+	// -- Helper methods --
+
+	private Transition transition(int oldIndex, int newIndex) {
+		long key = key(oldIndex, newIndex);
+		Transition transition = transitions.get(key);
+		if (transition != null) return transition;
+		// NB: Labeling.applyMask interns label sets from multiple threads, while
+		// holding the lock of the mapping. The mapping is only read with the same
+		// lock held, and not within computeIfAbsent, which could deadlock. A
+		// ConcurrentSparseRandomAccessIntType calls prepare() before it locks the
+		// tile, such that valueChanged() finds the transition in the cache.
+		synchronized (mapping) {
+			transition = new Transition(mapping.labelsAtIndex(oldIndex), mapping
+				.labelsAtIndex(newIndex));
+		}
+		Transition previous = transitions.putIfAbsent(key, transition);
+		return previous != null ? previous : transition;
+	}
+
+	private LongBitmap bitmap(Label label) {
+		return bitmaps.computeIfAbsent(label, ignore -> new LongBitmap());
+	}
+
+	private static long key(int oldIndex, int newIndex) {
+		return ((long) oldIndex << 32) | (newIndex & 0xffffffffL);
+	}
+
+	// -- Helper classes --
+
+	private static class Transition {
+
+		private final List<Label> removed = new ArrayList<>();
+
+		private final List<Label> added = new ArrayList<>();
+
+		private Transition(Set<Label> oldLabels, Set<Label> newLabels) {
+			for (Label label : oldLabels)
+				if (!newLabels.contains(label)) removed.add(label);
+			for (Label label : newLabels)
+				if (!oldLabels.contains(label)) added.add(label);
+		}
+	}
+}
@@ -2,6 +2,8 @@
 package net.imglib2.labkit.labeling;
 
 import com.google.gson.annotations.JsonAdapter;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.DefaultLinearAxis;
 import net.imglib2.*;
@@ -9,13 +11,18 @@ import net.imglib2.RandomAccess;
 import net.imglib2.labkit.utils.ColorSupplier;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
-import net.imglib2.loops.LoopBuilder;
+import net.imglib2.img.basictypeaccess.IntAccess;
 import net.imglib2.roi.IterableRegion;
+import net.imglib2.roi.Regions;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelingMapping;
 import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.sparse.ConcurrentSparseRandomAccessIntType;
+import net.imglib2.sparse.SparseHyperSlice;
 import net.imglib2.sparse.SparseIterableRegion;
 import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.sparse.TileLayout;
+import net.imglib2.sparse.TileStorage;
 import net.imglib2.type.BooleanType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.IntegerType;
@@ -26,6 +33,8 @@ import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -41,10 +50,18 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 {
 
 	private final ImgLabeling<Label, ?> imgLabeling;
+	private final LabelIndex labelIndex;
 	private List<Label> labels;
 	private List<CalibratedAxis> axes;
 	private ColorSupplier colorSupplier;
 
+	/**
+	 * The blocks written by the last save to, or load from, a
+	 * {@link LabelingDirectoryFormat} directory. Allows the next save to only
+	 * write the modified blocks.
+	 */
+	private LabelingDirectoryFormat.SavedBlocks savedBlocks;
+
 	public static Labeling createEmpty(List<String> labels, Interval interval) {
 		Labeling result = createEmptyLabels(Collections.emptyList(), interval);
 		labels.forEach(result::addLabel);
@@ -53,12 +70,38 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 
 	public static Labeling createEmptyLabels(List<Label> labels,
 		Interval interval)
+	{
+		return createEmptyLabels(labels, interval, TileStorage.HEAP);
+	}
+
+	/**
+	 * Creates an empty labeling. With {@link TileStorage#OFF_HEAP} the index
+	 * image is stored outside of the Java heap, with
+	 * {@link TileStorage#MAPPED_FILE} in a memory mapped file, for labelings
+	 * larger than the memory. Call {@link #close()} to release it.
+	 */
+	public static Labeling createEmptyLabels(List<Label> labels,
+		Interval interval, TileStorage storage)
 	{
 		final ImgLabeling<Label, IntType> imgLabeling = new ImgLabeling<>(
-			new SparseRandomAccessIntType(interval));
+			emptyIndexImg(interval, storage));
 		return new Labeling(labels, imgLabeling, new ColorSupplier());
 	}
 
+	/**
+	 * Creates an empty index image. With {@link TileStorage#MAPPED_FILE} the
+	 * pixels within a tile are stored in {@link TileLayout#MORTON} order, such
+	 * that brush strokes and flood fills touch fewer pages of the file.
+	 */
+	static ConcurrentSparseRandomAccessIntType emptyIndexImg(Interval interval,
+		TileStorage storage)
+	{
+		TileLayout layout = storage == TileStorage.MAPPED_FILE ? TileLayout.MORTON
+			: TileLayout.ROW_MAJOR;
+		return new ConcurrentSparseRandomAccessIntType(interval, 0, storage,
+			layout);
+	}
+
 	public static Labeling fromImgLabeling(ImgLabeling<String, ?> imgLabeling) {
 		ColorSupplier colors = new ColorSupplier();
 		ImgLabeling<Label, ?> labelsImgLabeling = Labelings.mapLabels(imgLabeling,
@@ -67,6 +110,17 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 			.getLabels()), labelsImgLabeling, colors);
 	}
 
+	/**
+	 * Creates a labeling for the given index image, whose pixel values are
+	 * indices into the list of label sets.
+	 */
+	static Labeling fromIndexImg(List<Label> labels,
+		SparseRandomAccessIntType indexImg, List<Set<Label>> labelSets)
+	{
+		return new Labeling(labels, ImgLabeling.fromImageAndLabelSets(indexImg,
+			labelSets), new ColorSupplier());
+	}
+
 	public static Labeling fromMap(Map<String, IterableRegion<BitType>> regions) {
 		if (regions.isEmpty()) throw new IllegalArgumentException(
 			"Labeling.fromMap: The given map must not be empty.");
@@ -84,7 +138,7 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	{
 		Interval interval = getInterval(regions.values());
 		ImgLabeling<Label, ?> imgLabeling = new ImgLabeling<>(
-			new SparseRandomAccessIntType(interval));
+			new ConcurrentSparseRandomAccessIntType(interval));
 		RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
 		regions.forEach((label, region) -> {
 			Cursor<Void> cursor = region.cursor();
@@ -109,14 +163,28 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 
 	private Labeling(List<Label> labels, ImgLabeling<Label, ?> labeling,
 		ColorSupplier colorSupplier)
+	{
+		this(labels, labeling, colorSupplier, initLabelIndex(labeling));
+	}
+
+	private Labeling(List<Label> labels, ImgLabeling<Label, ?> labeling,
+		ColorSupplier colorSupplier, LabelIndex labelIndex)
 	{
 		super(labeling);
 		this.imgLabeling = labeling;
+		this.labelIndex = labelIndex;
 		this.labels = new ArrayList<>(labels);
 		this.colorSupplier = colorSupplier;
 		this.axes = initAxes(labeling.numDimensions());
 	}
 
+	private static LabelIndex initLabelIndex(ImgLabeling<Label, ?> labeling) {
+		RandomAccessibleInterval<?> indexImg = labeling.getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType) return new LabelIndex(
+			labeling.getMapping(), (SparseRandomAccessIntType) indexImg);
+		return null;
+	}
+
 	private List<CalibratedAxis> initAxes(int i) {
 		return IntStream.range(0, i).mapToObj(ignore -> new DefaultLinearAxis())
 			.collect(Collectors.toList());
@@ -147,23 +215,57 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	}
 
 	public Map<Label, IterableRegion<BitType>> iterableRegions() {
-		Cursor<?> cursor = sparsityCursor();
-		RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
+		if (labelIndex != null) {
+			Map<Label, IterableRegion<BitType>> regions = new HashMap<>();
+			labels.forEach(label -> regions.put(label, labelIndex.region(label)));
+			return Collections.unmodifiableMap(regions);
+		}
+		// NB: Each chunk of the sparsity pattern is converted in parallel, the
+		// resulting regions are joined afterwards.
+		List<Map<Label, SparseIterableRegion>> parts = sparsityCursors(
+			numChunks()).parallelStream().map(this::iterableRegions).collect(
+				Collectors.toList());
 		Map<Label, SparseIterableRegion> regions = new HashMap<>();
 		labels.forEach(label -> regions.put(label, new SparseIterableRegion(
 			imgLabeling)));
+		for (Map<Label, SparseIterableRegion> part : parts)
+			part.forEach((label, region) -> regions.computeIfPresent(label, (
+				key, value) -> value.union(region)));
+		return Collections.unmodifiableMap(regions);
+	}
+
+	/**
+	 * @return The regions of the labels, in the order of {@link #getLabels()}.
+	 *         If the labeling has a pixel index, the region of a label is copied
+	 *         only when the iterator reaches it, such that at most one region is
+	 *         held in memory at a time.
+	 */
+	Iterator<IterableRegion<BitType>> lazyIterableRegions() {
+		if (labelIndex != null) return new ArrayList<>(labels).stream()
+			.<IterableRegion<BitType>> map(labelIndex::region).iterator();
+		Map<Label, IterableRegion<BitType>> regions = iterableRegions();
+		return new ArrayList<>(labels).stream().map(regions::get).iterator();
+	}
+
+	private Map<Label, SparseIterableRegion> iterableRegions(Cursor<?> cursor) {
+		RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
+		Map<Label, SparseIterableRegion> regions = new HashMap<>();
 		while (cursor.hasNext()) {
 			cursor.fwd();
 			ra.setPosition(cursor);
-			ra.get().forEach(label -> regions.get(label).add(cursor));
+			for (Label label : ra.get())
+				regions.computeIfAbsent(label, ignore -> new SparseIterableRegion(
+					imgLabeling)).add(cursor);
 		}
-		return Collections.unmodifiableMap(regions);
+		return regions;
 	}
 
 	public Cursor<?> sparsityCursor() {
 		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
 		if (indexImg instanceof SparseRandomAccessIntType)
 			return ((SparseRandomAccessIntType) indexImg).sparseCursor();
+		else if (indexImg instanceof SparseHyperSlice)
+			return ((SparseHyperSlice) indexImg).sparseCursor();
 		else {
 			RandomAccessible<Void> voids = ConstantUtils.constantRandomAccessible(
 				null, imgLabeling.numDimensions());
@@ -171,6 +273,71 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		}
 	}
 
+	/**
+	 * Same as {@link #sparsityCursor()}, but the cursor only visits pixels
+	 * within the given interval. For a sparse index image, the costs are
+	 * proportional to the number of labeled pixels near the interval, rather
+	 * than in the whole labeling.
+	 */
+	public Cursor<?> sparsityCursor(Interval interval) {
+		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType)
+			return ((SparseRandomAccessIntType) indexImg).sparseCursor(interval);
+		if (indexImg instanceof SparseHyperSlice)
+			return ((SparseHyperSlice) indexImg).sparseCursor(interval);
+		Interval intersection = Intervals.intersect(imgLabeling, interval);
+		if (Intervals.isEmpty(intersection)) return new SparseIterableRegion(
+			imgLabeling).cursor();
+		RandomAccessible<Void> voids = ConstantUtils.constantRandomAccessible(null,
+			imgLabeling.numDimensions());
+		return Views.interval(voids, intersection).cursor();
+	}
+
+	/**
+	 * Same as {@link #sparsityCursor()}, but split into at most
+	 * {@code numChunks} cursors that visit disjoint parts of the labeling. The
+	 * cursors can be used in parallel.
+	 */
+	public List<Cursor<?>> sparsityCursors(int numChunks) {
+		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType)
+			return new ArrayList<>(((SparseRandomAccessIntType) indexImg)
+				.sparseCursors(numChunks));
+		if (indexImg instanceof SparseHyperSlice)
+			return new ArrayList<>(((SparseHyperSlice) indexImg).sparseCursors(
+				numChunks));
+		// NB: Other index images are split into slabs along the last
+		// dimension.
+		RandomAccessible<Void> voids = ConstantUtils.constantRandomAccessible(null,
+			imgLabeling.numDimensions());
+		List<Cursor<?>> cursors = new ArrayList<>();
+		for (Interval slab : slabs(imgLabeling, numChunks))
+			cursors.add(Views.interval(voids, slab).cursor());
+		return cursors;
+	}
+
+	/**
+	 * Calls the action for every pixel visited by {@link #sparsityCursor()},
+	 * using all available processors. The action gets the position and the
+	 * label set of the pixel. It must be thread safe, and must not modify the
+	 * labeling.
+	 */
+	public void parallelForEach(BiConsumer<Localizable, Set<Label>> action) {
+		sparsityCursors(numChunks()).parallelStream().forEach(cursor -> {
+			RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				ra.setPosition(cursor);
+				action.accept(cursor, ra.get());
+			}
+		});
+	}
+
+	private static int numChunks() {
+		// NB: More chunks than processors, for a better load balance.
+		return 4 * Runtime.getRuntime().availableProcessors();
+	}
+
 	private static <T> RandomAccessibleInterval<BitType> slice(
 		RandomAccessibleInterval<? extends Set<T>> labeling, T value)
 	{
@@ -183,6 +350,50 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 			value));
 	}
 
+	/**
+	 * @return A view of the index image, that throws an
+	 *         {@link UnsupportedOperationException} when a value is set.
+	 */
+	private static RandomAccessibleInterval<IntType> readOnly(
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg)
+	{
+		return Converters.convert(indexImg, sampler -> new IntType(
+			new IntAccess()
+			{
+
+				@Override
+				public int getValue(int ignored) {
+					return sampler.get().getInteger();
+				}
+
+				@Override
+				public void setValue(int ignored, int value) {
+					throw new UnsupportedOperationException(
+						"The hyperslice is read only.");
+				}
+			}));
+	}
+
+	private static RandomAccessibleInterval<IntType> remapped(
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg, int[] remap)
+	{
+		return Converters.convert(indexImg, sampler -> new IntType(
+			new IntAccess()
+			{
+
+				@Override
+				public int getValue(int ignored) {
+					return remap[sampler.get().getInteger()];
+				}
+
+				@Override
+				public void setValue(int ignored, int value) {
+					throw new UnsupportedOperationException(
+						"The compacted copy is read only.");
+				}
+			}));
+	}
+
 	public RandomAccessibleInterval<? extends IntegerType<?>> getIndexImg() {
 		return imgLabeling.getIndexImg();
 	}
@@ -203,6 +414,127 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		};
 	}
 
+	/**
+	 * Removes the label sets, that are not used by any pixel, from the mapping
+	 * behind {@link #getLabelSets()}, and renumbers the remaining sets densely.
+	 * The index image is rewritten accordingly, the labels of the pixels don't
+	 * change. Must not run concurrently with modifications of the labeling.
+	 *
+	 * @return Number of label sets removed.
+	 */
+	public int compactLabelSets() {
+		LabelingMappingAccess<Label> access = new LabelingMappingAccess<>(
+			imgLabeling.getMapping());
+		List<Set<Label>> sets = access.labelSets();
+		List<Set<Label>> compacted = new ArrayList<>();
+		int[] remap = compaction(sets, compacted);
+		int removed = sets.size() - compacted.size();
+		if (removed == 0) return 0;
+		Runnable renumber = () -> {
+			remapIndices(remap);
+			access.replaceLabelSets(compacted);
+		};
+		if (labelIndex != null) labelIndex.renumber(renumber);
+		else renumber.run();
+		return removed;
+	}
+
+	/**
+	 * Returns a copy of this labeling, without the label sets that are not used
+	 * by any pixel, like {@link #compactLabelSets()} would. This labeling is not
+	 * modified. If {@link #supportsSnapshot()}, the copy is a compacted
+	 * {@link #snapshot()}, and can be computed in a background thread, while
+	 * this labeling is edited. Otherwise it's a read only view, that remaps the
+	 * indices of this labeling.
+	 * <p>
+	 * Call {@link #close()} on the copy to release it.
+	 */
+	public Labeling compactedCopy() {
+		if (supportsSnapshot()) {
+			Labeling snapshot = snapshot();
+			snapshot.compactLabelSets();
+			return snapshot;
+		}
+		List<Set<Label>> sets;
+		synchronized (imgLabeling.getMapping()) {
+			sets = new LabelingMappingAccess<>(imgLabeling.getMapping())
+				.labelSets();
+		}
+		List<Set<Label>> compacted = new ArrayList<>();
+		int[] remap = compaction(sets, compacted);
+		Labeling copy = new Labeling(labels, ImgLabeling.fromImageAndLabelSets(
+			remapped(getIndexImg(), remap), compacted), colorSupplier, null);
+		copy.setAxes(axes);
+		return copy;
+	}
+
+	/**
+	 * Fills {@code compacted} with the label sets that are used by any pixel.
+	 *
+	 * @return For each index of the given sets, the index in the compacted
+	 *         list, or 0 if the set is not used.
+	 */
+	private int[] compaction(List<Set<Label>> sets,
+		List<Set<Label>> compacted)
+	{
+		long[] counts = countIndexUsage(sets.size());
+		// NB: Index 0 is the empty set, it's always kept.
+		counts[0]++;
+		int[] remap = new int[sets.size()];
+		for (int i = 0; i < sets.size(); i++) {
+			if (counts[i] == 0) continue;
+			remap[i] = compacted.size();
+			compacted.add(sets.get(i));
+		}
+		return remap;
+	}
+
+	private long[] countIndexUsage(int numSets) {
+		List<long[]> parts = sparsityCursors(numChunks()).parallelStream().map(
+			cursor -> {
+				long[] counts = new long[numSets];
+				RandomAccess<? extends IntegerType<?>> ra = getIndexImg()
+					.randomAccess();
+				while (cursor.hasNext()) {
+					cursor.fwd();
+					ra.setPosition(cursor);
+					counts[ra.get().getInteger()]++;
+				}
+				return counts;
+			}).collect(Collectors.toList());
+		long[] counts = new long[numSets];
+		for (long[] part : parts)
+			for (int i = 0; i < numSets; i++)
+				counts[i] += part[i];
+		return counts;
+	}
+
+	/**
+	 * Replaces the index i of every pixel by {@code remap[i]}. The chunks of
+	 * the sparse index image consist of whole tiles, and can therefore be
+	 * rewritten in parallel.
+	 */
+	private void remapIndices(int[] remap) {
+		remapIndices(remap, sparsityCursors(numChunks()));
+	}
+
+	/**
+	 * Replaces the index i of every pixel visited by the cursors by
+	 * {@code remap[i]}. The cursors are processed in parallel.
+	 */
+	private void remapIndices(int[] remap, List<? extends Cursor<?>> cursors) {
+		cursors.parallelStream().forEach(cursor -> {
+			RandomAccess<? extends IntegerType<?>> ra = getIndexImg().randomAccess();
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				ra.setPosition(cursor);
+				IntegerType<?> value = ra.get();
+				int index = value.getInteger();
+				if (remap[index] != index) value.setInteger(remap[index]);
+			}
+		});
+	}
+
 	public List<CalibratedAxis> axes() {
 		return axes;
 	}
@@ -217,10 +549,85 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	public void addLabel(String newName,
 		RandomAccessibleInterval<? extends BooleanType<?>> bitmap)
 	{
-		Label label = addLabel(newName);
-		LoopBuilder.setImages(bitmap, this).forEachPixel((i, o) -> {
-			if (i.get()) o.add(label);
-		});
+		applyMask(addLabel(newName), bitmap);
+	}
+
+	/**
+	 * Adds the label to all pixels, where the mask is true. The mask is
+	 * processed in parallel, block by block. Masks that are
+	 * {@link IterableRegion}s are iterated sparsely, such that pixels outside
+	 * of the region are skipped.
+	 * <p>
+	 * Each change of a pixels label set is computed once per block, and cached
+	 * by the index of the old label set. Must not be called concurrently with
+	 * other modifications of the labeling.
+	 */
+	public void applyMask(Label label,
+		RandomAccessibleInterval<? extends BooleanType<?>> mask)
+	{
+		maskCursors(mask, numChunks()).parallelStream().forEach(
+			cursor -> applyMask(label, cursor));
+	}
+
+	private void applyMask(Label label, Cursor<?> cursor) {
+		RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
+		TIntIntMap cache = new TIntIntHashMap();
+		int noEntryValue = cache.getNoEntryValue();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			ra.setPosition(cursor);
+			LabelingType<Label> value = ra.get();
+			IntegerType<?> index = value.getIndex();
+			int oldIndex = index.getInteger();
+			int newIndex = cache.get(oldIndex);
+			if (newIndex == noEntryValue) {
+				// NB: The mapping is not thread safe, new label sets are interned
+				// by one thread at a time.
+				synchronized (imgLabeling.getMapping()) {
+					value.add(label);
+				}
+				cache.put(oldIndex, index.getInteger());
+			}
+			else if (newIndex != oldIndex) index.setInteger(newIndex);
+		}
+	}
+
+	/**
+	 * @return Cursors over disjoint blocks of the mask, that visit only the
+	 *         pixels where the mask is true.
+	 */
+	private static List<Cursor<?>> maskCursors(
+		RandomAccessibleInterval<? extends BooleanType<?>> mask, int numChunks)
+	{
+		if (mask instanceof SparseIterableRegion)
+			return new ArrayList<>(((SparseIterableRegion) mask).cursors(
+				numChunks));
+		if (mask instanceof IterableRegion)
+			return Collections.singletonList(((IterableRegion<?>) mask).cursor());
+		List<Cursor<?>> cursors = new ArrayList<>();
+		for (Interval slab : slabs(mask, numChunks))
+			cursors.add(Regions.iterable(Views.interval(Cast
+				.<RandomAccessibleInterval<BitType>> unchecked(mask), slab)).cursor());
+		return cursors;
+	}
+
+	/**
+	 * Splits the interval along its last dimension into at most
+	 * {@code numSlabs} slabs.
+	 */
+	private static List<Interval> slabs(Interval interval, int numSlabs) {
+		int d = interval.numDimensions() - 1;
+		long size = interval.dimension(d);
+		long n = Math.min(numSlabs, size);
+		List<Interval> slabs = new ArrayList<>();
+		for (long i = 0; i < n; i++) {
+			long[] min = Intervals.minAsLongArray(interval);
+			long[] max = Intervals.maxAsLongArray(interval);
+			min[d] = interval.min(d) + i * size / n;
+			max[d] = interval.min(d) + (i + 1) * size / n - 1;
+			slabs.add(new FinalInterval(min, max));
+		}
+		return slabs;
 	}
 
 	public void removeLabel(Label label) {
@@ -234,14 +641,205 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	}
 
 	public void clearLabel(Label label) {
-		Cursor<?> cursor = sparsityCursor();
-		RandomAccess<LabelingType<Label>> ra = randomAccess();
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			ra.setPosition(cursor);
-			Set<Label> set = ra.get();
-			set.remove(label);
+		rewriteLabelSets(label, set -> set.contains(label) ? without(set, label)
+			: set);
+		if (labelIndex != null) labelIndex.clear(label);
+	}
+
+	/**
+	 * Replaces label {@code from} by label {@code into} at every pixel, and
+	 * removes label {@code from}.
+	 */
+	public void mergeLabels(Label from, Label into) {
+		if (from == into) return;
+		rewriteLabelSets(from, set -> {
+			if (!set.contains(from)) return set;
+			Set<Label> result = without(set, from);
+			result.add(into);
+			return result;
+		});
+		if (labelIndex != null) labelIndex.merge(from, into);
+		labels.remove(from);
+	}
+
+	private static Set<Label> without(Set<Label> set, Label label) {
+		Set<Label> result = new HashSet<>(set);
+		result.remove(label);
+		return result;
+	}
+
+	/**
+	 * Applies the given function to every label set of the mapping. This
+	 * costs O(number of label sets), the index image is only rewritten for
+	 * pixels, whose new label set is a duplicate of another set.
+	 * <p>
+	 * The function must only change sets that contain the given label, and
+	 * its results must not contain the label. An index, whose new set is a
+	 * duplicate, keeps its old set. These sets contain the label, and are
+	 * therefore distinct from all other sets. They are no longer used by any
+	 * pixel, and get removed by {@link #compactLabelSets()}.
+	 */
+	private void rewriteLabelSets(Label label,
+		UnaryOperator<Set<Label>> function)
+	{
+		LabelingMappingAccess<Label> access = new LabelingMappingAccess<>(
+			imgLabeling.getMapping());
+		List<Set<Label>> sets = access.labelSets();
+		List<Set<Label>> newSets = new ArrayList<>(sets.size());
+		Map<Set<Label>, Integer> canonical = new HashMap<>();
+		for (int i = 0; i < sets.size(); i++) {
+			Set<Label> set = sets.get(i);
+			Set<Label> newSet = function.apply(set);
+			newSets.add(newSet);
+			// NB: Unchanged sets keep their index.
+			if (newSet.equals(set)) canonical.put(set, i);
+		}
+		int[] remap = new int[sets.size()];
+		boolean rewriteIndexImg = false;
+		for (int i = 0; i < sets.size(); i++) {
+			remap[i] = i;
+			Set<Label> newSet = newSets.get(i);
+			if (newSet.equals(sets.get(i))) continue;
+			Integer duplicate = canonical.putIfAbsent(newSet, i);
+			if (duplicate != null) {
+				remap[i] = duplicate;
+				newSets.set(i, sets.get(i));
+				rewriteIndexImg = true;
+			}
+		}
+		boolean finalRewriteIndexImg = rewriteIndexImg;
+		Runnable renumber = () -> {
+			if (finalRewriteIndexImg) remapIndices(remap, labelCursors(label));
+			access.replaceLabelSets(newSets);
+		};
+		if (labelIndex != null) labelIndex.renumber(renumber);
+		else renumber.run();
+	}
+
+	/**
+	 * @return Cursors that visit at least all pixels with the given label.
+	 */
+	private List<? extends Cursor<?>> labelCursors(Label label) {
+		if (labelIndex == null) return sparsityCursors(numChunks());
+		// NB: Pixels of the same tile can be visited by different cursors, this
+		// requires a thread safe index image.
+		boolean threadSafe =
+			getIndexImg() instanceof ConcurrentSparseRandomAccessIntType;
+		return labelIndex.region(label).cursors(threadSafe ? numChunks() : 1);
+	}
+
+	/**
+	 * Releases the memory of the index image, which is important for off-heap
+	 * storage. The labeling must not be used afterwards.
+	 */
+	public void close() {
+		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType)
+			((SparseRandomAccessIntType) indexImg).close();
+		if (labelIndex != null) labelIndex.close();
+		savedBlocks = null;
+	}
+
+	/**
+	 * Returns a view of the hyperslice at the given position of dimension
+	 * {@code d}. The view shares the index image with this labeling, nothing is
+	 * copied except for the label sets. For a sparse index image,
+	 * {@link #sparsityCursor()} of the view only visits the tiles that
+	 * intersect the slice.
+	 * <p>
+	 * The view is read only, for example for the training. Modifying a pixel of
+	 * the view throws an {@link UnsupportedOperationException}. The view is
+	 * invalidated by changes of the label sets of this labeling. Use it
+	 * together with {@link #snapshot()} if this labeling is still being edited.
+	 */
+	public Labeling hyperSlice(int d, long position) {
+		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
+		RandomAccessibleInterval<?> slice =
+			indexImg instanceof SparseRandomAccessIntType
+				? ((SparseRandomAccessIntType) indexImg).hyperSlice(d, position)
+				: readOnly(Views.hyperSlice(getIndexImg(), d, position));
+		List<Set<Label>> labelSets = new LabelingMappingAccess<>(imgLabeling
+			.getMapping()).labelSets();
+		Labeling view = new Labeling(labels, ImgLabeling.fromImageAndLabelSets(
+			Cast.unchecked(slice), labelSets), colorSupplier, null);
+		List<CalibratedAxis> sliceAxes = new ArrayList<>(axes);
+		sliceAxes.remove(d);
+		view.setAxes(sliceAxes);
+		return view;
+	}
+
+	/**
+	 * @return True if {@link #snapshot()} is supported, which requires a
+	 *         {@link SparseRandomAccessIntType} as index image.
+	 */
+	public boolean supportsSnapshot() {
+		return imgLabeling.getIndexImg() instanceof SparseRandomAccessIntType;
+	}
+
+	/**
+	 * Returns a copy of the labeling, that is not affected by later changes.
+	 * The copy shares the tiles of the index image with this labeling, a tile
+	 * is copied only when it's modified for the first time. This allows a
+	 * background thread to read a consistent state of the labeling, while the
+	 * labeling is still being edited.
+	 * <p>
+	 * Must not be called concurrently with modifications of the labeling. The
+	 * snapshot has no pixel index, {@link #iterableRegions()} scans the
+	 * snapshot. Labels are shared, a renamed label is renamed in both.
+	 *
+	 * @throws UnsupportedOperationException if {@link #supportsSnapshot()} is
+	 *           false.
+	 */
+	public Labeling snapshot() {
+		if (!supportsSnapshot()) throw new UnsupportedOperationException(
+			"Labeling.snapshot: The index image doesn't support snapshots.");
+		SparseRandomAccessIntType indexImg = ((SparseRandomAccessIntType) imgLabeling
+			.getIndexImg()).snapshot();
+		// NB: The label sets are copied after the index image, and under the lock
+		// that applyMask and the pixel index use for interning. The copy is
+		// therefore complete, and contains every set the snapshot refers to.
+		List<Set<Label>> labelSets;
+		synchronized (imgLabeling.getMapping()) {
+			labelSets = new LabelingMappingAccess<>(imgLabeling.getMapping())
+				.labelSets();
 		}
+		Labeling snapshot = new Labeling(labels, ImgLabeling.fromImageAndLabelSets(
+			indexImg, labelSets), colorSupplier, null);
+		snapshot.setAxes(axes);
+		return snapshot;
+	}
+
+	/**
+	 * @return True if changes of the labeling can be recorded by a
+	 *         {@link LabelingJournal}, which requires the pixel index.
+	 */
+	public boolean supportsJournal() {
+		return labelIndex != null;
+	}
+
+	/**
+	 * @return The pixel index, or null if {@link #supportsJournal()} is false.
+	 */
+	LabelIndex labelIndex() {
+		return labelIndex;
+	}
+
+	/**
+	 * Sets the journal that records the changes of the pixels, or {@code null}
+	 * to stop recording.
+	 */
+	void setJournal(LabelingJournal journal) {
+		if (labelIndex == null) throw new UnsupportedOperationException(
+			"Labeling.setJournal: The labeling has no pixel index.");
+		labelIndex.setJournal(journal);
+	}
+
+	LabelingDirectoryFormat.SavedBlocks savedBlocks() {
+		return savedBlocks;
+	}
+
+	void setSavedBlocks(LabelingDirectoryFormat.SavedBlocks savedBlocks) {
+		this.savedBlocks = savedBlocks;
 	}
 
 	public void setLabelOrder(Comparator<? super Label> comparator) {
@@ -0,0 +1,397 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imagej.axis.LinearAxis;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.sparse.IntervalIndexer2;
+import net.imglib2.sparse.LongBitmap;
+import net.imglib2.sparse.SparseIterableRegion;
+import net.imglib2.sparse.TileStorage;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary file format for a {@link Labeling}. It's much smaller and faster to
+ * read and write than the JSON format.
+ * <p>
+ * The file starts with a header: an eight byte magic number, the version and
+ * a flags byte. If the flag {@link #DEFLATE} is set, the remaining content is
+ * deflate compressed. The content holds the interval, the pixel sizes, and
+ * for each label its name, its color and its pixels.
+ * <p>
+ * The pixels of a label are split into chunks of increasing row-major indices,
+ * that are encoded and decoded in parallel. Each chunk is a length prefixed
+ * block of runs of consecutive indices. A run is written as two unsigned
+ * variable length integers: the gap to the end of the previous run, and the
+ * length of the run.
+ */
+class LabelingBinaryFormat {
+
+	private static final byte[] MAGIC = { (byte) 0x89, 'L', 'B', 'L', '\r', '\n',
+		0x1a, '\n' };
+
+	private static final int VERSION = 1;
+
+	static final String EXTENSION = "labelingbin";
+
+	static final int DEFLATE = 1;
+
+	private static final long MIN_CHUNK_SIZE = 1 << 16;
+
+	private LabelingBinaryFormat() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * @return True, if the stream starts with the magic number of the binary
+	 *         format. The stream must support mark and reset.
+	 */
+	static boolean isBinary(InputStream in) throws IOException {
+		in.mark(MAGIC.length);
+		byte[] bytes = new byte[MAGIC.length];
+		int n = 0;
+		while (n < bytes.length) {
+			int read = in.read(bytes, n, bytes.length - n);
+			if (read < 0) break;
+			n += read;
+		}
+		in.reset();
+		return n == bytes.length && Arrays.equals(bytes, MAGIC);
+	}
+
+	static void write(Labeling labeling, OutputStream out, int flags)
+		throws IOException
+	{
+		DataOutputStream header = new DataOutputStream(out);
+		header.write(MAGIC);
+		header.writeInt(VERSION);
+		header.writeByte(flags);
+		header.flush();
+		if ((flags & DEFLATE) != 0) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out,
+					deflater, 1 << 16);
+				writeContent(labeling, new DataOutputStream(new BufferedOutputStream(
+					deflaterOut, 1 << 16)));
+				deflaterOut.finish();
+			}
+			finally {
+				// NB: The native memory of a Deflater passed to the stream is not
+				// released by the stream.
+				deflater.end();
+			}
+		}
+		else writeContent(labeling, new DataOutputStream(new BufferedOutputStream(
+			out, 1 << 16)));
+	}
+
+	/**
+	 * Reads a labeling, whose index image stores its tiles in the given
+	 * storage.
+	 */
+	static Labeling read(InputStream in, TileStorage storage)
+		throws IOException
+	{
+		DataInputStream header = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length];
+		header.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) throw new IOException(
+			"Not a binary labeling file");
+		int version = header.readInt();
+		if (version > VERSION) throw new IOException(
+			"Unsupported version of the labeling file format: " + version);
+		int flags = header.readUnsignedByte();
+		InputStream content = (flags & DEFLATE) != 0 ? new InflaterInputStream(
+			in) : in;
+		return readContent(new DataInputStream(new BufferedInputStream(content,
+			1 << 16)), storage);
+	}
+
+	// -- Helper methods --
+
+	private static void writeContent(Labeling labeling, DataOutputStream out)
+		throws IOException
+	{
+		Interval interval = labeling.interval();
+		int n = interval.numDimensions();
+		out.writeInt(n);
+		for (int d = 0; d < n; d++) {
+			out.writeLong(interval.min(d));
+			out.writeLong(interval.max(d));
+		}
+		for (CalibratedAxis axis : labeling.axes())
+			writePixelSize(out, axis);
+		List<Label> labels = new ArrayList<>(labeling.getLabels());
+		Iterator<IterableRegion<BitType>> regions = labeling.lazyIterableRegions();
+		out.writeInt(labels.size());
+		// NB: The chunks are encoded in parallel, but written in order. Only a
+		// limited number of labels is encoded ahead, to bound the memory used.
+		Deque<Pair<Label, List<CompletableFuture<byte[]>>>> pending =
+			new ArrayDeque<>();
+		for (Label label : labels) {
+			pending.add(new ValuePair<>(label, encodeRegion(interval, regions
+				.next())));
+			if (pending.size() > maxPending()) writeLabel(out, pending.remove());
+		}
+		while (!pending.isEmpty())
+			writeLabel(out, pending.remove());
+		out.flush();
+	}
+
+	private static void writeLabel(DataOutput out,
+		Pair<Label, List<CompletableFuture<byte[]>>> encoded) throws IOException
+	{
+		Label label = encoded.getA();
+		List<CompletableFuture<byte[]>> chunks = encoded.getB();
+		out.writeUTF(label.name());
+		out.writeInt(label.color().get());
+		writeVarLong(out, chunks.size());
+		for (CompletableFuture<byte[]> chunk : chunks) {
+			byte[] block = join(chunk);
+			writeVarLong(out, block.length);
+			out.write(block);
+		}
+	}
+
+	private static void writePixelSize(DataOutput out, CalibratedAxis axis)
+		throws IOException
+	{
+		boolean linear = axis instanceof LinearAxis;
+		out.writeDouble(linear ? ((LinearAxis) axis).scale() : 1);
+		String unit = linear ? axis.unit() : "unknown";
+		out.writeBoolean(unit != null);
+		if (unit != null) out.writeUTF(unit);
+	}
+
+	private static Labeling readContent(DataInputStream in,
+		TileStorage storage) throws IOException
+	{
+		int n = in.readInt();
+		long[] min = new long[n];
+		long[] max = new long[n];
+		for (int d = 0; d < n; d++) {
+			min[d] = in.readLong();
+			max[d] = in.readLong();
+		}
+		Interval interval = new FinalInterval(min, max);
+		List<CalibratedAxis> axes = new ArrayList<>();
+		for (int d = 0; d < n; d++)
+			axes.add(readPixelSize(in));
+		Labeling labeling = Labeling.createEmptyLabels(Collections.emptyList(),
+			interval, storage);
+		// NB: The chunks are decoded in parallel, and applied to the labeling in
+		// the order they were read.
+		Deque<Pair<Label, CompletableFuture<LongBitmap>>> pending =
+			new ArrayDeque<>();
+		long numElements = Intervals.numElements(interval);
+		int numLabels = in.readInt();
+		for (int i = 0; i < numLabels; i++) {
+			Label label = labeling.addLabel(in.readUTF());
+			label.setColor(new ARGBType(in.readInt()));
+			long numChunks = readVarLong(in);
+			for (long j = 0; j < numChunks; j++) {
+				byte[] block = readBlock(in);
+				pending.add(new ValuePair<>(label, CompletableFuture.supplyAsync(
+					() -> decodeRuns(block, numElements))));
+				if (pending.size() > maxPending()) applyChunk(labeling, interval,
+					pending.remove());
+			}
+		}
+		while (!pending.isEmpty())
+			applyChunk(labeling, interval, pending.remove());
+		labeling.setAxes(axes);
+		return labeling;
+	}
+
+	private static byte[] readBlock(DataInput in) throws IOException {
+		long length = readVarLong(in);
+		if (length > Integer.MAX_VALUE) throw new IOException(
+			"Corrupt labeling file, pixel block is too large");
+		byte[] block = new byte[(int) length];
+		in.readFully(block);
+		return block;
+	}
+
+	private static void applyChunk(Labeling labeling, Interval interval,
+		Pair<Label, CompletableFuture<LongBitmap>> chunk) throws IOException
+	{
+		SparseIterableRegion region = new SparseIterableRegion(interval, join(chunk
+			.getB()));
+		labeling.applyMask(chunk.getA(), region);
+	}
+
+	private static CalibratedAxis readPixelSize(DataInput in)
+		throws IOException
+	{
+		double scale = in.readDouble();
+		String unit = in.readBoolean() ? in.readUTF() : null;
+		return new DefaultLinearAxis(Axes.unknown(), unit, scale);
+	}
+
+	/**
+	 * Splits the row-major indices of the pixels in the region into chunks, and
+	 * starts to encode each chunk asynchronously.
+	 */
+	private static List<CompletableFuture<byte[]>> encodeRegion(
+		Interval interval, IterableRegion<BitType> region)
+	{
+		List<CompletableFuture<byte[]>> chunks = new ArrayList<>();
+		for (LongBitmap.SortedIterator indices : sortedIndices(interval, region))
+			chunks.add(CompletableFuture.supplyAsync(() -> encodeRuns(indices)));
+		return chunks;
+	}
+
+	private static List<LongBitmap.SortedIterator> sortedIndices(
+		Interval interval, IterableRegion<BitType> region)
+	{
+		int numChunks = (int) Math.max(1, Math.min(4 * Runtime.getRuntime()
+			.availableProcessors(), region.size() / MIN_CHUNK_SIZE));
+		if (region instanceof SparseIterableRegion) {
+			SparseIterableRegion sparse = (SparseIterableRegion) region;
+			if (Intervals.equals(sparse, interval)) return sparse.indices(numChunks);
+		}
+		// NB: An arbitrary region might be iterated in any order, the bitmap sorts
+		// the indices.
+		IntervalIndexer2 indexer = new IntervalIndexer2(interval);
+		LongBitmap bitmap = new LongBitmap();
+		Cursor<Void> cursor = region.cursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			bitmap.add(indexer.positionToIndex(cursor));
+		}
+		return bitmap.split(numChunks);
+	}
+
+	/**
+	 * Encodes the increasing indices as runs.
+	 */
+	static byte[] encodeRuns(LongBitmap.SortedIterator indices) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			long start = -1;
+			long end = 0;
+			long previousEnd = 0;
+			while (indices.hasNext()) {
+				long index = indices.next();
+				if (index == end && start >= 0) {
+					end++;
+					continue;
+				}
+				if (start >= 0) {
+					writeVarLong(out, start - previousEnd);
+					writeVarLong(out, end - start);
+					previousEnd = end;
+				}
+				start = index;
+				end = index + 1;
+			}
+			if (start >= 0) {
+				writeVarLong(out, start - previousEnd);
+				writeVarLong(out, end - start);
+			}
+			out.flush();
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Decodes the runs written by {@link #encodeRuns}.
+	 *
+	 * @param numElements The indices must be less than this.
+	 */
+	static LongBitmap decodeRuns(byte[] block, long numElements) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				block));
+			LongBitmap bitmap = new LongBitmap();
+			long previousEnd = 0;
+			while (in.available() > 0) {
+				long start = previousEnd + readVarLong(in);
+				long end = start + readVarLong(in);
+				// NB: The comparisons also catch overflows.
+				if (start < previousEnd || end < start || end > numElements)
+					throw new IOException("Corrupt labeling file, pixel index is " +
+						"out of bounds");
+				bitmap.addRange(start, end);
+				previousEnd = end;
+			}
+			return bitmap;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static <T> T join(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.join();
+		}
+		catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException)
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			throw e;
+		}
+	}
+
+	private static int maxPending() {
+		return 4 * Runtime.getRuntime().availableProcessors();
+	}
+
+	static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Corrupt labeling file, variable length integer " +
+			"is too long");
+	}
+}
@@ -0,0 +1,491 @@
+
+package net.imglib2.labkit.labeling;
+
+import com.google.gson.Gson;
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imagej.axis.LinearAxis;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.sparse.ConcurrentSparseRandomAccessIntType;
+import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.sparse.TileStorage;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores a {@link Labeling} as a directory, that is split into blocks:
+ *
+ * <pre>
+ * example.labelingdir/
+ *     header.json
+ *     blocks/0_0_0
+ *     blocks/1_0_0
+ *     ...
+ * </pre>
+ *
+ * The header holds the interval, the block size, the pixel sizes, the names
+ * and colors of the labels, and the label sets as lists of label indices. A
+ * block file holds the values of the index image within the block, as deflate
+ * compressed big endian integers in flat iteration order. The values are
+ * indices into the label sets. The name of a block file is its position in
+ * the grid of blocks. Blocks without labeled pixels have no file.
+ * <p>
+ * For a sparse index image, the blocks are the tiles of the image. The
+ * labeling remembers the versions of the tiles, when it was last saved to or
+ * loaded from a directory, see
+ * {@link SparseRandomAccessIntType#tileVersions()}. Saving to the same
+ * directory again, only rewrites the blocks that were modified since, and the
+ * header. The costs of saving are therefore proportional to the size of the
+ * changes.
+ * <p>
+ * Each file is replaced atomically, and the header is written last. If a save
+ * is interrupted, blocks might be newer than the header. This is detected
+ * when reading, if a block refers to a label set that's missing in the
+ * header.
+ */
+class LabelingDirectoryFormat {
+
+	static final String EXTENSION = "labelingdir";
+
+	private static final int VERSION = 1;
+
+	private static final String HEADER = "header.json";
+
+	private static final String BLOCKS = "blocks";
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private LabelingDirectoryFormat() {
+		// prevent from instantiation
+	}
+
+	static void write(Labeling labeling, Path directory) throws IOException {
+		Path blocksDirectory = directory.resolve(BLOCKS);
+		Files.createDirectories(blocksDirectory);
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = labeling
+			.getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType) writeSparse(labeling,
+			(SparseRandomAccessIntType) indexImg, directory);
+		else writeDense(labeling, indexImg, directory);
+	}
+
+	/**
+	 * Reads a labeling, whose index image stores its tiles in the given
+	 * storage.
+	 */
+	static Labeling read(Path directory, TileStorage storage)
+		throws IOException
+	{
+		Header header = readHeader(directory.resolve(HEADER));
+		Interval interval = header.interval();
+		List<Label> labels = new ArrayList<>();
+		for (LabelEntry entry : header.labels)
+			labels.add(new Label(entry.name, new ARGBType(Color.decode(entry.color)
+				.getRGB())));
+		// NB: Label sets, that only differed in labels that were removed, are
+		// duplicates now. They are merged, and the pixel values remapped.
+		List<Set<Label>> labelSets = new ArrayList<>();
+		Map<Set<Label>, Integer> indices = new HashMap<>();
+		int[] remap = new int[header.labelSets.length];
+		for (int i = 0; i < remap.length; i++) {
+			Set<Label> set = new HashSet<>();
+			for (int label : header.labelSets[i])
+				set.add(labels.get(label));
+			Integer index = indices.putIfAbsent(set, labelSets.size());
+			remap[i] = index == null ? labelSets.size() : index;
+			if (index == null) labelSets.add(set);
+		}
+		if (labelSets.isEmpty() || !labelSets.get(0).isEmpty())
+			throw new IOException("The first label set must be empty: " + directory);
+		ConcurrentSparseRandomAccessIntType indexImg = Labeling.emptyIndexImg(
+			interval, storage);
+		run(blockFiles(directory.resolve(BLOCKS)).parallelStream(),
+			file -> readBlock(file, header, remap, indexImg));
+		Labeling labeling = Labeling.fromIndexImg(labels, indexImg, labelSets);
+		labeling.setAxes(Stream.of(header.pixelSizes).map(
+			LabelingDirectoryFormat::toAxis).collect(Collectors.toList()));
+		boolean unchanged = labelSets.size() == remap.length && Arrays.equals(
+			header.blockSize, indexImg.tileDimensions());
+		if (unchanged) labeling.setSavedBlocks(new SavedBlocks(directory, indexImg
+			.tileVersions()));
+		return labeling;
+	}
+
+	// -- Helper methods --
+
+	private static void writeSparse(Labeling labeling,
+		SparseRandomAccessIntType indexImg, Path directory) throws IOException
+	{
+		// NB: The header is created together with the snapshot, the blocks are
+		// written from the snapshot. The snapshot is closed afterwards, only the
+		// versions of its tiles are kept.
+		SparseRandomAccessIntType snapshot = indexImg.snapshot();
+		try {
+			Header header = new Header(labeling, snapshot.tileDimensions());
+			SavedBlocks saved = labeling.savedBlocks();
+			boolean incremental = saved != null && saved.isDirectory(directory) &&
+				saved.versions.length == snapshot.numTiles() && Files.exists(directory
+					.resolve(HEADER));
+			int[] tileIndices;
+			if (incremental) tileIndices = snapshot.modifiedTiles(saved.versions);
+			else {
+				deleteBlocks(directory.resolve(BLOCKS));
+				tileIndices = snapshot.nonEmptyTiles();
+			}
+			List<Interval> blocks = Arrays.stream(tileIndices).mapToObj(
+				snapshot::tileInterval).collect(Collectors.toList());
+			writeBlocks(directory, header, blocks, block -> sparseValues(snapshot,
+				block));
+			writeHeader(directory.resolve(HEADER), header);
+			labeling.setSavedBlocks(new SavedBlocks(directory, snapshot
+				.tileVersions()));
+		}
+		finally {
+			snapshot.close();
+		}
+	}
+
+	private static void writeDense(Labeling labeling,
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg,
+		Path directory) throws IOException
+	{
+		int n = indexImg.numDimensions();
+		int[] blockSize = new int[n];
+		for (int d = 0; d < n; d++)
+			blockSize[d] = d < 3 ? (n == 2 ? 256 : 64) : 1;
+		Header header = new Header(labeling, blockSize);
+		deleteBlocks(directory.resolve(BLOCKS));
+		writeBlocks(directory, header, blocks(header), block -> denseValues(
+			indexImg, block));
+		writeHeader(directory.resolve(HEADER), header);
+	}
+
+	private static List<Interval> blocks(Header header) {
+		int n = header.min.length;
+		long[] gridDimensions = new long[n];
+		for (int d = 0; d < n; d++)
+			gridDimensions[d] = (header.max[d] - header.min[d]) / header.blockSize[
+				d] + 1;
+		long numBlocks = Intervals.numElements(gridDimensions);
+		List<Interval> blocks = new ArrayList<>();
+		long[] gridPosition = new long[n];
+		for (long i = 0; i < numBlocks; i++) {
+			IntervalIndexer.indexToPosition(i, gridDimensions, gridPosition);
+			blocks.add(header.block(gridPosition));
+		}
+		return blocks;
+	}
+
+	private static void writeBlocks(Path directory, Header header,
+		List<Interval> blocks, Function<Interval, int[]> values)
+		throws IOException
+	{
+		Path blocksDirectory = directory.resolve(BLOCKS);
+		run(blocks.parallelStream(), block -> {
+			Path file = blocksDirectory.resolve(header.blockName(block));
+			int[] blockValues = values.apply(block);
+			if (Arrays.stream(blockValues).allMatch(value -> value == 0)) Files
+				.deleteIfExists(file);
+			else writeBlock(file, blockValues);
+		});
+	}
+
+	private static void writeBlock(Path file, int[] values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * Integer.BYTES);
+		buffer.asIntBuffer().put(values);
+		Path tmpFile = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (OutputStream out = new DeflaterOutputStream(Files.newOutputStream(
+			tmpFile), deflater, 1 << 16))
+		{
+			out.write(buffer.array());
+		}
+		finally {
+			deflater.end();
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void readBlock(Path file, Header header, int[] remap,
+		SparseRandomAccessIntType indexImg) throws IOException
+	{
+		Interval block = header.block(header.gridPosition(file));
+		if (!Intervals.contains(header.interval(), block)) throw new IOException(
+			"Block is outside of the labeling: " + file);
+		long[] dimensions = Intervals.dimensionsAsLongArray(block);
+		long[] offset = Intervals.minAsLongArray(block);
+		byte[] bytes = new byte[(int) Intervals.numElements(block) *
+			Integer.BYTES];
+		try (InputStream in = new InflaterInputStream(new BufferedInputStream(Files
+			.newInputStream(file), 1 << 16)))
+		{
+			new DataInputStream(in).readFully(bytes);
+		}
+		int[] values = new int[bytes.length / Integer.BYTES];
+		ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+		RandomAccess<IntType> ra = indexImg.randomAccess();
+		long[] position = new long[block.numDimensions()];
+		for (int i = 0; i < values.length; i++) {
+			int value = values[i];
+			if (value == 0) continue;
+			if (value < 0 || value >= remap.length) throw new IOException(
+				"Block refers to a label set, that's missing in the header, the " +
+					"labeling wasn't saved completely: " + file);
+			IntervalIndexer.indexToPositionWithOffset(i, dimensions, offset,
+				position);
+			ra.setPosition(position);
+			ra.get().set(remap[value]);
+		}
+	}
+
+	private static int[] sparseValues(SparseRandomAccessIntType indexImg,
+		Interval block)
+	{
+		int[] values = new int[(int) Intervals.numElements(block)];
+		Cursor<IntType> cursor = indexImg.sparseCursor(block);
+		while (cursor.hasNext()) {
+			int value = cursor.next().get();
+			int index = 0;
+			int step = 1;
+			for (int d = 0; d < block.numDimensions(); d++) {
+				index += (int) (cursor.getLongPosition(d) - block.min(d)) * step;
+				step *= (int) block.dimension(d);
+			}
+			values[index] = value;
+		}
+		return values;
+	}
+
+	private static int[] denseValues(
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg,
+		Interval block)
+	{
+		int[] values = new int[(int) Intervals.numElements(block)];
+		Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(Views
+			.interval(indexImg, block)).cursor();
+		for (int i = 0; i < values.length; i++)
+			values[i] = cursor.next().getInteger();
+		return values;
+	}
+
+	private static List<Path> blockFiles(Path blocksDirectory)
+		throws IOException
+	{
+		if (!Files.isDirectory(blocksDirectory)) return new ArrayList<>();
+		try (Stream<Path> files = Files.list(blocksDirectory)) {
+			return files.filter(file -> !file.getFileName().toString().endsWith(
+				TMP_SUFFIX)).collect(Collectors.toList());
+		}
+	}
+
+	private static void deleteBlocks(Path blocksDirectory) throws IOException {
+		for (Path file : blockFiles(blocksDirectory))
+			Files.delete(file);
+	}
+
+	private static Header readHeader(Path file) throws IOException {
+		Header header;
+		try (Reader reader = Files.newBufferedReader(file)) {
+			header = new Gson().fromJson(reader, Header.class);
+		}
+		if (header == null) throw new IOException(
+			"Error, labeling header is empty: " + file);
+		if (header.version > VERSION) throw new IOException(
+			"Unsupported version of the labeling directory format: " +
+				header.version);
+		return header;
+	}
+
+	private static void writeHeader(Path file, Header header)
+		throws IOException
+	{
+		Path tmpFile = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+		try (Writer writer = Files.newBufferedWriter(tmpFile)) {
+			new Gson().toJson(header, writer);
+		}
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static CalibratedAxis toAxis(PixelSize pixelSize) {
+		return new DefaultLinearAxis(Axes.unknown(), pixelSize.unit,
+			pixelSize.size);
+	}
+
+	/**
+	 * Runs the action for every element of the stream, and rethrows the first
+	 * {@link IOException}.
+	 */
+	private static <T> void run(Stream<T> stream, IOConsumer<T> action)
+		throws IOException
+	{
+		try {
+			stream.forEach(element -> {
+				try {
+					action.accept(element);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	// -- Helper classes --
+
+	private interface IOConsumer<T> {
+
+		void accept(T value) throws IOException;
+	}
+
+	/**
+	 * The directory a labeling was saved to or loaded from, and the versions of
+	 * the tiles of its index image at that time.
+	 */
+	static class SavedBlocks {
+
+		private final Path directory;
+
+		private final long[] versions;
+
+		private SavedBlocks(Path directory, long[] versions) {
+			this.directory = directory.toAbsolutePath().normalize();
+			this.versions = versions;
+		}
+
+		private boolean isDirectory(Path directory) {
+			return this.directory.equals(directory.toAbsolutePath().normalize());
+		}
+	}
+
+	private static class Header {
+
+		private int version;
+		private long[] min;
+		private long[] max;
+		private int[] blockSize;
+		private PixelSize[] pixelSizes;
+		private LabelEntry[] labels;
+		private int[][] labelSets;
+
+		private Header(Labeling labeling, int[] blockSize) {
+			this.version = VERSION;
+			this.min = Intervals.minAsLongArray(labeling);
+			this.max = Intervals.maxAsLongArray(labeling);
+			this.blockSize = blockSize;
+			this.pixelSizes = labeling.axes().stream().map(PixelSize::new).toArray(
+				PixelSize[]::new);
+			List<Label> labelList = labeling.getLabels();
+			this.labels = labelList.stream().map(LabelEntry::new).toArray(
+				LabelEntry[]::new);
+			Map<Label, Integer> indices = new HashMap<>();
+			for (int i = 0; i < labelList.size(); i++)
+				indices.put(labelList.get(i), i);
+			// NB: Label sets might still contain labels, that were removed. These
+			// sets are no longer used by any pixel.
+			this.labelSets = labeling.getLabelSets().stream().map(set -> set
+				.stream().map(indices::get).filter(index -> index != null).mapToInt(
+					index -> index).sorted().toArray()).toArray(int[][]::new);
+		}
+
+		private String blockName(Interval block) {
+			StringBuilder name = new StringBuilder();
+			for (int d = 0; d < min.length; d++) {
+				if (d > 0) name.append('_');
+				name.append((block.min(d) - min[d]) / blockSize[d]);
+			}
+			return name.toString();
+		}
+
+		private long[] gridPosition(Path file) throws IOException {
+			String[] parts = file.getFileName().toString().split("_");
+			if (parts.length != min.length) throw new IOException(
+				"Invalid name of block file: " + file);
+			long[] gridPosition = new long[parts.length];
+			try {
+				for (int d = 0; d < parts.length; d++)
+					gridPosition[d] = Long.parseLong(parts[d]);
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Invalid name of block file: " + file, e);
+			}
+			return gridPosition;
+		}
+
+		private Interval interval() {
+			return new FinalInterval(min, max);
+		}
+
+		private Interval block(long[] gridPosition) {
+			long[] blockMin = new long[min.length];
+			long[] blockMax = new long[min.length];
+			for (int d = 0; d < min.length; d++) {
+				blockMin[d] = min[d] + gridPosition[d] * blockSize[d];
+				blockMax[d] = Math.min(blockMin[d] + blockSize[d] - 1, max[d]);
+			}
+			return new FinalInterval(blockMin, blockMax);
+		}
+	}
+
+	private static class PixelSize {
+
+		private double size;
+		private String unit;
+
+		private PixelSize(CalibratedAxis axis) {
+			LinearAxis linear = axis instanceof LinearAxis ? (LinearAxis) axis
+				: null;
+			this.size = linear == null ? 1 : linear.scale();
+			this.unit = linear == null ? "unknown" : linear.unit();
+		}
+	}
+
+	private static class LabelEntry {
+
+		private String name;
+		private String color;
+
+		private LabelEntry(Label label) {
+			this.name = label.name();
+			this.color = String.format("#%06X", label.color().get() & 0xffffff);
+		}
+	}
+}
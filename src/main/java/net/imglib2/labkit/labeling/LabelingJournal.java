@@ -0,0 +1,491 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.sparse.IntervalIndexer2;
+import net.imglib2.sparse.LongBitmap;
+import net.imglib2.sparse.SparseIterableRegion;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.util.Intervals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Records the changes of a {@link Labeling}, and appends them to a journal
+ * file next to the labeling file. Saving a few brush strokes then costs
+ * O(number of changed pixels), instead of rewriting the whole labeling file.
+ * <p>
+ * {@link #attach(Labeling)} starts to record changes in memory,
+ * {@link #flush(String, String)} appends them as one record to the journal.
+ * A record holds the list of labels, with their names and colors, and for
+ * each label the pixels added and removed, encoded as runs like in the binary
+ * labeling format. {@link #replay(Labeling, String, String)} applies the
+ * records to the labeling read from the labeling file, this is done by
+ * {@link LabelingSerializer#open(String)}.
+ * <p>
+ * Each thread records the pixels it changes separately, such that parallel
+ * modifications of the labeling don't contend for a lock. The pixels added
+ * and removed are only determined when flushing: a changed pixel is added, if
+ * it has the label at that time, and removed otherwise. This doesn't depend
+ * on the order, in which the threads changed the pixels.
+ * <p>
+ * The journal header stores the length and a CRC-32 checksum of the content
+ * of the labeling file it belongs to. A journal whose labeling file was
+ * rewritten since, is ignored. Unlike the modification time, the checksum
+ * also detects a rewrite of the same size within the time resolution of the
+ * file system. This allows to fold the journal into a new labeling file:
+ * write the labeling file, then delete the journal. Each record is protected
+ * by a checksum, an incomplete record at the end of the journal, for example
+ * after a crash, is ignored.
+ */
+public class LabelingJournal {
+
+	private static final byte[] MAGIC = { (byte) 0x89, 'L', 'B', 'J', '\r', '\n',
+		0x1a, '\n' };
+
+	private static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 8;
+
+	private final Labeling labeling;
+
+	private final LabelIndex index;
+
+	private final Set<Changes> allChanges = ConcurrentHashMap.newKeySet();
+
+	private final ThreadLocal<Changes> changes = ThreadLocal.withInitial(
+		this::newChanges);
+
+	private final Set<Label> clearedLabels = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The names of the labels, as they are stored in the labeling file and
+	 * journal.
+	 */
+	private final Map<Label, String> savedNames = new IdentityHashMap<>();
+
+	private LabelingJournal(Labeling labeling) {
+		this.labeling = labeling;
+		this.index = labeling.labelIndex();
+		for (Label label : labeling.getLabels())
+			savedNames.put(label, label.name());
+	}
+
+	/**
+	 * Starts to record the changes of the labeling. The labeling must be in the
+	 * state, that is stored in the labeling file plus journal.
+	 *
+	 * @throws UnsupportedOperationException if
+	 *           {@link Labeling#supportsJournal()} is false.
+	 */
+	public static LabelingJournal attach(Labeling labeling) {
+		LabelingJournal journal = new LabelingJournal(labeling);
+		labeling.setJournal(journal);
+		return journal;
+	}
+
+	/**
+	 * Stops recording the changes. Changes that were not flushed are lost.
+	 */
+	public void detach() {
+		labeling.setJournal(null);
+	}
+
+	public Labeling labeling() {
+		return labeling;
+	}
+
+	public static String journalFile(String labelingFile) {
+		return labelingFile + ".journal";
+	}
+
+	/**
+	 * Appends the recorded changes as one record to the journal file, and
+	 * forces it to the disk. A missing journal, or a journal that belongs to an
+	 * older version of the labeling file is replaced. Must not be called
+	 * concurrently with modifications of the labeling.
+	 */
+	public synchronized void flush(String journalFile, String labelingFile)
+		throws IOException
+	{
+		Map<Label, LongBitmap> changed = new HashMap<>();
+		for (Changes threadChanges : allChanges)
+			threadChanges.drainTo(changed);
+		Set<Label> cleared = new HashSet<>(clearedLabels);
+		clearedLabels.removeAll(cleared);
+		byte[] record = encodeRecord(changed, cleared);
+		try (FileChannel channel = openForAppend(journalFile, labelingFile)) {
+			writeFully(channel, frame(record));
+			channel.force(false);
+		}
+		savedNames.clear();
+		for (Label label : labeling.getLabels())
+			savedNames.put(label, label.name());
+	}
+
+	/**
+	 * Applies the records of the journal to the labeling, which must have been
+	 * read from the given labeling file.
+	 *
+	 * @return False if there is no journal, or if it belongs to another version
+	 *         of the labeling file.
+	 */
+	public static boolean replay(Labeling labeling, String journalFile,
+		String labelingFile) throws IOException
+	{
+		List<byte[]> records = readRecords(journalFile, labelingFile);
+		if (records == null) return false;
+		for (byte[] record : records)
+			applyRecord(labeling, record);
+		return true;
+	}
+
+	/**
+	 * Appends the records of one journal to another journal. Both must belong
+	 * to the given labeling file, otherwise nothing is appended.
+	 */
+	public static void append(String fromJournalFile, String toJournalFile,
+		String labelingFile) throws IOException
+	{
+		List<byte[]> records = readRecords(fromJournalFile, labelingFile);
+		if (records == null || records.isEmpty()) return;
+		try (FileChannel channel = openForAppend(toJournalFile, labelingFile)) {
+			for (byte[] record : records)
+				writeFully(channel, frame(record));
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * @return The size of the journal file in bytes, zero if it doesn't exist.
+	 */
+	public static long size(String journalFile) throws IOException {
+		Path path = Paths.get(journalFile);
+		return Files.exists(path) ? Files.size(path) : 0;
+	}
+
+	// -- Recording, called by LabelIndex --
+
+	void changed(long code, Collection<Label> removed, Collection<Label> added) {
+		changes.get().add(code, removed, added);
+	}
+
+	void added(Label label, LongBitmap codes) {
+		changes.get().addAll(label, codes);
+	}
+
+	void cleared(Label label) {
+		clearedLabels.add(label);
+	}
+
+	// -- Helper methods --
+
+	private Changes newChanges() {
+		Changes threadChanges = new Changes();
+		allChanges.add(threadChanges);
+		return threadChanges;
+	}
+
+	private byte[] encodeRecord(Map<Label, LongBitmap> changed,
+		Set<Label> cleared) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		List<Label> labels = labeling.getLabels();
+		out.writeInt(labels.size());
+		for (Label label : labels) {
+			String savedName = savedNames.get(label);
+			out.writeBoolean(savedName != null);
+			if (savedName != null) out.writeUTF(savedName);
+			out.writeUTF(label.name());
+			out.writeInt(label.color().get());
+			LongBitmap codes = changed.getOrDefault(label, new LongBitmap());
+			LongBitmap added = index.intersection(label, codes);
+			LongBitmap removed = LongBitmap.difference(codes, added);
+			out.writeBoolean(cleared.contains(label));
+			writeBlock(out, LabelingBinaryFormat.encodeRuns(removed
+				.sortedIterator()));
+			writeBlock(out, LabelingBinaryFormat.encodeRuns(added
+				.sortedIterator()));
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void applyRecord(Labeling labeling, byte[] record)
+		throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		long numElements = Intervals.numElements(labeling.interval());
+		int numLabels = in.readInt();
+		String[] savedNames = new String[numLabels];
+		String[] names = new String[numLabels];
+		int[] colors = new int[numLabels];
+		boolean[] cleared = new boolean[numLabels];
+		LongBitmap[] removed = new LongBitmap[numLabels];
+		LongBitmap[] added = new LongBitmap[numLabels];
+		for (int i = 0; i < numLabels; i++) {
+			savedNames[i] = in.readBoolean() ? in.readUTF() : null;
+			names[i] = in.readUTF();
+			colors[i] = in.readInt();
+			cleared[i] = in.readBoolean();
+			removed[i] = LabelingBinaryFormat.decodeRuns(readBlock(in),
+				numElements);
+			added[i] = LabelingBinaryFormat.decodeRuns(readBlock(in),
+				numElements);
+		}
+		Label[] labels = resolveLabels(labeling, savedNames, names);
+		for (int i = 0; i < numLabels; i++) {
+			labels[i].setName(names[i]);
+			labels[i].setColor(new ARGBType(colors[i]));
+		}
+		Map<Label, Integer> order = new HashMap<>();
+		for (int i = 0; i < numLabels; i++)
+			order.put(labels[i], i);
+		labeling.setLabelOrder(Comparator.comparing(order::get));
+		Interval interval = labeling.interval();
+		for (int i = 0; i < numLabels; i++) {
+			if (cleared[i]) labeling.clearLabel(labels[i]);
+			removePixels(labeling, labels[i], removed[i]);
+			labeling.applyMask(labels[i], new SparseIterableRegion(interval,
+				added[i]));
+		}
+	}
+
+	/**
+	 * Finds the label for each entry of a record, by the name it had when the
+	 * previous record was written. Labels that are not referenced are removed,
+	 * new labels are added.
+	 */
+	private static Label[] resolveLabels(Labeling labeling, String[] savedNames,
+		String[] names)
+	{
+		int n = names.length;
+		Label[] labels = new Label[n];
+		List<Label> unused = new ArrayList<>(labeling.getLabels());
+		for (int i = 0; i < n; i++)
+			if (savedNames[i] != null) labels[i] = take(unused, savedNames[i]);
+		// NB: The labeling file might have been written after the record, with
+		// the new names.
+		for (int i = 0; i < n; i++)
+			if (savedNames[i] != null && labels[i] == null) labels[i] = take(unused,
+				names[i]);
+		for (Label label : unused)
+			labeling.removeLabel(label);
+		for (int i = 0; i < n; i++)
+			if (labels[i] == null) labels[i] = labeling.addLabel(names[i]);
+		return labels;
+	}
+
+	private static Label take(List<Label> labels, String name) {
+		for (Label label : labels)
+			if (label.name().equals(name)) {
+				labels.remove(label);
+				return label;
+			}
+		return null;
+	}
+
+	private static void removePixels(Labeling labeling, Label label,
+		LongBitmap codes)
+	{
+		if (codes.isEmpty()) return;
+		IntervalIndexer2 indexer = new IntervalIndexer2(labeling.interval());
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		LongBitmap.SortedIterator iterator = codes.sortedIterator();
+		while (iterator.hasNext()) {
+			indexer.indexToPosition(iterator.next(), ra);
+			ra.get().remove(label);
+		}
+	}
+
+	private static void writeBlock(DataOutputStream out, byte[] block)
+		throws IOException
+	{
+		LabelingBinaryFormat.writeVarLong(out, block.length);
+		out.write(block);
+	}
+
+	private static byte[] readBlock(DataInputStream in) throws IOException {
+		long length = LabelingBinaryFormat.readVarLong(in);
+		if (length > in.available()) throw new IOException(
+			"Corrupt labeling journal, block is too large");
+		byte[] block = new byte[(int) length];
+		in.readFully(block);
+		return block;
+	}
+
+	/**
+	 * Prefixes the record with its length and checksum.
+	 */
+	private static ByteBuffer frame(byte[] record) {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + record.length);
+		buffer.putInt(record.length);
+		buffer.putLong(checksum(record));
+		buffer.put(record);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static long checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return crc.getValue();
+	}
+
+	private static FileChannel openForAppend(String journalFile,
+		String labelingFile) throws IOException
+	{
+		byte[] header = header(labelingFile);
+		Path path = Paths.get(journalFile);
+		if (Files.exists(path) && Arrays.equals(header, readHeader(path)))
+			return FileChannel.open(path, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		writeFully(channel, ByteBuffer.wrap(header));
+		return channel;
+	}
+
+	/**
+	 * @return The records of the journal, or null if the journal doesn't exist
+	 *         or belongs to another version of the labeling file.
+	 */
+	private static List<byte[]> readRecords(String journalFile,
+		String labelingFile) throws IOException
+	{
+		Path path = Paths.get(journalFile);
+		if (!Files.exists(path) || !Files.exists(Paths.get(labelingFile)))
+			return null;
+		byte[] bytes = Files.readAllBytes(path);
+		if (bytes.length < HEADER_SIZE || !Arrays.equals(header(labelingFile),
+			Arrays.copyOf(bytes, HEADER_SIZE))) return null;
+		List<byte[]> records = new ArrayList<>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes,
+			HEADER_SIZE, bytes.length - HEADER_SIZE));
+		try {
+			while (in.available() > 0) {
+				int length = in.readInt();
+				long checksum = in.readLong();
+				if (length < 0 || length > in.available()) break;
+				byte[] record = new byte[length];
+				in.readFully(record);
+				if (checksum(record) != checksum) break;
+				records.add(record);
+			}
+		}
+		catch (EOFException e) {
+			// NB: The last record is incomplete, it's ignored.
+		}
+		return records;
+	}
+
+	private static byte[] header(String labelingFile) throws IOException {
+		Path path = Paths.get(labelingFile);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(Files.size(path));
+		header.putLong(fileChecksum(path));
+		return header.array();
+	}
+
+	/**
+	 * @return The CRC-32 checksum of the content of the file. The file is read
+	 *         sequentially, in large chunks.
+	 */
+	private static long fileChecksum(Path path) throws IOException {
+		CRC32 crc = new CRC32();
+		try (FileChannel channel = FileChannel.open(path,
+			StandardOpenOption.READ))
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	private static byte[] readHeader(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path,
+			StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining())
+				if (channel.read(header) < 0) break;
+			return header.array();
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer)
+		throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * The pixels changed by one thread, for each label. The lock is only
+	 * contended, while the journal is flushed.
+	 */
+	private static class Changes {
+
+		private final Map<Label, LongBitmap> codes = new HashMap<>();
+
+		private synchronized void add(long code, Collection<Label> removed,
+			Collection<Label> added)
+		{
+			for (Label label : removed)
+				codes(label).add(code);
+			for (Label label : added)
+				codes(label).add(code);
+		}
+
+		private synchronized void addAll(Label label, LongBitmap codes) {
+			this.codes.put(label, LongBitmap.union(codes(label), codes));
+		}
+
+		/**
+		 * Moves the recorded pixels to the given map.
+		 */
+		private synchronized void drainTo(Map<Label, LongBitmap> target) {
+			codes.forEach((label, bitmap) -> target.merge(label, bitmap,
+				LongBitmap::union));
+			codes.clear();
+		}
+
+		private LongBitmap codes(Label label) {
+			return codes.computeIfAbsent(label, ignore -> new LongBitmap());
+		}
+	}
+}
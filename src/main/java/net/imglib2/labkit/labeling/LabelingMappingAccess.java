@@ -0,0 +1,35 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.roi.labeling.LabelingMapping;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Gives access to the list of label sets of a {@link LabelingMapping}, and
+ * allows to replace it in place. {@link net.imglib2.roi.labeling.LabelingType}
+ * instances, that refer to the mapping, stay valid.
+ */
+class LabelingMappingAccess<T> extends LabelingMapping.SerialisationAccess<T> {
+
+	LabelingMappingAccess(LabelingMapping<T> mapping) {
+		super(mapping);
+	}
+
+	/**
+	 * @return A copy of the label sets, ordered by their index.
+	 */
+	List<Set<T>> labelSets() {
+		return new ArrayList<>(getLabelSets());
+	}
+
+	/**
+	 * Replaces the label sets. The sets must be distinct, and the first one must
+	 * be the empty set. The set at position i of the list gets index i.
+	 */
+	void replaceLabelSets(List<Set<T>> labelSets) {
+		setLabelSets(labelSets);
+	}
+}
@@ -2,12 +2,9 @@
 package net.imglib2.labkit.labeling;
 
 import com.google.gson.*;
-import com.google.gson.internal.LinkedTreeMap;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
-import gnu.trove.set.TIntSet;
-import gnu.trove.set.hash.TIntHashSet;
 import io.scif.services.DatasetIOService;
 import net.imagej.DatasetService;
 import net.imagej.axis.Axes;
@@ -17,13 +14,13 @@ import net.imagej.axis.LinearAxis;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.Point;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
 import net.imglib2.labkit.utils.NumberAwareStringComparator;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.roi.labeling.ImgLabeling;
-import net.imglib2.sparse.SparseIterableRegion;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.sparse.TileStorage;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.IntegerType;
@@ -32,17 +29,26 @@ import org.apache.commons.io.FilenameUtils;
 import org.scijava.Context;
 
 import java.awt.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -63,7 +69,18 @@ import java.util.stream.Stream;
  * serializer.save(labeling, filename);
  * </pre>
  * 
- * This allows to use JSON and TIF as formats.
+ * This allows to use JSON, TIF and a compact binary format. Files with the
+ * extension "labeling" or "json" are saved as JSON, files with the extension
+ * "labelingbin" in the binary format, see {@link LabelingBinaryFormat}. When
+ * opened, the format of these files is detected automatically, and the changes
+ * recorded in a {@link LabelingJournal} next to the file are applied. A
+ * filename with the extension "labelingdir" denotes a directory of compressed
+ * blocks, see {@link LabelingDirectoryFormat}. Saving a labeling again to the
+ * same directory only rewrites the modified blocks.
+ * <p>
+ * The index image of an opened labeling stores its tiles in the
+ * {@link TileStorage} given to the constructor. Use
+ * {@link TileStorage#MAPPED_FILE} for labelings larger than the memory.
  *
  * @author Matthias Arzt
  */
@@ -71,22 +88,53 @@ public class LabelingSerializer {
 
 	private final Context context;
 
+	private final TileStorage storage;
+
 	public LabelingSerializer(Context context) {
+		this(context, TileStorage.HEAP);
+	}
+
+	/**
+	 * @param storage Where the index images of opened labelings store their
+	 *          tiles.
+	 */
+	public LabelingSerializer(Context context, TileStorage storage) {
 		this.context = context;
+		this.storage = storage;
 	}
 
 	public Labeling open(String filename) throws IOException {
 		if (FilenameUtils.isExtension(filename, new String[] { "tif", "tiff" }))
 			return openFromTiff(filename);
-		if (FilenameUtils.isExtension(filename, new String[] { "labeling",
-			"json" })) return openFromJson(filename);
+		if (FilenameUtils.isExtension(filename, new String[] { "labeling", "json",
+			LabelingBinaryFormat.EXTENSION })) return openWithJournal(filename);
+		if (FilenameUtils.isExtension(filename, LabelingDirectoryFormat.EXTENSION))
+			return LabelingDirectoryFormat.read(Paths.get(filename), storage);
 		throw new IllegalArgumentException(
-			"Filename must have supported extension (*.labeling, *.tif, *.tiff)");
+			"Filename must have supported extension (*.labeling, *.labelingbin, *.labelingdir, *.tif, *.tiff)");
 	}
 
-	private Labeling openFromJson(String filename) throws IOException {
-		try (FileReader reader = new FileReader(filename)) {
-			Labeling result = new Gson().fromJson(reader, Labeling.class);
+	/**
+	 * Reads the labeling file, and applies the changes recorded in its
+	 * {@link LabelingJournal}, if there is one that matches the file.
+	 */
+	private Labeling openWithJournal(String filename) throws IOException {
+		Labeling labeling = openFromJsonOrBinary(filename);
+		LabelingJournal.replay(labeling, LabelingJournal.journalFile(filename),
+			filename);
+		return labeling;
+	}
+
+	private Labeling openFromJsonOrBinary(String filename) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(
+			filename)))
+		{
+			if (LabelingBinaryFormat.isBinary(in)) return LabelingBinaryFormat.read(
+				in, storage);
+			Gson gson = new GsonBuilder().registerTypeAdapter(Labeling.class,
+				new Adapter(storage)).create();
+			Labeling result = gson.fromJson(new InputStreamReader(in,
+				StandardCharsets.UTF_8), Labeling.class);
 			if (result == null) throw new IOException(
 				"Error, labeling file is empty: " + filename);
 			return result;
@@ -101,20 +149,17 @@ public class LabelingSerializer {
 		return labeling;
 	}
 
+	/**
+	 * Opens a label image, together with the label sets from the "*.labels"
+	 * file next to it. Without this file, every nonzero pixel value becomes a
+	 * label. The image is read plane by plane into a sparse index image.
+	 */
 	public ImgLabeling<String, ?> openImgLabelingFromTiff(String filename)
 		throws IOException
 	{
-		Img<? extends IntegerType<?>> img = openImageFromTiff(filename);
-		LabelsMetaData meta = (new File(filename + ".labels").exists())
-			? openMetaData(filename + ".labels") : new LabelsMetaData(img);
-		return ImgLabeling.fromImageAndLabelSets(Cast.unchecked(img), meta.asLabelSets());
-	}
-
-	private Img<? extends IntegerType<?>> openImageFromTiff(String filename)
-		throws IOException
-	{
-		DatasetIOService io = context.service(DatasetIOService.class);
-		return Cast.unchecked(io.open(filename).getImgPlus().getImg());
+		List<Set<String>> labelSets = (new File(filename + ".labels").exists())
+			? openMetaData(filename + ".labels").asLabelSets() : null;
+		return TiffLabelingImporter.open(context, filename, labelSets, storage);
 	}
 
 	private LabelsMetaData openMetaData(String filename) throws IOException {
@@ -128,15 +173,22 @@ public class LabelingSerializer {
 			saveAsTiff(labeling, filename);
 		else if (FilenameUtils.isExtension(filename, new String[] { "labeling",
 			"json" })) saveAsJson(labeling, filename);
+		else if (FilenameUtils.isExtension(filename,
+			LabelingBinaryFormat.EXTENSION)) saveAsBinary(labeling, filename);
+		else if (FilenameUtils.isExtension(filename,
+			LabelingDirectoryFormat.EXTENSION)) LabelingDirectoryFormat.write(
+				labeling, Paths.get(filename));
 		else throw new IllegalArgumentException(
-			"Filename must have supported extension (*.labeling, *.tif, *.tiff)");
+			"Filename must have supported extension (*.labeling, *.labelingbin, *.labelingdir, *.tif, *.tiff)");
 	}
 
 	private void saveAsJson(Labeling labeling, String filename)
 		throws IOException
 	{
 		final String tmpFilename = filename + ".tmp";
-		try (FileWriter writer = new FileWriter(tmpFilename)) {
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(tmpFilename), StandardCharsets.UTF_8)))
+		{
 			new Gson().toJson(labeling, Labeling.class, writer);
 		}
 		// Rename the file at the end, ensures to not corrupt an existing file,
@@ -145,36 +197,51 @@ public class LabelingSerializer {
 			StandardCopyOption.REPLACE_EXISTING);
 	}
 
+	private void saveAsBinary(Labeling labeling, String filename)
+		throws IOException
+	{
+		final String tmpFilename = filename + ".tmp";
+		try (OutputStream out = new FileOutputStream(tmpFilename)) {
+			LabelingBinaryFormat.write(labeling, out, LabelingBinaryFormat.DEFLATE);
+		}
+		Files.move(Paths.get(tmpFilename), Paths.get(filename),
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
 	private <I extends IntegerType<I>> void saveAsTiff(Labeling labeling,
 		String filename) throws IOException
 	{
-		LabelsMetaData meta = new LabelsMetaData(labeling.getLabelSets());
-		try (FileWriter writer = new FileWriter(filename + ".labels")) {
-			new Gson().toJson(meta, writer);
+		// NB: Don't write label sets, that are no longer used by any pixel. They
+		// are removed from a copy, the labeling itself is not modified.
+		Labeling compacted = labeling.compactedCopy();
+		try {
+			LabelsMetaData meta = new LabelsMetaData(compacted.getLabelSets());
+			try (FileWriter writer = new FileWriter(filename + ".labels")) {
+				new Gson().toJson(meta, writer);
+			}
+			RandomAccessibleInterval<I> indexImg = Cast.unchecked(compacted
+				.getIndexImg());
+			if (TiffLabelingExporter.supports(indexImg)) {
+				final String tmpFilename = filename + ".tmp";
+				TiffLabelingExporter.write(indexImg, meta.asLabelSets().size(), Paths
+					.get(tmpFilename));
+				Files.move(Paths.get(tmpFilename), Paths.get(filename),
+					StandardCopyOption.REPLACE_EXISTING);
+				return;
+			}
+			DatasetIOService io = context.service(DatasetIOService.class);
+			DatasetService ds = context.service(DatasetService.class);
+			io.save(ds.create(indexImg), filename);
+		}
+		finally {
+			compacted.close();
 		}
-		DatasetIOService io = context.service(DatasetIOService.class);
-		DatasetService ds = context.service(DatasetService.class);
-		RandomAccessibleInterval<I> imgPlus = Cast.unchecked(labeling.getIndexImg());
-		io.save(ds.create(imgPlus), filename);
 	}
 
 	private static class LabelsMetaData {
 
 		List<Set<String>> labelSets;
 
-		public LabelsMetaData(Img<? extends IntegerType<?>> img) {
-			TIntSet values = new TIntHashSet(100, 0.5f, 0);
-			img.forEach(x -> {
-				int integer = x.getInteger();
-				if (integer != 0)
-					values.add(integer);
-			});
-			labelSets = new ArrayList<>();
-			labelSets.add(Collections.emptySet());
-			for (int value : values.toArray())
-				labelSets.add(Collections.singleton(Integer.toString(value)));
-		}
-
 		public LabelsMetaData(List<Set<Label>> mapping) {
 			labelSets = mapping.stream().map(set -> set.stream().map(Label::name)
 				.collect(Collectors.toSet())).collect(Collectors.toList());
@@ -185,30 +252,53 @@ public class LabelingSerializer {
 		}
 	}
 
+	/**
+	 * Reads and writes a {@link Labeling} as JSON. The coordinates of the pixels
+	 * are streamed, such that no JSON tree of the whole labeling is built in
+	 * memory.
+	 */
 	public static class Adapter extends TypeAdapter<Labeling> {
 
+		private final TileStorage storage;
+
+		public Adapter() {
+			this(TileStorage.HEAP);
+		}
+
+		/**
+		 * @param storage Where the index image of a labeling, that is read,
+		 *          stores its tiles.
+		 */
+		public Adapter(TileStorage storage) {
+			this.storage = storage;
+		}
+
 		@Override
 		public void write(JsonWriter jsonWriter, Labeling labeling)
 			throws IOException
 		{
 			Gson gson = new Gson();
-			JsonObject jsonLabeling = new JsonObject();
-			jsonLabeling.add("interval", gson.toJsonTree(new FinalInterval(labeling),
-				FinalInterval.class));
-			jsonLabeling.add("pixelSizes", gson.toJsonTree(getPixelSize(labeling),
-				PixelSize[].class));
-			jsonLabeling.add("labels", regionsToJson(labeling, gson));
-			jsonLabeling.add("colors", colorsToJson(labeling.getLabels()));
-			gson.toJson(jsonLabeling, jsonWriter);
+			jsonWriter.beginObject();
+			jsonWriter.name("interval");
+			gson.toJson(new FinalInterval(labeling), FinalInterval.class, jsonWriter);
+			jsonWriter.name("pixelSizes");
+			gson.toJson(getPixelSize(labeling), PixelSize[].class, jsonWriter);
+			jsonWriter.name("labels");
+			writeRegions(jsonWriter, labeling);
+			jsonWriter.name("colors");
+			writeColors(jsonWriter, labeling.getLabels());
+			jsonWriter.endObject();
 		}
 
-		private JsonElement colorsToJson(List<Label> labels) {
-			JsonObject map = new JsonObject();
+		private void writeColors(JsonWriter jsonWriter, List<Label> labels)
+			throws IOException
+		{
+			jsonWriter.beginObject();
 			for (Label label : labels) {
 				String format = String.format("#%06X", label.color().get() & 0xffffff);
-				map.add(label.name(), new JsonPrimitive(format));
+				jsonWriter.name(label.name()).value(format);
 			}
-			return map;
+			jsonWriter.endObject();
 		}
 
 		private PixelSize[] getPixelSize(Labeling labeling) {
@@ -223,99 +313,164 @@ public class LabelingSerializer {
 			return new PixelSize(linear.scale(), linear.unit());
 		}
 
-		private JsonObject regionsToJson(
-			Labeling labeling, Gson gson)
+		private void writeRegions(JsonWriter jsonWriter, Labeling labeling)
+			throws IOException
 		{
-			JsonObject map = new JsonObject();
-			Map<Label, IterableRegion<BitType>> iterableRegions = labeling.iterableRegions();
-			// Add the label in the same order as returned by labeling.getLabels().
-			for (Label label : labeling.getLabels())
-				map.add(label.name(), regionToJson(gson, iterableRegions.get(label)));
-			return map;
+			// NB: Add the labels in the same order as returned by
+			// labeling.getLabels(). The regions are copied one at a time.
+			List<Label> labels = new ArrayList<>(labeling.getLabels());
+			Iterator<IterableRegion<BitType>> regions = labeling
+				.lazyIterableRegions();
+			jsonWriter.beginObject();
+			for (Label label : labels) {
+				jsonWriter.name(label.name());
+				writeRegion(jsonWriter, regions.next());
+			}
+			jsonWriter.endObject();
 		}
 
-		private JsonElement regionToJson(Gson gson,
-			IterableRegion<BitType> region)
+		private void writeRegion(JsonWriter jsonWriter,
+			IterableRegion<BitType> region) throws IOException
 		{
-			JsonArray result = new JsonArray();
+			jsonWriter.beginArray();
 			Cursor<Void> cursor = region.cursor();
-			long[] coords = new long[cursor.numDimensions()];
+			int n = cursor.numDimensions();
 			while (cursor.hasNext()) {
 				cursor.fwd();
-				cursor.localize(coords);
-				result.add(gson.toJsonTree(coords, long[].class));
+				jsonWriter.beginArray();
+				for (int d = 0; d < n; d++)
+					jsonWriter.value(cursor.getLongPosition(d));
+				jsonWriter.endArray();
 			}
-			return result;
+			jsonWriter.endArray();
 		}
 
 		@Override
 		public Labeling read(JsonReader jsonReader) throws IOException {
-			Gson gson = new GsonBuilder().registerTypeAdapter(Labeling.class,
-				new MyDeserializer()).create();
-			return gson.fromJson(jsonReader, Labeling.class);
+			Gson gson = new Gson();
+			Interval interval = null;
+			PixelSize[] pixelSizes = null;
+			Map<String, String> colors = null;
+			JsonElement bufferedLabels = null;
+			Labeling labeling = null;
+			jsonReader.beginObject();
+			while (jsonReader.hasNext()) {
+				switch (jsonReader.nextName()) {
+					case "interval":
+						interval = gson.fromJson(jsonReader, FinalInterval.class);
+						break;
+					case "pixelSizes":
+						pixelSizes = gson.fromJson(jsonReader, PixelSize[].class);
+						break;
+					case "labels":
+						// NB: The pixels can only be streamed into the labeling, if the
+						// interval is already known. Otherwise they are buffered.
+						if (interval != null) labeling = readLabels(jsonReader, interval,
+							storage);
+						else bufferedLabels = gson.fromJson(jsonReader,
+							JsonElement.class);
+						break;
+					case "colors":
+						colors = gson.fromJson(jsonReader,
+							new TypeToken<Map<String, String>>()
+							{}.getType());
+						break;
+					default:
+						jsonReader.skipValue();
+				}
+			}
+			jsonReader.endObject();
+			if (interval == null) throw new JsonParseException(
+				"Labeling has no interval");
+			if (labeling == null) labeling = bufferedLabels == null ? Labeling
+				.createEmptyLabels(Collections.emptyList(), interval, storage)
+				: readLabels(gson.fromJson(bufferedLabels,
+					new TypeToken<Map<String, long[][]>>()
+					{}.getType()), interval, storage);
+			if (pixelSizes != null) labeling.setAxes(pixelSizesToAxes(pixelSizes));
+			if (colors != null) setColors(labeling, colors);
+			return labeling;
 		}
 
-		private static class MyDeserializer implements JsonDeserializer<Labeling> {
-
-			@Override
-			public Labeling deserialize(JsonElement json, Type typeOfT,
-				JsonDeserializationContext context) throws JsonParseException
-			{
-				JsonObject object = json.getAsJsonObject();
-				Interval interval = context.deserialize(object.get("interval"),
-					FinalInterval.class);
-				PixelSize[] axes = context.deserialize(object.get("pixelSizes"),
-					PixelSize[].class);
-				Map<String, IterableRegion<BitType>> regions = new LinkedTreeMap<>();
-				for (Map.Entry<String, JsonElement> entry : object.getAsJsonObject("labels").entrySet()) {
-					regions.put(entry.getKey(), regionFromJson(context, interval, entry.getValue()));
+		/**
+		 * Reads the map from label names to lists of coordinates, and sets the
+		 * pixels directly in a new labeling.
+		 */
+		private static Labeling readLabels(JsonReader jsonReader,
+			Interval interval, TileStorage storage) throws IOException
+		{
+			Labeling labeling = Labeling.createEmptyLabels(Collections.emptyList(),
+				interval, storage);
+			RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+			long[] coords = new long[interval.numDimensions()];
+			jsonReader.beginObject();
+			while (jsonReader.hasNext()) {
+				Label label = labeling.addLabel(jsonReader.nextName());
+				jsonReader.beginArray();
+				while (jsonReader.hasNext()) {
+					readCoordinates(jsonReader, coords);
+					ra.setPosition(coords);
+					ra.get().add(label);
 				}
-				Labeling labeling = regions.isEmpty() ? Labeling.createEmptyLabels(
-					Collections.emptyList(), interval) : Labeling.fromMap(regions);
-				labeling.setAxes(pixelSizesToAxes(axes));
-				deserializeColors(context, object, labeling);
-				return labeling;
+				jsonReader.endArray();
 			}
+			jsonReader.endObject();
+			return labeling;
+		}
 
-			private void deserializeColors(JsonDeserializationContext context, JsonObject object,
-				Labeling labeling)
-			{
-				if (!object.has("colors"))
-					return;
-				Map<String, String> map = context.deserialize(object.get("colors"),
-					new TypeToken<Map<String, String>>()
-					{}.getType());
-				for (Label label : labeling.getLabels()) {
-					String color = map.get(label.name());
-					if (color != null)
-						label.setColor(new ARGBType(Color.decode(color).getRGB()));
+		/**
+		 * Sets the pixels of the buffered labels, given as map from label names
+		 * to lists of coordinates, in a new labeling.
+		 */
+		private static Labeling readLabels(Map<String, long[][]> labels,
+			Interval interval, TileStorage storage)
+		{
+			Labeling labeling = Labeling.createEmptyLabels(Collections.emptyList(),
+				interval, storage);
+			RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+			for (Map.Entry<String, long[][]> entry : labels.entrySet()) {
+				Label label = labeling.addLabel(entry.getKey());
+				for (long[] coords : entry.getValue()) {
+					if (coords.length != interval.numDimensions())
+						throw new JsonParseException("Coordinates of label \"" + entry
+							.getKey() + "\" have the wrong number of dimensions");
+					ra.setPosition(coords);
+					ra.get().add(label);
 				}
 			}
+			return labeling;
+		}
 
-			private List<CalibratedAxis> pixelSizesToAxes(PixelSize[] axes) {
-				return Stream.of(axes).map(this::pixelSizeToAxis).collect(Collectors
-					.toList());
+		private static void readCoordinates(JsonReader jsonReader, long[] coords)
+			throws IOException
+		{
+			jsonReader.beginArray();
+			for (int d = 0; d < coords.length; d++) {
+				if (!jsonReader.hasNext()) throw new JsonParseException(
+					"Coordinates have too few dimensions: " + jsonReader.getPath());
+				coords[d] = jsonReader.nextLong();
 			}
+			if (jsonReader.hasNext()) throw new JsonParseException(
+				"Coordinates have too many dimensions: " + jsonReader.getPath());
+			jsonReader.endArray();
+		}
 
-			private LinearAxis pixelSizeToAxis(PixelSize pixelSize) {
-				return new DefaultLinearAxis(Axes.unknown(), pixelSize.unit,
-					pixelSize.size);
+		private static void setColors(Labeling labeling, Map<String, String> map) {
+			for (Label label : labeling.getLabels()) {
+				String color = map.get(label.name());
+				if (color != null) label.setColor(new ARGBType(Color.decode(color)
+					.getRGB()));
 			}
+		}
 
-			private SparseIterableRegion regionFromJson(
-				JsonDeserializationContext context, Interval interval,
-				JsonElement jsonCoords)
-			{
-				SparseIterableRegion result = new SparseIterableRegion(interval);
-				JsonArray array = jsonCoords.getAsJsonArray();
-				Point point = new Point(interval.numDimensions());
-				for (JsonElement item : array) {
-					long[] coords = context.deserialize(item, long[].class);
-					point.setPosition(coords);
-					result.add(point);
-				}
-				return result;
-			}
+		private static List<CalibratedAxis> pixelSizesToAxes(PixelSize[] axes) {
+			return Stream.of(axes).map(Adapter::pixelSizeToAxis).collect(Collectors
+				.toList());
+		}
+
+		private static LinearAxis pixelSizeToAxis(PixelSize pixelSize) {
+			return new DefaultLinearAxis(Axes.unknown(), pixelSize.unit,
+				pixelSize.size);
 		}
 
 		private static class PixelSize {
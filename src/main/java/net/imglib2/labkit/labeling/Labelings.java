@@ -1,16 +1,12 @@
 
 package net.imglib2.labkit.labeling;
 
-import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelingMapping;
-import net.imglib2.labkit.utils.DimensionUtils;
 import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.util.Cast;
-import net.imglib2.view.Views;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -19,41 +15,23 @@ import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 /**
  * Utility functions associated with {@link Labeling}.
  */
 public class Labelings {
 
+	/**
+	 * @return Views of the hyperslices along the last dimension, see
+	 *         {@link Labeling#hyperSlice(int, long)}.
+	 */
 	public static List<Labeling> slices(Labeling labeling) {
 		int sliceDimension = labeling.numDimensions() - 1;
-		Interval sliceInterval = DimensionUtils.removeLastDimension(labeling);
-		List<Label> labels = labeling.getLabels();
-		List<Labeling> slices = IntStream.range(0, Math.toIntExact(labeling
-			.dimension(sliceDimension))).mapToObj(ignore -> Labeling
-				.createEmptyLabels(labels, sliceInterval)).collect(Collectors.toList());
-		sparseCopy(labeling, Views.stack(slices));
-		return slices;
-	}
-
-	private static void sparseCopy(Labeling labeling,
-		RandomAccessibleInterval<LabelingType<Label>> target)
-	{
-		Cursor<?> cursor = labeling.sparsityCursor();
-		RandomAccess<LabelingType<Label>> out = target.randomAccess();
-		RandomAccess<LabelingType<Label>> in = labeling.randomAccess();
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			in.setPosition(cursor);
-			out.setPosition(cursor);
-			copy(in.get(), out.get());
-		}
-	}
-
-	private static <T> void copy(Set<T> in, Set<T> out) {
-		out.clear();
-		out.addAll(in);
+		long min = labeling.min(sliceDimension);
+		return LongStream.range(0, labeling.dimension(sliceDimension)).mapToObj(
+			i -> labeling.hyperSlice(sliceDimension, min + i)).collect(Collectors
+				.toList());
 	}
 
 	public static Labeling singleton(Interval interval, String labelName,
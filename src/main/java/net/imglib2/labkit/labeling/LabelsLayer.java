@@ -50,18 +50,20 @@ public class LabelsLayer implements BdvLayer {
 	private RandomAccessibleInterval<ARGBType> colorView() {
 		Labeling labeling = model.labeling().get();
 		List<Set<Label>> labelSets = labeling.getLabelSets();
-		TIntObjectMap<ARGBType> colors = new TIntObjectHashMap<>();
+		TIntObjectMap<CachedColor> colors = new TIntObjectHashMap<>();
 
 		return Converters.convert(labeling.getIndexImg(), (in, out) -> {
 			int i = in.getInteger();
-			ARGBType c = colors.get(i);
-			if (c == null) {
-				c = getColor(labelSets.get(i));
+			Set<Label> set = labelSets.get(i);
+			CachedColor c = colors.get(i);
+			// NB: Compacting the label sets changes the set of an index.
+			if (c == null || c.set != set) {
+				c = new CachedColor(set, getColor(set));
 				synchronized (colors) {
 					colors.put(i, c);
 				}
 			}
-			out.set(c);
+			out.set(c.color);
 		}, new ARGBType());
 	}
 
@@ -94,4 +96,16 @@ public class LabelsLayer implements BdvLayer {
 	public String title() {
 		return "Labeling";
 	}
+
+	private static class CachedColor {
+
+		private final Set<Label> set;
+
+		private final ARGBType color;
+
+		private CachedColor(Set<Label> set, ARGBType color) {
+			this.set = set;
+			this.color = color;
+		}
+	}
 }
@@ -0,0 +1,353 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes the index image of a labeling as an uncompressed, multi page TIFF
+ * file. Dimensions zero and one form the pages, the remaining dimensions are
+ * described in the ImageJ hyperstack format. Files larger than 4 GB are
+ * written as BigTIFF.
+ * <p>
+ * Each page is split into strips of about {@link #STRIP_SIZE} bytes. The
+ * strips are materialized in parallel, and written in order. A strip starts
+ * as an array of zeros, only the pixels set in a sparse index image are
+ * filled in. The pixel type is the smallest unsigned integer type, that can
+ * hold the number of label sets.
+ */
+class TiffLabelingExporter {
+
+	private static final int STRIP_SIZE = 1 << 20;
+
+	private static final short ASCII = 2;
+	private static final short SHORT = 3;
+	private static final short LONG = 4;
+	private static final short LONG8 = 16;
+
+	private final RandomAccessibleInterval<? extends IntegerType<?>> indexImg;
+	private final int bytesPerPixel;
+	private final int width;
+	private final int height;
+	private final long numPages;
+	private final int rowsPerStrip;
+	private final int stripsPerPage;
+	private final byte[] description;
+	private final boolean bigTiff;
+
+	private TiffLabelingExporter(
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg,
+		int numLabelSets)
+	{
+		this.indexImg = indexImg;
+		this.bytesPerPixel = numLabelSets <= 1 << 8 ? 1 : numLabelSets <= 1 << 16
+			? 2 : 4;
+		this.width = (int) indexImg.dimension(0);
+		this.height = (int) indexImg.dimension(1);
+		long numPages = 1;
+		for (int d = 2; d < indexImg.numDimensions(); d++)
+			numPages *= indexImg.dimension(d);
+		this.numPages = numPages;
+		this.rowsPerStrip = (int) Math.max(1, Math.min(height, STRIP_SIZE /
+			((long) width * bytesPerPixel)));
+		this.stripsPerPage = (height - 1) / rowsPerStrip + 1;
+		this.description = imageJDescription(indexImg);
+		this.bigTiff = pageOffset(numPages, false) > 0xffffffffL;
+	}
+
+	/**
+	 * @return True if the index image can be written: it must have two to five
+	 *         dimensions, and a row of pixels must fit into an array.
+	 */
+	static boolean supports(Interval interval) {
+		int n = interval.numDimensions();
+		return n >= 2 && n <= 5 && interval.dimension(0) * 4 <
+			Integer.MAX_VALUE - 8 && interval.dimension(1) < Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Writes the index image to a TIFF file. The pixel values must be smaller
+	 * than {@code numLabelSets}.
+	 */
+	static void write(RandomAccessibleInterval<? extends IntegerType<?>> indexImg,
+		int numLabelSets, Path file) throws IOException
+	{
+		if (!supports(indexImg)) throw new IllegalArgumentException(
+			"Index image must have two to five dimensions.");
+		new TiffLabelingExporter(indexImg, numLabelSets).write(file);
+	}
+
+	// -- Helper methods --
+
+	private void write(Path file) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(
+			file), 1 << 16))
+		{
+			out.write(header());
+			// NB: The strips are materialized in parallel, but written in order.
+			// Only a limited number of strips is materialized ahead, to bound the
+			// memory used.
+			Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+			long numStrips = numPages * stripsPerPage;
+			long written = 0;
+			for (long strip = 0; strip < numStrips; strip++) {
+				long page = strip / stripsPerPage;
+				int row = (int) (strip % stripsPerPage) * rowsPerStrip;
+				pending.add(CompletableFuture.supplyAsync(() -> strip(page, row)));
+				if (pending.size() > maxPending()) writeStrip(out, written++, pending
+					.remove().join());
+			}
+			while (!pending.isEmpty())
+				writeStrip(out, written++, pending.remove().join());
+		}
+	}
+
+	private void writeStrip(OutputStream out, long strip, byte[] bytes)
+		throws IOException
+	{
+		long page = strip / stripsPerPage;
+		boolean firstOfPage = strip % stripsPerPage == 0;
+		boolean lastOfPage = strip % stripsPerPage == stripsPerPage - 1;
+		if (firstOfPage) out.write(ifd(page));
+		out.write(bytes);
+		// NB: TIFF offsets should be word aligned.
+		if (lastOfPage && pageDataSize() % 2 != 0) out.write(0);
+	}
+
+	/**
+	 * Materializes the pixels of the strip, that starts at the given row of the
+	 * given page, as little endian unsigned integers.
+	 */
+	private byte[] strip(long page, int row) {
+		int rows = Math.min(rowsPerStrip, height - row);
+		Interval interval = stripInterval(page, row, rows);
+		ByteBuffer buffer = ByteBuffer.allocate(width * rows * bytesPerPixel)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		if (indexImg instanceof SparseRandomAccessIntType) {
+			Cursor<IntType> cursor = ((SparseRandomAccessIntType) indexImg)
+				.sparseCursor(interval);
+			while (cursor.hasNext()) {
+				int value = cursor.next().get();
+				long x = cursor.getLongPosition(0) - interval.min(0);
+				long y = cursor.getLongPosition(1) - interval.min(1);
+				put(buffer, (int) (y * width + x), value);
+			}
+		}
+		else {
+			Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(Views
+				.interval(indexImg, interval)).cursor();
+			for (int i = 0; cursor.hasNext(); i++) {
+				int value = cursor.next().getInteger();
+				if (value != 0) put(buffer, i, value);
+			}
+		}
+		return buffer.array();
+	}
+
+	private Interval stripInterval(long page, int row, int rows) {
+		int n = indexImg.numDimensions();
+		long[] min = Intervals.minAsLongArray(indexImg);
+		long[] max = Intervals.maxAsLongArray(indexImg);
+		min[1] += row;
+		max[1] = min[1] + rows - 1;
+		if (n > 2) {
+			long[] dimensions = new long[n - 2];
+			long[] position = new long[n - 2];
+			for (int d = 2; d < n; d++)
+				dimensions[d - 2] = indexImg.dimension(d);
+			IntervalIndexer.indexToPosition(page, dimensions, position);
+			for (int d = 2; d < n; d++)
+				max[d] = min[d] += position[d - 2];
+		}
+		return new FinalInterval(min, max);
+	}
+
+	private void put(ByteBuffer buffer, int index, int value) {
+		switch (bytesPerPixel) {
+			case 1:
+				buffer.put(index, (byte) value);
+				break;
+			case 2:
+				buffer.putShort(index * 2, (short) value);
+				break;
+			default:
+				buffer.putInt(index * 4, value);
+		}
+	}
+
+	private byte[] header() {
+		ByteBuffer buffer = ByteBuffer.allocate(headerSize()).order(
+			ByteOrder.LITTLE_ENDIAN);
+		buffer.put((byte) 'I').put((byte) 'I');
+		if (bigTiff) buffer.putShort((short) 43).putShort((short) 8).putShort(
+			(short) 0).putLong(headerSize());
+		else buffer.putShort((short) 42).putInt(headerSize());
+		return buffer.array();
+	}
+
+	/**
+	 * Returns the image file directory of the given page, followed by the
+	 * values that don't fit into it.
+	 */
+	private byte[] ifd(long page) {
+		int numEntries = numEntries(page);
+		long offset = pageOffset(page);
+		long stripsOffset = offset + ifdSize(numEntries) + extraSize(page);
+		ByteBuffer buffer = ByteBuffer.allocate(ifdSize(numEntries) + extraSize(
+			page)).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer extra = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		extra.position(ifdSize(numEntries));
+		if (bigTiff) buffer.putLong(numEntries);
+		else buffer.putShort((short) numEntries);
+		short offsetType = bigTiff ? LONG8 : LONG;
+		putEntry(buffer, 256, LONG, 1, width);
+		putEntry(buffer, 257, LONG, 1, height);
+		putEntry(buffer, 258, SHORT, 1, 8 * bytesPerPixel);
+		putEntry(buffer, 259, SHORT, 1, 1); // no compression
+		putEntry(buffer, 262, SHORT, 1, 1); // black is zero
+		if (page == 0) {
+			putEntry(buffer, 270, ASCII, description.length + 1, offset + extra
+				.position());
+			extra.put(description).put(new byte[(int) padded(description.length + 1) -
+				description.length]);
+		}
+		if (stripsPerPage == 1) putEntry(buffer, 273, offsetType, 1, stripsOffset);
+		else {
+			putEntry(buffer, 273, offsetType, stripsPerPage, offset + extra
+				.position());
+			long stripOffset = stripsOffset;
+			for (int i = 0; i < stripsPerPage; i++) {
+				putOffset(extra, stripOffset);
+				stripOffset += stripSize(i);
+			}
+		}
+		putEntry(buffer, 277, SHORT, 1, 1); // samples per pixel
+		putEntry(buffer, 278, LONG, 1, rowsPerStrip);
+		if (stripsPerPage == 1) putEntry(buffer, 279, offsetType, 1, stripSize(0));
+		else {
+			putEntry(buffer, 279, offsetType, stripsPerPage, offset + extra
+				.position());
+			for (int i = 0; i < stripsPerPage; i++)
+				putOffset(extra, stripSize(i));
+		}
+		putEntry(buffer, 339, SHORT, 1, 1); // unsigned integer
+		putOffset(buffer, page == numPages - 1 ? 0 : pageOffset(page + 1));
+		return buffer.array();
+	}
+
+	private void putEntry(ByteBuffer buffer, int tag, short type, long count,
+		long value)
+	{
+		buffer.putShort((short) tag);
+		buffer.putShort(type);
+		putOffset(buffer, count);
+		// NB: Little endian, a value that is shorter than the field is stored
+		// in its first bytes.
+		putOffset(buffer, value);
+	}
+
+	private void putOffset(ByteBuffer buffer, long value) {
+		if (bigTiff) buffer.putLong(value);
+		else buffer.putInt((int) value);
+	}
+
+	private long pageOffset(long page) {
+		return pageOffset(page, bigTiff);
+	}
+
+	private long pageOffset(long page, boolean bigTiff) {
+		if (page == 0) return headerSize(bigTiff);
+		return headerSize(bigTiff) + pageSize(0, bigTiff) + (page - 1) * pageSize(
+			1, bigTiff);
+	}
+
+	private long pageSize(long page, boolean bigTiff) {
+		return ifdSize(numEntries(page), bigTiff) + extraSize(page, bigTiff) +
+			padded(pageDataSize());
+	}
+
+	private int headerSize() {
+		return headerSize(bigTiff);
+	}
+
+	private static int headerSize(boolean bigTiff) {
+		return bigTiff ? 16 : 8;
+	}
+
+	private int ifdSize(int numEntries) {
+		return ifdSize(numEntries, bigTiff);
+	}
+
+	private static int ifdSize(int numEntries, boolean bigTiff) {
+		return bigTiff ? 8 + 20 * numEntries + 8 : 2 + 12 * numEntries + 4;
+	}
+
+	private int extraSize(long page) {
+		return extraSize(page, bigTiff);
+	}
+
+	private int extraSize(long page, boolean bigTiff) {
+		int size = page == 0 ? (int) padded(description.length + 1) : 0;
+		if (stripsPerPage > 1) size += 2 * stripsPerPage * (bigTiff ? 8 : 4);
+		return size;
+	}
+
+	private int numEntries(long page) {
+		return page == 0 ? 11 : 10;
+	}
+
+	private long pageDataSize() {
+		return (long) width * height * bytesPerPixel;
+	}
+
+	private long stripSize(int strip) {
+		int rows = Math.min(rowsPerStrip, height - strip * rowsPerStrip);
+		return (long) width * rows * bytesPerPixel;
+	}
+
+	private static long padded(long size) {
+		return size + (size % 2);
+	}
+
+	private static byte[] imageJDescription(Interval interval) {
+		int n = interval.numDimensions();
+		long numPages = 1;
+		for (int d = 2; d < n; d++)
+			numPages *= interval.dimension(d);
+		StringBuilder text = new StringBuilder("ImageJ=1.11a\n");
+		text.append("images=").append(numPages).append('\n');
+		// NB: ImageJ orders the pages by channel, slice and frame. The channels
+		// are only used for five dimensional images.
+		String[] names = n == 5 ? new String[] { "channels", "slices", "frames" }
+			: new String[] { "slices", "frames" };
+		for (int d = 2; d < n; d++)
+			text.append(names[d - 2]).append('=').append(interval.dimension(d))
+				.append('\n');
+		if (n > 3) text.append("hyperstack=true\n");
+		return text.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static int maxPending() {
+		return 4 * Runtime.getRuntime().availableProcessors();
+	}
+}
@@ -0,0 +1,334 @@
+
+package net.imglib2.labkit.labeling;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import io.scif.FormatException;
+import io.scif.ImageMetadata;
+import io.scif.Plane;
+import io.scif.Reader;
+import io.scif.services.InitializeService;
+import io.scif.util.FormatTools;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.sparse.ConcurrentSparseRandomAccessIntType;
+import net.imglib2.sparse.TileStorage;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import org.scijava.Context;
+import org.scijava.io.location.FileLocation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Reads a label image, for example a TIFF file, plane by plane into a sparse
+ * {@link ImgLabeling}. Only the nonzero pixels are stored, the dense image is
+ * never held in memory.
+ * <p>
+ * The planes are split into bands of rows. Large planes, or fewer planes
+ * than processors, give several bands per plane. The bands are split into
+ * contiguous ranges, that are read in parallel, each with its own SCIFIO
+ * reader. Only one band per thread is in memory at a time.
+ * <p>
+ * Without label sets, the pixel values are sorted before they are assigned
+ * to label sets. The result therefore doesn't depend on the order, in which
+ * the threads find the values.
+ */
+class TiffLabelingImporter {
+
+	/**
+	 * Planes with more pixels are split into several bands of rows.
+	 */
+	private static final long MAX_BAND_PIXELS = 1 << 22;
+
+	private final Context context;
+
+	private final String filename;
+
+	private final ImageMetadata metadata;
+
+	private final int bytesPerPixel;
+
+	private final boolean signed;
+
+	private final long[] planarDimensions;
+
+	private final int bandsPerPlane;
+
+	private TiffLabelingImporter(Context context, String filename)
+		throws IOException
+	{
+		this.context = context;
+		this.filename = filename;
+		Reader reader = initializeReader();
+		try {
+			this.metadata = reader.getMetadata().get(0);
+		}
+		finally {
+			reader.close();
+		}
+		int pixelType = metadata.getPixelType();
+		if (FormatTools.isFloatingPoint(pixelType)) throw new IOException(
+			"Label image must have an integer pixel type: " + filename);
+		this.bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+		this.signed = FormatTools.isSigned(pixelType);
+		if (bytesPerPixel != 1 && bytesPerPixel != 2 && bytesPerPixel != 4)
+			throw new IOException("Unsupported pixel type of label image: " +
+				filename);
+		this.planarDimensions = metadata.getAxesLengthsPlanar();
+		this.bandsPerPlane = bandsPerPlane(planarDimensions, metadata
+			.getPlaneCount());
+	}
+
+	/**
+	 * Reads the label image.
+	 *
+	 * @param labelSets The label sets, that the pixel values refer to. If
+	 *          {@code null}, every nonzero pixel value becomes a label, named
+	 *          after the value.
+	 * @param storage Where the index image stores its tiles.
+	 */
+	static ImgLabeling<String, IntType> open(Context context, String filename,
+		List<Set<String>> labelSets, TileStorage storage) throws IOException
+	{
+		return new TiffLabelingImporter(context, filename).read(labelSets,
+			storage);
+	}
+
+	// -- Helper methods --
+
+	private ImgLabeling<String, IntType> read(List<Set<String>> labelSets,
+		TileStorage storage) throws IOException
+	{
+		long[] dimensions = metadata.getAxesLengths();
+		ConcurrentSparseRandomAccessIntType indexImg = Labeling.emptyIndexImg(
+			new FinalInterval(dimensions), storage);
+		ValueIndices values = new ValueIndices();
+		PixelMapping mapping = labelSets != null ? value -> checkIndex(value,
+			labelSets.size()) : values;
+		long numBands = metadata.getPlaneCount() * bandsPerPlane;
+		int numTasks = (int) Math.min(numBands, Runtime.getRuntime()
+			.availableProcessors());
+		try {
+			IntStream.range(0, numTasks).parallel().forEach(task -> readBands(
+				numBands * task / numTasks, numBands * (task + 1) / numTasks,
+				mapping, indexImg));
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if (labelSets != null) return ImgLabeling.fromImageAndLabelSets(indexImg,
+			labelSets);
+		renumber(indexImg, values.sortedIndices(), numTasks);
+		return ImgLabeling.fromImageAndLabelSets(indexImg, values
+			.sortedLabelSets());
+	}
+
+	private static int bandsPerPlane(long[] planarDimensions, long numPlanes) {
+		long numRows = planarDimensions[planarDimensions.length - 1];
+		long pixelsPerPlane = Intervals.numElements(planarDimensions);
+		long processors = Runtime.getRuntime().availableProcessors();
+		long bands = Math.max((processors + numPlanes - 1) / numPlanes,
+			(pixelsPerPlane + MAX_BAND_PIXELS - 1) / MAX_BAND_PIXELS);
+		return (int) Math.max(1, Math.min(bands, numRows));
+	}
+
+	private void readBands(long fromBand, long toBand, PixelMapping mapping,
+		ConcurrentSparseRandomAccessIntType indexImg)
+	{
+		try {
+			Reader reader = initializeReader();
+			try {
+				for (long band = fromBand; band < toBand; band++)
+					readBand(reader, band / bandsPerPlane, (int) (band % bandsPerPlane),
+						mapping, indexImg);
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reads a band of rows of a plane. The rows are the last planar axis, the
+	 * band covers the full range of the other planar axes.
+	 */
+	private void readBand(Reader reader, long planeIndex, int bandIndex,
+		PixelMapping mapping, ConcurrentSparseRandomAccessIntType indexImg)
+		throws IOException
+	{
+		int p = planarDimensions.length;
+		long numRows = planarDimensions[p - 1];
+		long fromRow = numRows * bandIndex / bandsPerPlane;
+		long toRow = numRows * (bandIndex + 1) / bandsPerPlane;
+		long[] offsets = new long[p];
+		long[] lengths = planarDimensions.clone();
+		offsets[p - 1] = fromRow;
+		lengths[p - 1] = toRow - fromRow;
+		Plane plane;
+		try {
+			plane = reader.openPlane(0, planeIndex, FinalInterval.createMinSize(
+				offsets, lengths));
+		}
+		catch (FormatException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(plane.getBytes()).order(metadata
+			.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		long[] nonPlanarDimensions = metadata.getAxesLengthsNonPlanar();
+		long[] planarPosition = new long[p];
+		long[] nonPlanarPosition = new long[nonPlanarDimensions.length];
+		IntervalIndexer.indexToPosition(planeIndex, nonPlanarDimensions,
+			nonPlanarPosition);
+		RandomAccess<IntType> ra = indexImg.randomAccess();
+		for (int d = 0; d < nonPlanarPosition.length; d++)
+			ra.setPosition(nonPlanarPosition[d], p + d);
+		int numPixels = buffer.capacity() / bytesPerPixel;
+		for (int i = 0; i < numPixels; i++) {
+			long value = value(buffer, i);
+			if (value == 0) continue;
+			IntervalIndexer.indexToPositionWithOffset(i, lengths, offsets,
+				planarPosition);
+			for (int d = 0; d < p; d++)
+				ra.setPosition(planarPosition[d], d);
+			ra.get().set(mapping.index(value));
+		}
+	}
+
+	private long value(ByteBuffer buffer, int i) {
+		switch (bytesPerPixel) {
+			case 1:
+				byte b = buffer.get(i);
+				return signed ? b : b & 0xff;
+			case 2:
+				short s = buffer.getShort(i * 2);
+				return signed ? s : s & 0xffff;
+			default:
+				int v = buffer.getInt(i * 4);
+				return signed ? v : v & 0xffffffffL;
+		}
+	}
+
+	private Reader initializeReader() throws IOException {
+		try {
+			return context.service(InitializeService.class).initializeReader(
+				new FileLocation(filename));
+		}
+		catch (FormatException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Replaces the index of every pixel, that is set, by
+	 * {@code newIndices[index]}. Does nothing, if the indices are unchanged.
+	 */
+	private static void renumber(ConcurrentSparseRandomAccessIntType indexImg,
+		int[] newIndices, int numTasks)
+	{
+		boolean unchanged = true;
+		for (int i = 0; i < newIndices.length; i++)
+			unchanged &= newIndices[i] == i;
+		if (unchanged) return;
+		indexImg.sparseCursors(numTasks).parallelStream().forEach(cursor -> {
+			while (cursor.hasNext()) {
+				IntType value = cursor.next();
+				value.set(newIndices[value.get()]);
+			}
+		});
+	}
+
+	private static int checkIndex(long value, int numLabelSets) {
+		if (value < 0 || value >= numLabelSets) throw new IllegalArgumentException(
+			"Pixel value " + value + " has no label set in the *.labels file.");
+		return (int) value;
+	}
+
+	// -- Helper classes --
+
+	private interface PixelMapping {
+
+		/**
+		 * @return The index of the label set, for the given nonzero pixel value.
+		 */
+		int index(long value);
+	}
+
+	/**
+	 * Assigns an index to every pixel value, in the order they are found. As
+	 * this order depends on the threads, the indices are renumbered by
+	 * {@link #sortedIndices()}, after all pixels are read.
+	 */
+	private static class ValueIndices implements PixelMapping {
+
+		private final Map<Long, Integer> indices = new ConcurrentHashMap<>();
+
+		private final AtomicInteger counter = new AtomicInteger();
+
+		// NB: Each thread caches the indices, to avoid contention on the shared
+		// map.
+		private final ThreadLocal<TLongIntMap> cache = ThreadLocal.withInitial(
+			TLongIntHashMap::new);
+
+		@Override
+		public int index(long value) {
+			TLongIntMap local = cache.get();
+			int index = local.get(value);
+			if (index != local.getNoEntryValue()) return index;
+			index = indices.computeIfAbsent(value, ignore -> counter
+				.incrementAndGet());
+			local.put(value, index);
+			return index;
+		}
+
+		private long[] sortedValues() {
+			long[] values = new long[indices.size()];
+			int i = 0;
+			for (long value : indices.keySet())
+				values[i++] = value;
+			Arrays.sort(values);
+			return values;
+		}
+
+		/**
+		 * @return For each index, as found, the index of the value in ascending
+		 *         order of the values. Index zero stays zero.
+		 */
+		private int[] sortedIndices() {
+			long[] values = sortedValues();
+			int[] newIndices = new int[values.length + 1];
+			for (int i = 0; i < values.length; i++)
+				newIndices[indices.get(values[i])] = i + 1;
+			return newIndices;
+		}
+
+		/**
+		 * @return The empty set, followed by a set for each value, in ascending
+		 *         order, that contains the value as label.
+		 */
+		private List<Set<String>> sortedLabelSets() {
+			List<Set<String>> labelSets = new ArrayList<>();
+			labelSets.add(Collections.emptySet());
+			for (long value : sortedValues())
+				labelSets.add(Collections.singleton(Long.toString(value)));
+			return labelSets;
+		}
+	}
+}
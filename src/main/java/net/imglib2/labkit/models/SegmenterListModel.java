@@ -47,6 +47,7 @@ public class SegmenterListModel {
 	public void remove(SegmentationItem item) {
 		segmenters.get().remove(item);
 		segmenters.notifier().notifyListeners();
+		item.close();
 	}
 
 	public Holder<Boolean> segmentationVisibility() {
@@ -7,7 +7,6 @@ import net.imglib2.labkit.models.SegmenterListModel;
 import net.imglib2.labkit.segmentation.SegmentationPlugin;
 import net.imglib2.labkit.segmentation.SegmentationPluginService;
 import net.imglib2.labkit.segmentation.TrainClassifier;
-import net.imglib2.labkit.utils.ParallelUtils;
 import net.miginfocom.swing.MigLayout;
 import org.scijava.ui.behaviour.util.RunnableAction;
 
@@ -146,10 +145,10 @@ public class SegmenterPanel extends JPanel {
 		}
 
 		private void runTraining() {
-			ParallelUtils.runInOtherThread(() -> {
-				segmentationModel.selectedSegmenter().set(item);
-				TrainClassifier.trainSelectedSegmenter(segmentationModel);
-			});
+			// NB: The labelings are copied in the event dispatch thread, where they
+			// are edited.
+			segmentationModel.selectedSegmenter().set(item);
+			TrainClassifier.trainInOtherThread(segmentationModel, item);
 		}
 
 	}
@@ -6,6 +6,7 @@ import net.imagej.Dataset;
 import net.imglib2.Interval;
 import net.imglib2.labkit.inputimage.DatasetInputImage;
 import net.imglib2.labkit.labeling.Labeling;
+import net.imglib2.labkit.labeling.LabelingJournal;
 import net.imglib2.labkit.labeling.LabelingSerializer;
 import net.imglib2.labkit.models.DefaultHolder;
 import net.imglib2.labkit.models.Holder;
@@ -20,13 +21,25 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 /**
  * Represents an {@link ImageLabelingModel} that stored on disk.
+ * <p>
+ * Saved changes of the labeling are appended to a {@link LabelingJournal}
+ * next to the labeling file, unsaved changes to a journal next to the
+ * temporary labeling file. The journal is folded into the labeling file in the
+ * background, when it gets large.
  */
 public class LabeledImage {
 
+	/**
+	 * The journal is folded into the labeling file, if it's larger than this and
+	 * larger than half of the labeling file.
+	 */
+	private static final long MIN_COMPACTION_SIZE = 1 << 24;
+
 	private final Context context;
 
 	private String name;
@@ -37,6 +50,15 @@ public class LabeledImage {
 
 	private final String modifiedLabelingFile;
 
+	private final String journalFile;
+
+	private final String modifiedJournalFile;
+
+	private LabelingJournal journal;
+
+	private CompletableFuture<Void> compaction = CompletableFuture
+		.completedFuture(null);
+
 	private ImageLabelingModel imageLabelingModel;
 
 	private final Holder<String> storedIn;
@@ -57,6 +79,9 @@ public class LabeledImage {
 		this.imageFile = imageFile;
 		this.labelingFile = labelingFile;
 		this.modifiedLabelingFile = initModifiedLabelingFile();
+		this.journalFile = LabelingJournal.journalFile(labelingFile);
+		this.modifiedJournalFile = LabelingJournal.journalFile(
+			modifiedLabelingFile);
 		this.storedIn = new DefaultHolder<>(labelingFile);
 		this.modified = new MappedHolder<>(storedIn, value -> !labelingFile.equals(value));
 	}
@@ -95,6 +120,7 @@ public class LabeledImage {
 	 */
 	public ImageLabelingModel open() {
 		this.imageLabelingModel = snapshot();
+		this.journal = attachJournal(imageLabelingModel.labeling().get());
 		imageLabelingModel.dataChangedNotifier().addListener(onLabelingChangedConsumer);
 		imageLabelingModel.labeling().notifier().addListener(onLabelingChanged);
 		return imageLabelingModel;
@@ -109,19 +135,28 @@ public class LabeledImage {
 			return;
 		imageLabelingModel.dataChangedNotifier().removeListener(onLabelingChangedConsumer);
 		imageLabelingModel.labeling().notifier().removeListener(onLabelingChanged);
+		compaction.join();
 		if (storedIn.get() == null) {
 			try {
-				new LabelingSerializer(context).save(imageLabelingModel.labeling().get(),
-					modifiedLabelingFile);
+				Labeling labeling = imageLabelingModel.labeling().get();
+				if (canUseJournal(labeling)) journal.flush(modifiedJournalFile,
+					labelingFile);
+				else {
+					new LabelingSerializer(context).save(labeling, modifiedLabelingFile);
+					Files.deleteIfExists(Paths.get(modifiedJournalFile));
+				}
 				storedIn.set(modifiedLabelingFile);
+				detachJournal();
 				imageLabelingModel = null;
 			}
 			catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
-		else
+		else {
+			detachJournal();
 			imageLabelingModel = null;
+		}
 	}
 
 	/**
@@ -131,12 +166,17 @@ public class LabeledImage {
 	public void discardChanges() {
 		if (modified.get())
 			return;
+		compaction.join();
 		if (imageLabelingModel != null) {
-			imageLabelingModel.labeling().set(openOrEmptyLabeling(labelingFile, imageLabelingModel
-				.imageForSegmentation().get()));
+			Labeling labeling = openSavedLabeling(imageLabelingModel
+				.imageForSegmentation().get());
+			detachJournal();
+			journal = attachJournal(labeling);
+			imageLabelingModel.labeling().set(labeling);
 		}
 		try {
 			Files.deleteIfExists(Paths.get(modifiedLabelingFile));
+			Files.deleteIfExists(Paths.get(modifiedJournalFile));
 		}
 		catch (IOException e) {
 			e.printStackTrace();
@@ -145,15 +185,23 @@ public class LabeledImage {
 	}
 
 	/**
-	 * Writes the labeling (if modified) to {@link #labelingFile}.
+	 * Writes the labeling (if modified) to {@link #labelingFile}. If possible,
+	 * only the changes are appended to the journal of the labeling file.
 	 */
 	public void save() {
 		if (!modified.get())
 			return;
+		compaction.join();
 		if (imageLabelingModel == null) {
 			try {
-				Files.move(Paths.get(modifiedLabelingFile), Paths.get(labelingFile),
-					StandardCopyOption.REPLACE_EXISTING);
+				if (new File(modifiedLabelingFile).exists()) {
+					Files.move(Paths.get(modifiedLabelingFile), Paths.get(labelingFile),
+						StandardCopyOption.REPLACE_EXISTING);
+					Files.deleteIfExists(Paths.get(journalFile));
+				}
+				else LabelingJournal.append(modifiedJournalFile, journalFile,
+					labelingFile);
+				Files.deleteIfExists(Paths.get(modifiedJournalFile));
 				storedIn.set(labelingFile);
 			}
 			catch (IOException e) {
@@ -162,9 +210,21 @@ public class LabeledImage {
 		}
 		else {
 			try {
-				new LabelingSerializer(context).save(imageLabelingModel.labeling().get(),
-					labelingFile);
-				Files.deleteIfExists(Paths.get(modifiedLabelingFile));
+				Labeling labeling = imageLabelingModel.labeling().get();
+				if (canUseJournal(labeling)) {
+					LabelingJournal.append(modifiedJournalFile, journalFile,
+						labelingFile);
+					journal.flush(journalFile, labelingFile);
+					compactIfLarge(labeling);
+				}
+				else {
+					new LabelingSerializer(context).save(labeling, labelingFile);
+					Files.deleteIfExists(Paths.get(modifiedLabelingFile));
+					Files.deleteIfExists(Paths.get(journalFile));
+					detachJournal();
+					journal = attachJournal(labeling);
+				}
+				Files.deleteIfExists(Paths.get(modifiedJournalFile));
 				storedIn.set(labelingFile);
 			}
 			catch (IOException e) {
@@ -173,6 +233,48 @@ public class LabeledImage {
 		}
 	}
 
+	/**
+	 * The journal can only be used, if it records the changes of the current
+	 * labeling, relative to the labeling file plus journals.
+	 */
+	private boolean canUseJournal(Labeling labeling) {
+		return journal != null && journal.labeling() == labeling && new File(
+			labelingFile).exists() && !new File(modifiedLabelingFile).exists();
+	}
+
+	private static LabelingJournal attachJournal(Labeling labeling) {
+		return labeling.supportsJournal() ? LabelingJournal.attach(labeling)
+			: null;
+	}
+
+	private void detachJournal() {
+		if (journal != null) journal.detach();
+		journal = null;
+	}
+
+	/**
+	 * Folds the journal into the labeling file in the background, if the
+	 * journal is large. A snapshot of the labeling is written, such that the
+	 * labeling can still be edited.
+	 */
+	private void compactIfLarge(Labeling labeling) throws IOException {
+		long size = LabelingJournal.size(journalFile);
+		if (size < MIN_COMPACTION_SIZE || size < Files.size(Paths.get(
+			labelingFile)) / 2 || !labeling.supportsSnapshot()) return;
+		Labeling snapshot = labeling.snapshot();
+		compaction = CompletableFuture.runAsync(() -> {
+			try {
+				new LabelingSerializer(context).save(snapshot, labelingFile);
+				// NB: The journal no longer matches the new labeling file, deleting
+				// it is just cleaning up.
+				Files.deleteIfExists(Paths.get(journalFile));
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
 	private void onLabelingChanged() {
 		storedIn.set(null);
 	}
@@ -186,7 +288,9 @@ public class LabeledImage {
 			return imageLabelingModel;
 		DatasetInputImage inputImage = openInputImage();
 		inputImage.setDefaultLabelingFilename(modifiedLabelingFile);
-		Labeling labeling = openOrEmptyLabeling(storedIn.get(), inputImage.imageForSegmentation());
+		Labeling labeling = labelingFile.equals(storedIn.get()) ? openSavedLabeling(
+			inputImage.imageForSegmentation()) : openModifiedLabeling(inputImage
+				.imageForSegmentation());
 		ImageLabelingModel imageLabelingModel = new ImageLabelingModel(inputImage);
 		imageLabelingModel.labeling().set(labeling);
 		return imageLabelingModel;
@@ -203,6 +307,35 @@ public class LabeledImage {
 		}
 	}
 
+	/**
+	 * Opens the labeling file, {@link LabelingSerializer} applies its journal.
+	 */
+	private Labeling openSavedLabeling(Interval interval) {
+		return openOrEmptyLabeling(labelingFile, interval);
+	}
+
+	/**
+	 * Opens the temporary labeling file, or the labeling file with both
+	 * journals applied.
+	 */
+	private Labeling openModifiedLabeling(Interval interval) {
+		if (new File(modifiedLabelingFile).exists()) return openOrEmptyLabeling(
+			modifiedLabelingFile, interval);
+		Labeling labeling = openSavedLabeling(interval);
+		replayJournal(labeling, modifiedJournalFile);
+		return labeling;
+	}
+
+	private void replayJournal(Labeling labeling, String journalFile) {
+		if (!new File(labelingFile).exists()) return;
+		try {
+			LabelingJournal.replay(labeling, journalFile, labelingFile);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	private Labeling openOrEmptyLabeling(String filename, Interval interval) {
 		if (new File(filename).exists()) {
 			try {
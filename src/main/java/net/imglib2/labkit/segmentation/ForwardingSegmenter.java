@@ -80,4 +80,9 @@ public class ForwardingSegmenter implements Segmenter {
 	public boolean requiresFixedCellSize() {
 		return source.requiresFixedCellSize();
 	}
+
+	@Override
+	public void close() {
+		source.close();
+	}
 }
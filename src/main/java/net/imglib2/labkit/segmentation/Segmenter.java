@@ -86,4 +86,13 @@ public interface Segmenter {
 	int[] suggestCellSize(ImgPlus<?> image);
 
 	boolean requiresFixedCellSize();
+
+	/**
+	 * Frees the memory, that the model keeps to speed up the next training, for
+	 * example cached features. Called when the segmenter is removed. The model
+	 * can still be used afterwards.
+	 */
+	default void close() {
+		// NB: Nothing to free by default.
+	}
 }
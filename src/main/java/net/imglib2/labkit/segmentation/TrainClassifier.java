@@ -12,11 +12,13 @@ import net.imglib2.labkit.panel.GuiUtils;
 import net.imglib2.labkit.utils.ParallelUtils;
 import net.imglib2.labkit.utils.progress.SwingProgressWriter;
 import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
 
 import javax.swing.*;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * Implements the train classifier, and remove classifier menu items.
@@ -29,8 +31,7 @@ public class TrainClassifier {
 		this.model = model;
 		extensible.addMenuItem(MenuBar.SEGMENTER_MENU, "Train Classifier", 1,
 			ignore -> trainSelectedSegmenter(model), null, "ctrl shift T");
-		Consumer<SegmentationItem> train = item -> ParallelUtils.runInOtherThread(
-			() -> trainSegmenter(model, item));
+		Consumer<SegmentationItem> train = item -> trainInOtherThread(model, item);
 		extensible.addMenuItem(SegmentationItem.SEGMENTER_MENU, "Train Classifier",
 			1, train, GuiUtils.loadIcon("run.png"), null);
 		extensible.addMenuItem(SegmentationItem.SEGMENTER_MENU, "Remove Classifier",
@@ -42,8 +43,35 @@ public class TrainClassifier {
 		trainSegmenter(model, model.selectedSegmenter().get());
 	}
 
+	/**
+	 * Copies the labelings in the calling thread, and trains the segmenter in
+	 * another thread. The user may continue to edit the labelings meanwhile.
+	 */
+	public static void trainInOtherThread(SegmenterListModel model,
+		SegmentationItem item)
+	{
+		List<Pair<ImgPlus<?>, Labeling>> trainingData = snapshot(model
+			.trainingData().get());
+		ParallelUtils.runInOtherThread(() -> train(trainingData, item));
+	}
+
 	private static void trainSegmenter(SegmenterListModel model, SegmentationItem item) {
-		train(model.trainingData().get(), item);
+		// NB: The training works on copies of the labelings, like the training
+		// in another thread.
+		train(snapshot(model.trainingData().get()), item);
+	}
+
+	private static List<Pair<ImgPlus<?>, Labeling>> snapshot(
+		List<Pair<ImgPlus<?>, Labeling>> trainingData)
+	{
+		if (trainingData == null) return null;
+		return trainingData.stream().<Pair<ImgPlus<?>, Labeling>> map(
+			pair -> new ValuePair<>(pair.getA(), snapshot(pair.getB()))).collect(
+				Collectors.toList());
+	}
+
+	private static Labeling snapshot(Labeling labeling) {
+		return labeling.supportsSnapshot() ? labeling.snapshot() : labeling;
 	}
 
 	private static void train(List<Pair<ImgPlus<?>, Labeling>> trainingData, SegmentationItem item) {
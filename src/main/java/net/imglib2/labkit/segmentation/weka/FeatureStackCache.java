@@ -0,0 +1,346 @@
+
+package net.imglib2.labkit.segmentation.weka;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.labkit.utils.LabkitUtils;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the feature stacks, that are calculated for the training, from one
+ * training round to the next. A feature stack is identified by the image, the
+ * {@link FeatureSettings} and the slice of the image. Retraining therefore
+ * only calculates the features of blocks, that weren't used before.
+ * <p>
+ * The feature stacks are evicted in least recently used order, when the
+ * memory of their calculated blocks exceeds the memory budget. Blocks of a
+ * single feature stack, that don't fit into the memory budget, are moved to a
+ * temporary file on disk.
+ * <p>
+ * All segmenters use the {@link #shared()} cache, such that the memory budget
+ * limits the feature stacks of all segmenters together. Each feature stack
+ * remembers the segmenters, that use it, see {@link #clear(Object)}. Neither
+ * the images nor the segmenters are kept from being garbage collected, the
+ * feature stacks of collected images or segmenters are removed.
+ */
+class FeatureStackCache {
+
+	private static final FeatureStackCache SHARED = new FeatureStackCache();
+
+	private final long memoryBudget;
+
+	private final Map<Key, Entry> stacks = new LinkedHashMap<>(16, 0.75f, true);
+
+	FeatureStackCache() {
+		this(Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	FeatureStackCache(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @return The cache shared by all segmenters, with a memory budget of a
+	 *         quarter of the maximum heap size.
+	 */
+	static FeatureStackCache shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the cached feature stack for the given key, or creates a new one,
+	 * that calculates the features of the image on demand.
+	 *
+	 * @param owner The segmenter, that uses the feature stack.
+	 */
+	synchronized FeatureStack get(Object owner, Key key,
+		FeatureCalculator calculator, RandomAccessibleInterval<?> image)
+	{
+		removeUnused();
+		Entry entry = stacks.get(key);
+		if (entry == null) {
+			entry = new Entry(new FeatureStack(calculator, image, memoryBudget));
+			stacks.put(key, entry);
+		}
+		entry.owners.add(owner);
+		entry.stack.setImage(image);
+		evict(entry);
+		return entry.stack;
+	}
+
+	/**
+	 * Removes the feature stacks, that are only used by the given segmenter,
+	 * and frees their memory.
+	 */
+	synchronized void clear(Object owner) {
+		stacks.values().forEach(entry -> entry.owners.remove(owner));
+		removeUnused();
+	}
+
+	/**
+	 * Removes all feature stacks, and frees their memory.
+	 */
+	synchronized void clear() {
+		stacks.values().forEach(entry -> entry.stack.shutdown());
+		stacks.clear();
+	}
+
+	synchronized int size() {
+		return stacks.size();
+	}
+
+	// -- Helper methods --
+
+	private void evict(Entry keep) {
+		// NB: The memory of a feature stack grows, after it is returned by get.
+		// It's accounted for the next time get is called.
+		long memory = stacks.values().stream().mapToLong(entry -> entry.stack
+			.memory()).sum();
+		Iterator<Entry> iterator = stacks.values().iterator();
+		while (memory > memoryBudget && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry == keep) continue;
+			memory -= entry.stack.memory();
+			entry.stack.shutdown();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Removes the feature stacks of garbage collected images, and the feature
+	 * stacks without segmenters.
+	 */
+	private void removeUnused() {
+		stacks.entrySet().removeIf(e -> {
+			boolean unused = e.getKey().image.get() == null || e.getValue().owners
+				.isEmpty();
+			if (unused) e.getValue().stack.shutdown();
+			return unused;
+		});
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Identifies a feature stack. The image is compared by identity, the
+	 * feature settings by value. The key only holds a weak reference to the
+	 * image.
+	 */
+	static class Key {
+
+		private final WeakReference<Object> image;
+
+		private final int imageHash;
+
+		private final String settings;
+
+		private final List<Long> slice;
+
+		Key(Object image, FeatureSettings settings) {
+			this(new WeakReference<>(image), System.identityHashCode(image),
+				settings.toJson().toString(), new ArrayList<>());
+		}
+
+		private Key(WeakReference<Object> image, int imageHash, String settings,
+			List<Long> slice)
+		{
+			this.image = image;
+			this.imageHash = imageHash;
+			this.settings = settings;
+			this.slice = slice;
+		}
+
+		/**
+		 * @return The key of the given slice, within the image or slice of this
+		 *         key.
+		 */
+		Key slice(long position) {
+			List<Long> slice = new ArrayList<>(this.slice);
+			slice.add(position);
+			return new Key(image, imageHash, settings, slice);
+		}
+
+		/**
+		 * @return The positions passed to {@link #slice(long)}, in the order of
+		 *         the calls.
+		 */
+		List<Long> slicePositions() {
+			return Collections.unmodifiableList(slice);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			// NB: Keys of a garbage collected image are only equal to themselves.
+			Object image = this.image.get();
+			boolean sameImage = image == null ? this.image == other.image
+				: image == other.image.get();
+			return sameImage && settings.equals(other.settings) && slice.equals(
+				other.slice);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * imageHash + settings.hashCode()) + slice.hashCode();
+		}
+	}
+
+	private static class Entry {
+
+		private final FeatureStack stack;
+
+		private final Set<Object> owners = Collections.newSetFromMap(
+			new WeakHashMap<>());
+
+		private Entry(FeatureStack stack) {
+			this.stack = stack;
+		}
+	}
+
+	/**
+	 * The features of an image, calculated block by block on demand.
+	 */
+	static class FeatureStack {
+
+		private final DiskCachedCellImg<FloatType, ?> img;
+
+		private final long bytesPerCell;
+
+		private final long maxCachedCells;
+
+		private final TLongSet usedCells = new TLongHashSet();
+
+		private volatile WeakReference<RandomAccessibleInterval<?>> image;
+
+		private FeatureStack(FeatureCalculator calculator,
+			RandomAccessibleInterval<?> image, long memoryBudget)
+		{
+			CellGrid grid = suggestGrid(calculator.outputIntervalFromInput(image));
+			int count = calculator.count();
+			if (count <= 0) throw new IllegalArgumentException();
+			int[] cellDimensions = new int[grid.numDimensions()];
+			grid.cellDimensions(cellDimensions);
+			this.bytesPerCell = Intervals.numElements(cellDimensions) * count *
+				Float.BYTES;
+			this.maxCachedCells = Math.max(1, memoryBudget / bytesPerCell);
+			setImage(image);
+			this.img = cachedFeatureBlock(calculator, this::extendedImage, grid,
+				maxCachedCells);
+		}
+
+		/**
+		 * @return The feature stack, the features are stored in the last
+		 *         dimension.
+		 */
+		DiskCachedCellImg<FloatType, ?> img() {
+			return img;
+		}
+
+		/**
+		 * Marks the cell with the given index, as used. This is needed to
+		 * estimate the memory of the feature stack.
+		 */
+		void cellUsed(long cellIndex) {
+			usedCells.add(cellIndex);
+		}
+
+		/**
+		 * Marks the cell, that contains the given pixel, as used.
+		 */
+		void cellUsed(Localizable position) {
+			CellGrid grid = img.getCellGrid();
+			long cellIndex = 0;
+			long step = 1;
+			for (int d = 0; d < position.numDimensions(); d++) {
+				cellIndex += position.getLongPosition(d) / grid.cellDimension(d) *
+					step;
+				step *= grid.gridDimension(d);
+			}
+			cellUsed(cellIndex);
+		}
+
+		/**
+		 * @return The number of features per pixel.
+		 */
+		int count() {
+			return (int) img.dimension(img.numDimensions() - 1);
+		}
+
+		private long memory() {
+			return Math.min(usedCells.size(), maxCachedCells) * bytesPerCell;
+		}
+
+		private void shutdown() {
+			img.shutdown();
+		}
+
+		/**
+		 * Sets the image, the features are calculated from. Only a weak
+		 * reference is kept, the caller of {@link FeatureStackCache#get} keeps
+		 * the image, while it uses the feature stack.
+		 */
+		private void setImage(RandomAccessibleInterval<?> image) {
+			this.image = new WeakReference<>(image);
+		}
+
+		private RandomAccessible<?> extendedImage() {
+			RandomAccessibleInterval<?> image = this.image.get();
+			if (image == null) throw new IllegalStateException(
+				"The image of the feature stack was garbage collected.");
+			return Views.extendBorder(image);
+		}
+
+		private static CellGrid suggestGrid(Interval interval) {
+			long[] imageDimensions = Intervals.dimensionsAsLongArray(interval);
+			int[] cellDimensions = interval.numDimensions() == 2 ? new int[] { 128,
+				128 } : new int[] { 64, 64, 64 };
+			return new CellGrid(imageDimensions, cellDimensions);
+		}
+
+		private static DiskCachedCellImg<FloatType, ?> cachedFeatureBlock(
+			FeatureCalculator feature,
+			Supplier<RandomAccessible<?>> extendedOriginal, CellGrid grid,
+			long maxCachedCells)
+		{
+			int count = feature.count();
+			long[] dimensions = LabkitUtils.extend(grid.getImgDimensions(), count);
+			int[] cellDimensions = LabkitUtils.extend(new int[grid.numDimensions()],
+				count);
+			grid.cellDimensions(cellDimensions);
+			final DiskCachedCellImgOptions featureOpts = DiskCachedCellImgOptions
+				.options().cellDimensions(cellDimensions).dirtyAccesses(false)
+				.cacheType(DiskCachedCellImgOptions.CacheType.BOUNDED).maxCacheSize(
+					maxCachedCells);
+			final DiskCachedCellImgFactory<FloatType> featureFactory =
+				new DiskCachedCellImgFactory<>(new FloatType(), featureOpts);
+			CellLoader<FloatType> loader = target -> feature.apply(extendedOriginal
+				.get(), target);
+			return featureFactory.create(dimensions, loader);
+		}
+	}
+}
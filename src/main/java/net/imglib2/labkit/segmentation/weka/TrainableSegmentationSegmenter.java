@@ -6,14 +6,11 @@ import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.DiskCachedCellImg;
-import net.imglib2.cache.img.DiskCachedCellImgFactory;
-import net.imglib2.cache.img.DiskCachedCellImgOptions;
 import net.imglib2.img.Img;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.display.imagej.ImgPlusViews;
@@ -22,8 +19,7 @@ import net.imglib2.labkit.labeling.Label;
 import net.imglib2.labkit.labeling.Labelings;
 import net.imglib2.labkit.segmentation.Segmenter;
 import net.imglib2.labkit.labeling.Labeling;
-import net.imglib2.labkit.utils.LabkitUtils;
-import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.sparse.ConcurrentSparseRandomAccessIntType;
 import net.imglib2.sparse.SparseRandomAccessIntType;
 import net.imglib2.trainable_segmentation.classification.Training;
 import net.imglib2.trainable_segmentation.gson.GsonUtils;
@@ -49,14 +45,10 @@ import weka.core.WekaException;
 import javax.swing.*;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.function.BiConsumer;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 // TODO: rename to PixelClassification
@@ -70,6 +62,10 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 
 	private net.imglib2.trainable_segmentation.classification.Segmenter segmenter;
 
+	private final FeatureStackCache featureStackCache = FeatureStackCache.shared();
+
+	private final TrainingSamples trainingSamples = new TrainingSamples();
+
 	public TrainableSegmentationSegmenter(Context context) {
 		this.context = Objects.requireNonNull(context);
 		this.useGpu = false;
@@ -90,7 +86,7 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 				useGpu, featureSettings);
 		dialog.show();
 		if (dialog.okClicked()) {
-			featureSettings = dialog.featureSettings();
+			setFeatureSettings(dialog.featureSettings());
 			setUseGpu(dialog.useGpu());
 		}
 	}
@@ -128,7 +124,7 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 	}
 
 	@Override
-	public void train(List<Pair<ImgPlus<?>, Labeling>> trainingData) {
+	synchronized public void train(List<Pair<ImgPlus<?>, Labeling>> trainingData) {
 		try {
 			initFeatureSettings(trainingData);
 			List<String> classes = collectLabels(trainingData.stream().map(Pair::getB)
@@ -138,8 +134,15 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 					classes, featureSettings, new FastRandomForest());
 			segmenter.setUseGpu(useGpu);
 			Training training = segmenter.training();
-			for (Pair<ImgPlus<?>, Labeling> pair : trainingData)
-				trainStack(training, classes, pair.getB(), pair.getA(), segmenter.features());
+			for (Pair<ImgPlus<?>, Labeling> pair : trainingData) {
+				FeatureStackCache.Key key = new FeatureStackCache.Key(pair.getA(), featureSettings);
+				TrainingSamples.Changes changes = trainingSamples.changes(key, pair.getB(), classes);
+				trainStack(training, classes, pair.getB(), pair.getA(), segmenter.features(), key,
+					changes);
+				if (changes != null)
+					trainingSamples.finish(changes);
+			}
+			trainingSamples.retainUsed();
 			training.train();
 			this.segmenter = segmenter;
 		}
@@ -166,13 +169,15 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 	}
 
 	private void trainStack(Training training, List<String> classes, Labeling labeling,
-		ImgPlus<?> image, FeatureCalculator featuresCalculator)
+		ImgPlus<?> image, FeatureCalculator featuresCalculator, FeatureStackCache.Key key,
+		TrainingSamples.Changes changes)
 	{
 		if (ImgPlusViewsOld.hasAxis(image, Axes.TIME)) {
 			List<ImgPlus<?>> imageSlices = ImgPlusViewsOld.hyperSlices(image, Axes.TIME);
 			List<Labeling> labelSlices = Labelings.slices(labeling);
 			for (int i = 0; i < imageSlices.size(); i++) {
-				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator);
+				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator,
+					key.slice(i), changes);
 			}
 		}
 		else if (ImgPlusViewsOld.hasAxis(image, Axes.Z) && featureSettings.globals()
@@ -181,101 +186,90 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 			List<ImgPlus<?>> imageSlices = ImgPlusViewsOld.hyperSlices(image, Axes.Z);
 			List<Labeling> labelSlices = Labelings.slices(labeling);
 			for (int i = 0; i < imageSlices.size(); i++) {
-				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator);
+				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator,
+					key.slice(i), changes);
 			}
 		}
 		else {
-			trainFrame(training, classes, labeling, image, featuresCalculator);
+			trainFrame(training, classes, labeling, image, featuresCalculator, key, changes);
 		}
 	}
 
 	private void trainFrame(Training training, List<String> classes, Labeling labeling,
-		RandomAccessibleInterval<?> image, FeatureCalculator featuresCalculator)
+		RandomAccessibleInterval<?> image, FeatureCalculator featuresCalculator,
+		FeatureStackCache.Key key, TrainingSamples.Changes changes)
 	{
+		if (changes != null) {
+			// NB: Only the samples of modified tiles of the labeling are extracted,
+			// the others are reused from the previous training.
+			trainingSamples.addSamples(training, classes, key, labeling, changes,
+				() -> featureStackCache.get(this, key, featuresCalculator, image));
+			return;
+		}
 		SparseRandomAccessIntType classIndices = getClassIndices(labeling, classes);
 		if (classIndices.sparsityPattern().size() == 0)
 			return;
-		DiskCachedCellImg<FloatType, ?> cachedFeatureBlock = cachedFeatureBlock(featuresCalculator,
-			image);
-		try {
-			RandomAccessible<? extends Composite<FloatType>> features = Views.collapse(
-				cachedFeatureBlock);
-			addSamples(training, classIndices, features);
-		}
-		finally {
-			cachedFeatureBlock.shutdown();
-		}
-	}
-
-	// TODO: caching the Feature Stack while training could be part of
-	// imglib2-trainable-segmentation
-	private static DiskCachedCellImg<FloatType, ?> cachedFeatureBlock(FeatureCalculator feature,
-		RandomAccessibleInterval<?> image)
-	{
-		return cachedFeatureBlock(feature, Views.extendBorder(image),
-			suggestGrid(feature.outputIntervalFromInput(image)));
-	}
-
-	private static CellGrid suggestGrid(Interval interval) {
-		long[] imageDimensions = Intervals.dimensionsAsLongArray(interval);
-		int[] cellDimensions = interval.numDimensions() == 2 ? new int[] { 128, 128 } : new int[] { 64,
-			64, 64 };
-		return new CellGrid(imageDimensions, cellDimensions);
-	}
-
-	private static DiskCachedCellImg<FloatType, ?> cachedFeatureBlock(FeatureCalculator feature,
-		RandomAccessible<?> extendedOriginal, CellGrid grid)
-	{
-		int count = feature.count();
-		if (count <= 0) throw new IllegalArgumentException();
-		long[] dimensions = LabkitUtils.extend(grid.getImgDimensions(), count);
-		int[] cellDimensions = LabkitUtils.extend(new int[grid.numDimensions()],
-			count);
-		grid.cellDimensions(cellDimensions);
-		final DiskCachedCellImgOptions featureOpts = DiskCachedCellImgOptions
-			.options().cellDimensions(cellDimensions).dirtyAccesses(false);
-		final DiskCachedCellImgFactory<FloatType> featureFactory =
-			new DiskCachedCellImgFactory<>(new FloatType(), featureOpts);
-		CellLoader<FloatType> loader = target -> feature.apply(extendedOriginal,
-			target);
-		return featureFactory.create(dimensions, loader);
+		// NB: The feature stack is kept for the next training, only the blocks
+		// that aren't cached yet, are calculated.
+		FeatureStackCache.FeatureStack featureStack = featureStackCache.get(this,
+			key, featuresCalculator, image);
+		addSamples(training, classIndices, featureStack);
 	}
 
 	private void addSamples(Training training,
 		SparseRandomAccessIntType classIndices,
-		RandomAccessible<? extends Composite<FloatType>> features)
+		FeatureStackCache.FeatureStack featureStack)
 	{
-		Cursor<IntType> classIndicesCursor = classIndices.sparseCursor();
-		RandomAccess<? extends Composite<? extends RealType<?>>> ra = features
-			.randomAccess();
-		while (classIndicesCursor.hasNext()) {
-			int classIndex = classIndicesCursor.next().get();
-			ra.setPosition(classIndicesCursor);
-			training.add(ra.get(), classIndex);
+		DiskCachedCellImg<FloatType, ?> cachedFeatureBlock = featureStack.img();
+		RandomAccess<? extends Composite<? extends RealType<?>>> ra = Views
+			.collapse(cachedFeatureBlock).randomAccess();
+		// NB: The samples are added cell by cell of the feature cache, each cell
+		// is calculated once, and then used for all the samples within it.
+		CellGrid grid = cachedFeatureBlock.getCellGrid();
+		int n = grid.numDimensions() - 1;
+		long numCells = Intervals.numElements(grid.getGridDimensions());
+		long[] min = new long[n + 1];
+		int[] size = new int[n + 1];
+		for (long i = 0; i < numCells; i++) {
+			grid.getCellDimensions(i, min, size);
+			long[] max = new long[n];
+			for (int d = 0; d < n; d++)
+				max[d] = min[d] + size[d] - 1;
+			Interval cell = new FinalInterval(Arrays.copyOf(min, n), max);
+			Cursor<IntType> classIndicesCursor = classIndices.sparseCursor(cell);
+			while (classIndicesCursor.hasNext()) {
+				int classIndex = classIndicesCursor.next().get();
+				ra.setPosition(classIndicesCursor);
+				training.add(ra.get(), classIndex);
+				featureStack.cellUsed(i);
+			}
 		}
 	}
 
 	private SparseRandomAccessIntType getClassIndices(Labeling labeling,
 		List<String> classes)
 	{
-		SparseRandomAccessIntType result = new SparseRandomAccessIntType(labeling,
-			-1);
-		Map<Set<Label>, Integer> classIndices = new HashMap<>();
-		Function<Set<Label>, Integer> compute = set -> set.stream().mapToInt(
-			label -> classes.indexOf(label.name())).filter(i -> i >= 0).min().orElse(
-				-1);
-		Cursor<?> cursor = labeling.sparsityCursor();
-		RandomAccess<LabelingType<Label>> randomAccess = labeling.randomAccess();
-		RandomAccess<IntType> out = result.randomAccess();
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			randomAccess.setPosition(cursor);
-			Set<Label> labels = randomAccess.get();
-			if (labels.isEmpty()) continue;
-			Integer classIndex = classIndices.computeIfAbsent(labels, compute);
-			out.setPosition(cursor);
-			out.get().set(classIndex);
-		}
+		SparseRandomAccessIntType result = new ConcurrentSparseRandomAccessIntType(
+			labeling, -1);
+		// NB: The class index only depends on the label set, compute it once
+		// for each label set, and look it up by the index of the label set.
+		int[] classIndices = labeling.getLabelSets().stream().mapToInt(
+			set -> set.stream().mapToInt(label -> classes.indexOf(label.name()))
+				.filter(i -> i >= 0).min().orElse(-1)).toArray();
+		labeling.sparsityCursors(4 * Runtime.getRuntime().availableProcessors())
+			.parallelStream().forEach(cursor -> {
+				RandomAccess<? extends IntegerType<?>> index = labeling.getIndexImg()
+					.randomAccess();
+				RandomAccess<IntType> out = result.randomAccess();
+				while (cursor.hasNext()) {
+					cursor.fwd();
+					index.setPosition(cursor);
+					int classIndex = classIndices[index.get().getInteger()];
+					if (classIndex < 0) continue;
+					out.setPosition(cursor);
+					out.get().set(classIndex);
+				}
+			});
 		return result;
 	}
 
@@ -294,7 +288,7 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		segmenter = net.imglib2.trainable_segmentation.classification.Segmenter
 			.fromJson(context, GsonUtils.read(path));
 		segmenter.setUseGpu(useGpu);
-		featureSettings = segmenter.features().settings();
+		setFeatureSettings(segmenter.features().settings());
 	}
 
 	@Override
@@ -383,7 +377,17 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		}
 	}
 
-	public void setFeatureSettings(FeatureSettings featureSettings) {
+	synchronized public void setFeatureSettings(FeatureSettings featureSettings) {
 		this.featureSettings = featureSettings;
+		// NB: The cached feature stacks and samples of the old settings are not
+		// used anymore.
+		featureStackCache.clear(this);
+		trainingSamples.clear();
+	}
+
+	@Override
+	synchronized public void close() {
+		featureStackCache.clear(this);
+		trainingSamples.clear();
 	}
 }
@@ -0,0 +1,315 @@
+
+package net.imglib2.labkit.segmentation.weka;
+
+import gnu.trove.list.TFloatList;
+import gnu.trove.list.array.TFloatArrayList;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.labkit.labeling.Label;
+import net.imglib2.labkit.labeling.Labeling;
+import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.trainable_segmentation.classification.Training;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.Composite;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the training samples, the feature vectors together with their class,
+ * from one training round to the next. The samples are grouped by the tiles of
+ * the labeling's index image. Only the tiles, that were modified since the
+ * previous round, are extracted again, all other samples are reused.
+ * <p>
+ * This requires a {@link SparseRandomAccessIntType} as index image of the
+ * labeling, see {@link Labeling#supportsSnapshot()}. The modified tiles are
+ * found by the {@link SparseRandomAccessIntType#tileVersions()}, no copy of
+ * the labeling is kept between the rounds. If the label sets changed, or are
+ * mapped to different classes, for example because a label was renamed, all
+ * samples of the labeling are extracted again.
+ * <p>
+ * This class is not thread safe, {@link TrainableSegmentationSegmenter}
+ * synchronizes the training.
+ */
+class TrainingSamples {
+
+	private final Map<FeatureStackCache.Key, LabelingState> labelings =
+		new HashMap<>();
+
+	private final Map<FeatureStackCache.Key, Map<Integer, TileSamples>> frames =
+		new HashMap<>();
+
+	private final Set<FeatureStackCache.Key> used = new HashSet<>();
+
+	/**
+	 * Compares the labeling to the previous training round.
+	 *
+	 * @param key Identifies the image, the labeling belongs to.
+	 * @return The tiles of the labeling, that need to be extracted again, or
+	 *         {@code null} if the labeling doesn't support incremental
+	 *         extraction of samples.
+	 */
+	Changes changes(FeatureStackCache.Key key, Labeling labeling,
+		List<String> classes)
+	{
+		if (!labeling.supportsSnapshot()) return null;
+		used.add(key);
+		// NB: The previous state is removed until all frames are updated. If
+		// the extraction fails, the next round starts from scratch.
+		LabelingState previous = labelings.remove(key);
+		SparseRandomAccessIntType indexImg = (SparseRandomAccessIntType) labeling
+			.getIndexImg();
+		// NB: The versions are taken before the samples are extracted. A tile
+		// modified meanwhile is therefore extracted again in the next round.
+		LabelingState current = new LabelingState(indexImg.tileVersions(),
+			labelSetClasses(labeling, classes));
+		int[] modifiedTiles = previous != null && previous.sameClasses(current) &&
+			previous.versions.length == current.versions.length ? indexImg
+				.modifiedTiles(previous.versions) : null;
+		return new Changes(key, indexImg, current, modifiedTiles);
+	}
+
+	/**
+	 * Remembers the state of the labeling, after the samples of all its frames
+	 * were updated with {@link #addSamples}.
+	 */
+	void finish(Changes changes) {
+		labelings.put(changes.key, changes.current);
+	}
+
+	/**
+	 * Updates the samples of a frame of the labeling, and adds all samples of
+	 * the frame to the training.
+	 *
+	 * @param frameKey The key of the frame, this is the key passed to
+	 *          {@link #changes}, or a slice of it.
+	 * @param frame The labeling or a slice of it, see
+	 *          {@link net.imglib2.labkit.labeling.Labelings#slices(Labeling)}.
+	 * @param featureStack Supplies the features of the frame, only called if
+	 *          samples need to be extracted.
+	 */
+	void addSamples(Training training, List<String> classes,
+		FeatureStackCache.Key frameKey, Labeling frame, Changes changes,
+		Supplier<FeatureStackCache.FeatureStack> featureStack)
+	{
+		used.add(frameKey);
+		Map<Integer, TileSamples> tiles = changes.modifiedTiles != null ? frames
+			.get(frameKey) : null;
+		int[] update = changes.modifiedTiles;
+		if (tiles == null) {
+			tiles = new HashMap<>();
+			update = changes.indexImg.nonEmptyTiles();
+		}
+		frames.put(frameKey, tiles);
+		FeatureStackCache.FeatureStack features = null;
+		for (int tile : update) {
+			Interval interval = frameInterval(changes.indexImg, tile,
+				frameKey.slicePositions(), frame.numDimensions());
+			if (interval == null) continue;
+			tiles.remove(tile);
+			if (features == null) features = featureStack.get();
+			TileSamples samples = extract(frame, interval,
+				changes.current.labelSetClasses, features);
+			if (!samples.isEmpty()) tiles.put(tile, samples);
+		}
+		for (TileSamples samples : tiles.values())
+			samples.addTo(training, classes);
+	}
+
+	/**
+	 * Removes the samples of all labelings and frames, that weren't used since
+	 * the last call of this method.
+	 */
+	void retainUsed() {
+		labelings.keySet().retainAll(used);
+		frames.keySet().retainAll(used);
+		used.clear();
+	}
+
+	void clear() {
+		labelings.clear();
+		frames.clear();
+		used.clear();
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * @return The class name for each label set of the labeling, or null if
+	 *         the label set belongs to no class.
+	 */
+	private static String[] labelSetClasses(Labeling labeling,
+		List<String> classes)
+	{
+		// NB: Same as the class index of a label set, used for labelings without
+		// incremental extraction.
+		return labeling.getLabelSets().stream().map(set -> set.stream().map(
+			Label::name).filter(classes::contains).min((a, b) -> Integer.compare(
+				classes.indexOf(a), classes.indexOf(b))).orElse(null)).toArray(
+					String[]::new);
+	}
+
+	/**
+	 * @return The part of the tile, that is within the frame, in the
+	 *         coordinates of the frame. Null if the tile doesn't intersect the
+	 *         frame.
+	 */
+	private static Interval frameInterval(SparseRandomAccessIntType indexImg,
+		int tileIndex, List<Long> slicePositions, int frameDimensions)
+	{
+		Interval tile = indexImg.tileInterval(tileIndex);
+		// NB: Each slice removes the last dimension, see Labelings.slices.
+		for (int i = 0; i < slicePositions.size(); i++) {
+			int d = indexImg.numDimensions() - 1 - i;
+			long position = indexImg.min(d) + slicePositions.get(i);
+			if (position < tile.min(d) || position > tile.max(d)) return null;
+		}
+		return new FinalInterval(Arrays.copyOf(Intervals.minAsLongArray(tile),
+			frameDimensions), Arrays.copyOf(Intervals.maxAsLongArray(tile),
+				frameDimensions));
+	}
+
+	private static TileSamples extract(Labeling frame, Interval interval,
+		String[] labelSetClasses, FeatureStackCache.FeatureStack featureStack)
+	{
+		TileSamples samples = new TileSamples(featureStack.count());
+		Cursor<?> cursor = frame.sparsityCursor(interval);
+		RandomAccess<? extends IntegerType<?>> index = frame.getIndexImg()
+			.randomAccess();
+		RandomAccess<? extends Composite<? extends RealType<?>>> features = Views
+			.collapse(featureStack.img()).randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			index.setPosition(cursor);
+			String className = labelSetClasses[index.get().getInteger()];
+			if (className == null) continue;
+			features.setPosition(cursor);
+			samples.add(className, features.get());
+			featureStack.cellUsed(cursor);
+		}
+		return samples;
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * The tiles that need to be extracted again, see {@link #changes}.
+	 */
+	static class Changes {
+
+		private final FeatureStackCache.Key key;
+
+		private final SparseRandomAccessIntType indexImg;
+
+		private final LabelingState current;
+
+		private final int[] modifiedTiles;
+
+		private Changes(FeatureStackCache.Key key,
+			SparseRandomAccessIntType indexImg, LabelingState current,
+			int[] modifiedTiles)
+		{
+			this.key = key;
+			this.indexImg = indexImg;
+			this.current = current;
+			this.modifiedTiles = modifiedTiles;
+		}
+	}
+
+	/**
+	 * The state of a labeling after a training round: The versions of the
+	 * tiles of its index image, and the classes of its label sets.
+	 */
+	private static class LabelingState {
+
+		private final long[] versions;
+
+		private final String[] labelSetClasses;
+
+		private LabelingState(long[] versions, String[] labelSetClasses) {
+			this.versions = versions;
+			this.labelSetClasses = labelSetClasses;
+		}
+
+		/**
+		 * @return True if both states have the same number of label sets, and
+		 *         each label set belongs to the same class in both.
+		 */
+		private boolean sameClasses(LabelingState other) {
+			return Arrays.equals(labelSetClasses, other.labelSetClasses);
+		}
+	}
+
+	/**
+	 * The samples of one tile, the feature vectors are stored one after
+	 * another, grouped by class name.
+	 */
+	private static class TileSamples {
+
+		private final int count;
+
+		private final Map<String, TFloatList> features = new HashMap<>();
+
+		private TileSamples(int count) {
+			this.count = count;
+		}
+
+		private void add(String className,
+			Composite<? extends RealType<?>> values)
+		{
+			TFloatList list = features.computeIfAbsent(className,
+				ignore -> new TFloatArrayList());
+			for (int i = 0; i < count; i++)
+				list.add(values.get(i).getRealFloat());
+		}
+
+		private boolean isEmpty() {
+			return features.isEmpty();
+		}
+
+		private void addTo(Training training, List<String> classes) {
+			features.forEach((className, list) -> {
+				int classIndex = classes.indexOf(className);
+				if (classIndex < 0) return;
+				SampleComposite sample = new SampleComposite(list);
+				for (int offset = 0; offset < list.size(); offset += count) {
+					sample.offset = offset;
+					training.add(sample, classIndex);
+				}
+			});
+		}
+	}
+
+	/**
+	 * A feature vector within a {@link TFloatList}.
+	 */
+	private static class SampleComposite implements Composite<FloatType> {
+
+		private final TFloatList list;
+
+		private final FloatType value = new FloatType();
+
+		private int offset;
+
+		private SampleComposite(TFloatList list) {
+			this.list = list;
+		}
+
+		@Override
+		public FloatType get(long i) {
+			value.set(list.get(offset + (int) i));
+			return value;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+
+package net.imglib2.sparse;
+
+import java.util.Arrays;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Splits a sequence of weighted items into consecutive chunks of roughly equal
+ * total weight. Used to split cursors for parallel iteration.
+ */
+class Chunks {
+
+	private Chunks() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * @return The boundaries of the chunks: chunk {@code i} covers the items
+	 *         from {@code result[i]} (inclusive) to {@code result[i + 1]}
+	 *         (exclusive). There are at most {@code numChunks} chunks, none of
+	 *         them empty.
+	 */
+	static int[] split(int numItems, IntToLongFunction weight, int numChunks) {
+		if (numChunks < 1) throw new IllegalArgumentException(
+			"Number of chunks must be positive.");
+		if (numItems == 0) return new int[] { 0 };
+		long total = 0;
+		for (int i = 0; i < numItems; i++)
+			total += weight.applyAsLong(i);
+		int[] bounds = new int[Math.min(numChunks, numItems) + 1];
+		int count = 1;
+		long sum = 0;
+		for (int i = 0; i < numItems - 1 && count < bounds.length - 1; i++) {
+			sum += weight.applyAsLong(i);
+			if (sum * numChunks >= total * count) bounds[count++] = i + 1;
+		}
+		bounds[count] = numItems;
+		return Arrays.copyOf(bounds, count + 1);
+	}
+}
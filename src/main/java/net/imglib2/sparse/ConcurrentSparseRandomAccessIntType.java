@@ -0,0 +1,216 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Interval;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Thread safe variant of {@link SparseRandomAccessIntType}.
+ * <p>
+ * Every access to a tile is guarded by one of a fixed number of locks, the
+ * lock is chosen by the tile index. Threads that write to different tiles
+ * rarely compete for the same lock, which allows parallel writes to scale with
+ * the number of threads.
+ * <p>
+ * The cursors are weakly consistent: A cursor visits the pixels of a tile as
+ * they were, when the cursor entered the tile. Tiles that become non-empty
+ * after the cursor was created are not visited.
+ * <p>
+ * The methods that look at all tiles, for example {@link #nonEmptyTiles()},
+ * {@link #modifiedTiles(long[])} or the size of the
+ * {@link #sparsityPattern()}, read each tile under its lock. They are weakly
+ * consistent in the same way as the cursors: Tiles written concurrently may
+ * or may not be reported.
+ * <p>
+ * The change listener is notified while the lock of the tile is held. The
+ * changes of a pixel are therefore reported in the order they are made. Work
+ * of the listener that may block, is done in
+ * {@link ChangeListener#prepare(int, int)} before the lock is taken, which
+ * avoids lock order inversions with locks of the listener.
+ */
+public class ConcurrentSparseRandomAccessIntType extends
+	SparseRandomAccessIntType
+{
+
+	private static final int NUM_LOCKS = 1024;
+
+	private final ReentrantLock[] locks = initLocks();
+
+	public ConcurrentSparseRandomAccessIntType(Interval source) {
+		super(source);
+	}
+
+	public ConcurrentSparseRandomAccessIntType(Interval source,
+		int noEntryValue)
+	{
+		super(source, noEntryValue);
+	}
+
+	public ConcurrentSparseRandomAccessIntType(Interval source, int noEntryValue,
+		TileStorage storage)
+	{
+		super(source, noEntryValue, storage);
+	}
+
+	public ConcurrentSparseRandomAccessIntType(Interval source, int noEntryValue,
+		TileStorage storage, TileLayout layout)
+	{
+		super(source, noEntryValue, storage, layout);
+	}
+
+	private ConcurrentSparseRandomAccessIntType(
+		ConcurrentSparseRandomAccessIntType source)
+	{
+		super(source);
+	}
+
+	/**
+	 * Same as {@link SparseRandomAccessIntType#snapshot()}, but may be called
+	 * while other threads write to this image. All locks are held while the
+	 * tiles are shared with the snapshot. A concurrent write therefore either
+	 * happens before the snapshot, and is contained in it, or after the
+	 * snapshot, and copies the shared tile.
+	 */
+	@Override
+	public ConcurrentSparseRandomAccessIntType snapshot() {
+		return withAllLocks(() -> new ConcurrentSparseRandomAccessIntType(this));
+	}
+
+	/**
+	 * Same as {@link SparseRandomAccessIntType#tileVersions()}, but may be
+	 * called while other threads write to this image. All locks are held while
+	 * the versions are copied.
+	 */
+	@Override
+	public long[] tileVersions() {
+		return withAllLocks(super::tileVersions);
+	}
+
+	private static ReentrantLock[] initLocks() {
+		ReentrantLock[] locks = new ReentrantLock[NUM_LOCKS];
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new ReentrantLock();
+		return locks;
+	}
+
+	private ReentrantLock lock(int tileIndex) {
+		return locks[tileIndex & (NUM_LOCKS - 1)];
+	}
+
+	/**
+	 * Runs the action, while holding all locks. The locks are acquired in a
+	 * loop, always in the same order.
+	 */
+	private <T> T withAllLocks(Supplier<T> action) {
+		int locked = 0;
+		try {
+			for (; locked < locks.length; locked++)
+				locks[locked].lock();
+			return action.get();
+		}
+		finally {
+			for (int i = locked - 1; i >= 0; i--)
+				locks[i].unlock();
+		}
+	}
+
+	@Override
+	IntTile tile(int tileIndex) {
+		ReentrantLock lock = lock(tileIndex);
+		lock.lock();
+		try {
+			return super.tile(tileIndex);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	long tileVersion(int tileIndex) {
+		ReentrantLock lock = lock(tileIndex);
+		lock.lock();
+		try {
+			return super.tileVersion(tileIndex);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	int get(int tileIndex, int offset) {
+		ReentrantLock lock = lock(tileIndex);
+		lock.lock();
+		try {
+			return super.get(tileIndex, offset);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	void set(int tileIndex, int offset, int value) {
+		ReentrantLock lock = lock(tileIndex);
+		while (true) {
+			ChangeListener listener = changeListener();
+			int oldValue;
+			lock.lock();
+			try {
+				oldValue = super.get(tileIndex, offset);
+				if (oldValue == value) return;
+				if (listener == null || listener.isPrepared(oldValue, value)) {
+					super.replace(tileIndex, offset, value);
+					if (listener != null) listener.valueChanged(flatIndex(tileIndex,
+						offset), oldValue, value);
+					return;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			// NB: The pixel may change, while the listener is prepared without the
+			// lock. The old value is therefore read again.
+			listener.prepare(oldValue, value);
+		}
+	}
+
+	@Override
+	int replace(int tileIndex, int offset, int value) {
+		ReentrantLock lock = lock(tileIndex);
+		lock.lock();
+		try {
+			return super.replace(tileIndex, offset, value);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	int[] offsets(int tileIndex) {
+		ReentrantLock lock = lock(tileIndex);
+		lock.lock();
+		try {
+			return super.offsets(tileIndex);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	int numEntries(int tileIndex) {
+		ReentrantLock lock = lock(tileIndex);
+		lock.lock();
+		try {
+			return super.numEntries(tileIndex);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+
+package net.imglib2.sparse;
+
+/**
+ * {@link IntTile} that stores the values of all pixels in an array.
+ */
+class DenseIntTile extends IntTile {
+
+	private final int[] values;
+	private final int noEntryValue;
+	private int size;
+
+	DenseIntTile(int[] values, int size, int noEntryValue) {
+		this.values = values;
+		this.size = size;
+		this.noEntryValue = noEntryValue;
+	}
+
+	@Override
+	int get(int offset) {
+		return values[offset];
+	}
+
+	@Override
+	IntTile set(int offset, int value) {
+		int old = values[offset];
+		if (old == value) return this;
+		values[offset] = value;
+		if (old == noEntryValue) size++;
+		else if (value == noEntryValue) {
+			size--;
+			if (size == 0) return null;
+			if (size < values.length / SPARSE_RATIO) return SparseIntTile.fromDense(
+				values, size, noEntryValue);
+		}
+		return this;
+	}
+
+	@Override
+	int size() {
+		return size;
+	}
+
+	@Override
+	int[] offsets() {
+		int[] offsets = new int[size];
+		int i = 0;
+		for (int offset = 0; offset < values.length; offset++)
+			if (values[offset] != noEntryValue) offsets[i++] = offset;
+		return offsets;
+	}
+
+	@Override
+	IntTile copy() {
+		return new DenseIntTile(values.clone(), size, noEntryValue);
+	}
+}
@@ -0,0 +1,86 @@
+
+package net.imglib2.sparse;
+
+/**
+ * A tile of a {@link SparseRandomAccessIntType}. Stores the values of the
+ * pixels within one tile of a {@link TileGrid}, addressed by their offset.
+ * <p>
+ * A tile chooses its representation according to how many pixels are set:
+ * {@link SparseIntTile} stores the few set pixels in a hash map,
+ * {@link DenseIntTile} stores all pixels in an array. Modifications return the
+ * tile that replaces the modified one, which allows the tile to change its
+ * representation, and {@code null} is returned for an empty tile.
+ * {@link OffHeapSparseIntTile} and {@link OffHeapDenseIntTile} are the
+ * equivalents, that store the values outside of the Java heap.
+ * <p>
+ * A tile can be shared between an image and its snapshots. The owner is set
+ * by the image, that may modify the tile without copying it first.
+ */
+abstract class IntTile {
+
+	/**
+	 * A {@link SparseIntTile} becomes dense, if more than 1 / DENSE_RATIO of the
+	 * pixels are set.
+	 */
+	static final int DENSE_RATIO = 4;
+
+	/**
+	 * A {@link DenseIntTile} becomes sparse, if less than 1 / SPARSE_RATIO of
+	 * the pixels are set. The gap to {@link #DENSE_RATIO} avoids converting back
+	 * and forth.
+	 */
+	static final int SPARSE_RATIO = 16;
+
+	static final int[] NO_OFFSETS = new int[0];
+
+	Object owner = null;
+
+	abstract int get(int offset);
+
+	/**
+	 * Sets the value of the pixel at the given offset. Setting the no entry value
+	 * removes the pixel.
+	 *
+	 * @return The tile that replaces this tile. This might be this tile itself,
+	 *         a tile with a different representation, or {@code null} if the
+	 *         tile became empty.
+	 */
+	abstract IntTile set(int offset, int value);
+
+	/**
+	 * @return Number of pixels set.
+	 */
+	abstract int size();
+
+	/**
+	 * @return Sorted array of the offsets of all pixels set. The returned array
+	 *         is not modified by later changes to the tile.
+	 */
+	abstract int[] offsets();
+
+	abstract IntTile copy();
+
+	/**
+	 * Called when an image starts to reference the tile. Only tiles stored
+	 * outside of the Java heap count the references, to free their memory.
+	 */
+	void retain() {
+		// NB: The garbage collector frees tiles on the heap.
+	}
+
+	/**
+	 * Called when an image no longer references the tile. The tile is freed,
+	 * when the last reference is released.
+	 */
+	void release() {
+		// NB: The garbage collector frees tiles on the heap.
+	}
+
+	/**
+	 * Frees the tile immediately, it must not be used afterwards. Called for a
+	 * tile, that was replaced by {@link #set}.
+	 */
+	void free() {
+		// NB: The garbage collector frees tiles on the heap.
+	}
+}
@@ -48,6 +48,23 @@ public class IntervalIndexer2 {
 			positionable.setPosition(indexToPosition(index, d), d);
 	}
 
+	/**
+	 * Same as {@link #indexToPosition(long, Positionable)}. But if
+	 * {@code position} already holds the position of {@code previousIndex}, and
+	 * both indices belong to the same line along the first dimension, only one
+	 * addition is needed.
+	 */
+	public void indexToPosition(long previousIndex, long index, long[] position) {
+		long x = position[0] - min[0] + (index - previousIndex);
+		if (index >= previousIndex && x < dimensions[0]) position[0] = x + min[0];
+		else indexToPosition(index, position);
+	}
+
+	public void indexToPosition(long index, long[] position) {
+		for (int d = 0; d < dimensions.length; ++d)
+			position[d] = indexToPosition(index, d);
+	}
+
 	public long indexToPosition(long index, int d) {
 		return index / stepSize[d] % dimensions[d] + min[d];
 	}
@@ -0,0 +1,660 @@
+
+package net.imglib2.sparse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sorted set of non-negative long values, compressed similar to roaring
+ * bitmaps.
+ * <p>
+ * The values are grouped by their upper 48 bits. Each group is stored in a
+ * container, that holds the lower 16 bits of the values: either as sorted
+ * {@code char[]} (up to 4096 values) or as bitmap of 65536 bits. A value costs
+ * at most 2 bytes, and a large compact region only 1 bit per value. Union,
+ * intersection and difference are computed container by container.
+ * <p>
+ * {@link SortedIterator}s iterate the values in increasing order, are created
+ * in constant time and can be copied. The bitmap must not be modified while
+ * it's iterated.
+ */
+public class LongBitmap {
+
+	private static final int ARRAY_MAX_SIZE = 4096;
+
+	private static final int BITMAP_WORDS = 1 << 10;
+
+	private long[] keys;
+
+	private Container[] containers;
+
+	private int numContainers;
+
+	private long size;
+
+	private int lastAccessed;
+
+	public LongBitmap() {
+		this(new long[4], new Container[4], 0);
+	}
+
+	private LongBitmap(long[] keys, Container[] containers, int numContainers) {
+		this.keys = keys;
+		this.containers = containers;
+		this.numContainers = numContainers;
+		this.size = 0;
+		for (int i = 0; i < numContainers; i++)
+			size += containers[i].cardinality();
+	}
+
+	public boolean add(long value) {
+		long key = value >>> 16;
+		int i = findContainer(key);
+		if (i < 0) {
+			i = -i - 1;
+			insertContainer(i, key, new ArrayContainer());
+		}
+		Container container = containers[i];
+		int cardinality = container.cardinality();
+		containers[i] = container.add(low(value));
+		boolean added = containers[i].cardinality() != cardinality;
+		if (added) size++;
+		return added;
+	}
+
+	/**
+	 * Adds all values from {@code start} (inclusive) to {@code end}
+	 * (exclusive). Long ranges are set word by word, instead of value by value.
+	 */
+	public void addRange(long start, long end) {
+		long value = start;
+		while (value < end) {
+			long key = value >>> 16;
+			long containerEnd = Math.min(end, (key + 1) << 16);
+			int i = findContainer(key);
+			Container container = i < 0 ? null : containers[i];
+			int from = low(value);
+			int to = (int) (containerEnd - (key << 16));
+			if (container instanceof BitmapContainer || to - from >= BITMAP_WORDS) {
+				long[] words = container == null ? new long[BITMAP_WORDS] : container
+					.toWords();
+				setBits(words, from, to);
+				Container result = BitmapContainer.of(words);
+				if (i < 0) insertContainer(-i - 1, key, result);
+				else containers[i] = result;
+				size += result.cardinality() - (container == null ? 0 : container
+					.cardinality());
+			}
+			else for (long v = value; v < containerEnd; v++)
+				add(v);
+			value = containerEnd;
+		}
+	}
+
+	/**
+	 * Adds all values of the given bitmap. Unlike {@link #union}, this bitmap
+	 * is modified in place.
+	 */
+	public void addAll(LongBitmap other) {
+		LongBitmap union = union(this, other);
+		keys = union.keys;
+		containers = union.containers;
+		numContainers = union.numContainers;
+		size = union.size;
+		lastAccessed = 0;
+	}
+
+	public boolean remove(long value) {
+		int i = findContainer(value >>> 16);
+		if (i < 0) return false;
+		Container container = containers[i];
+		int cardinality = container.cardinality();
+		Container result = container.remove(low(value));
+		if (result == null) removeContainer(i);
+		else containers[i] = result;
+		boolean removed = result == null || result.cardinality() != cardinality;
+		if (removed) size--;
+		return removed;
+	}
+
+	public boolean contains(long value) {
+		int i = findContainer(value >>> 16);
+		return i >= 0 && containers[i].contains(low(value));
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(containers, 0, numContainers, null);
+		numContainers = 0;
+		size = 0;
+	}
+
+	public LongBitmap copy() {
+		Container[] containers = new Container[this.containers.length];
+		for (int i = 0; i < numContainers; i++)
+			containers[i] = this.containers[i].copy();
+		return new LongBitmap(keys.clone(), containers, numContainers);
+	}
+
+	public SortedIterator sortedIterator() {
+		return new SortedIterator(0, numContainers);
+	}
+
+	/**
+	 * Splits the values into at most {@code numChunks} ranges with roughly
+	 * equal numbers of values. Each of the returned iterators visits one of
+	 * these ranges in increasing order. The ranges are in increasing order too.
+	 * The bitmap must not be modified while the iterators are in use.
+	 */
+	public List<SortedIterator> split(int numChunks) {
+		int[] bounds = Chunks.split(numContainers, i -> containers[i]
+			.cardinality(), numChunks);
+		List<SortedIterator> result = new ArrayList<>(bounds.length - 1);
+		for (int i = 0; i < bounds.length - 1; i++)
+			result.add(new SortedIterator(bounds[i], bounds[i + 1]));
+		return result;
+	}
+
+	public long[] toArray() {
+		long[] result = new long[Math.toIntExact(size)];
+		SortedIterator iterator = sortedIterator();
+		for (int i = 0; iterator.hasNext(); i++)
+			result[i] = iterator.next();
+		return result;
+	}
+
+	/**
+	 * @return Approximate number of bytes used to store the values.
+	 */
+	public long memoryUsage() {
+		long sum = 16L * keys.length;
+		for (int i = 0; i < numContainers; i++)
+			sum += containers[i].memoryUsage();
+		return sum;
+	}
+
+	// -- Set algebra --
+
+	public static LongBitmap union(LongBitmap a, LongBitmap b) {
+		Builder result = new Builder(a.numContainers + b.numContainers);
+		int i = 0, j = 0;
+		while (i < a.numContainers || j < b.numContainers) {
+			long keyA = i < a.numContainers ? a.keys[i] : Long.MAX_VALUE;
+			long keyB = j < b.numContainers ? b.keys[j] : Long.MAX_VALUE;
+			if (keyA < keyB) result.add(keyA, a.containers[i++].copy());
+			else if (keyB < keyA) result.add(keyB, b.containers[j++].copy());
+			else result.add(keyA, or(a.containers[i++], b.containers[j++]));
+		}
+		return result.build();
+	}
+
+	public static LongBitmap intersection(LongBitmap a, LongBitmap b) {
+		Builder result = new Builder(Math.min(a.numContainers, b.numContainers));
+		int i = 0, j = 0;
+		while (i < a.numContainers && j < b.numContainers) {
+			long keyA = a.keys[i];
+			long keyB = b.keys[j];
+			if (keyA < keyB) i++;
+			else if (keyB < keyA) j++;
+			else result.add(keyA, and(a.containers[i++], b.containers[j++]));
+		}
+		return result.build();
+	}
+
+	public static LongBitmap difference(LongBitmap a, LongBitmap b) {
+		Builder result = new Builder(a.numContainers);
+		int j = 0;
+		for (int i = 0; i < a.numContainers; i++) {
+			long key = a.keys[i];
+			while (j < b.numContainers && b.keys[j] < key)
+				j++;
+			if (j < b.numContainers && b.keys[j] == key) result.add(key, andNot(
+				a.containers[i], b.containers[j]));
+			else result.add(key, a.containers[i].copy());
+		}
+		return result.build();
+	}
+
+	// -- Helper methods --
+
+	private static char low(long value) {
+		return (char) value;
+	}
+
+	/**
+	 * Sets the bits {@code from} (inclusive) to {@code to} (exclusive).
+	 */
+	private static void setBits(long[] words, int from, int to) {
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (first == last) {
+			words[first] |= firstMask & lastMask;
+			return;
+		}
+		words[first] |= firstMask;
+		for (int k = first + 1; k < last; k++)
+			words[k] = -1L;
+		words[last] |= lastMask;
+	}
+
+	private int findContainer(long key) {
+		int last = lastAccessed;
+		if (last < numContainers && keys[last] == key) return last;
+		int i = Arrays.binarySearch(keys, 0, numContainers, key);
+		if (i >= 0) lastAccessed = i;
+		return i;
+	}
+
+	private void insertContainer(int i, long key, Container container) {
+		if (numContainers == keys.length) {
+			int capacity = keys.length * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			containers = Arrays.copyOf(containers, capacity);
+		}
+		System.arraycopy(keys, i, keys, i + 1, numContainers - i);
+		System.arraycopy(containers, i, containers, i + 1, numContainers - i);
+		keys[i] = key;
+		containers[i] = container;
+		numContainers++;
+	}
+
+	private void removeContainer(int i) {
+		System.arraycopy(keys, i + 1, keys, i, numContainers - i - 1);
+		System.arraycopy(containers, i + 1, containers, i, numContainers - i - 1);
+		numContainers--;
+		containers[numContainers] = null;
+	}
+
+	private static Container or(Container a, Container b) {
+		if (a instanceof ArrayContainer && b instanceof ArrayContainer && a
+			.cardinality() + b.cardinality() <= ARRAY_MAX_SIZE) return ArrayContainer
+				.merge((ArrayContainer) a, (ArrayContainer) b);
+		long[] words = a.toWords();
+		b.addTo(words);
+		return BitmapContainer.of(words);
+	}
+
+	private static Container and(Container a, Container b) {
+		if (a instanceof ArrayContainer) return ((ArrayContainer) a).filter(b,
+			true);
+		if (b instanceof ArrayContainer) return ((ArrayContainer) b).filter(a,
+			true);
+		long[] words = a.toWords();
+		long[] other = ((BitmapContainer) b).words;
+		for (int k = 0; k < BITMAP_WORDS; k++)
+			words[k] &= other[k];
+		return BitmapContainer.of(words);
+	}
+
+	private static Container andNot(Container a, Container b) {
+		if (a instanceof ArrayContainer) return ((ArrayContainer) a).filter(b,
+			false);
+		long[] words = a.toWords();
+		b.removeFrom(words);
+		return BitmapContainer.of(words);
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Iterates the values of a {@link LongBitmap} in increasing order.
+	 */
+	public class SortedIterator {
+
+		private final int begin;
+
+		private final int end;
+
+		private int container;
+
+		private int position;
+
+		private SortedIterator(int begin, int end) {
+			this.begin = begin;
+			this.end = end;
+			reset();
+		}
+
+		private SortedIterator(SortedIterator iterator) {
+			this.begin = iterator.begin;
+			this.end = iterator.end;
+			this.container = iterator.container;
+			this.position = iterator.position;
+		}
+
+		public void reset() {
+			container = begin;
+			position = begin < end ? containers[begin].first() : -1;
+		}
+
+		public boolean hasNext() {
+			return container < end;
+		}
+
+		public long next() {
+			Container c = containers[container];
+			long value = (keys[container] << 16) | c.value(position);
+			position = c.next(position);
+			if (position < 0) {
+				container++;
+				if (container < end) position = containers[container]
+					.first();
+			}
+			return value;
+		}
+
+		public SortedIterator copy() {
+			return new SortedIterator(this);
+		}
+	}
+
+	private static class Builder {
+
+		private final long[] keys;
+		private final Container[] containers;
+		private int count = 0;
+
+		private Builder(int capacity) {
+			keys = new long[Math.max(4, capacity)];
+			containers = new Container[keys.length];
+		}
+
+		private void add(long key, Container container) {
+			if (container == null) return;
+			keys[count] = key;
+			containers[count] = container;
+			count++;
+		}
+
+		private LongBitmap build() {
+			return new LongBitmap(keys, containers, count);
+		}
+	}
+
+	/**
+	 * Holds the lower 16 bits of the values that share the same upper bits.
+	 * Modifications return the container that replaces the modified one, or
+	 * {@code null} if it became empty.
+	 */
+	private static abstract class Container {
+
+		abstract Container add(char value);
+
+		abstract Container remove(char value);
+
+		abstract boolean contains(char value);
+
+		abstract int cardinality();
+
+		abstract Container copy();
+
+		/**
+		 * Iteration: {@link #first()} and {@link #next(int)} return an
+		 * implementation specific position, or -1 if there are no more values.
+		 * {@link #value(int)} returns the value at such a position.
+		 */
+		abstract int first();
+
+		abstract int next(int position);
+
+		abstract int value(int position);
+
+		abstract long[] toWords();
+
+		abstract void addTo(long[] words);
+
+		abstract void removeFrom(long[] words);
+
+		abstract long memoryUsage();
+	}
+
+	private static class ArrayContainer extends Container {
+
+		private char[] values;
+
+		private int cardinality;
+
+		private ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		private ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		private static ArrayContainer merge(ArrayContainer a, ArrayContainer b) {
+			char[] result = new char[a.cardinality + b.cardinality];
+			int i = 0, j = 0, k = 0;
+			while (i < a.cardinality && j < b.cardinality) {
+				char va = a.values[i];
+				char vb = b.values[j];
+				if (va <= vb) i++;
+				if (vb <= va) j++;
+				result[k++] = va <= vb ? va : vb;
+			}
+			while (i < a.cardinality)
+				result[k++] = a.values[i++];
+			while (j < b.cardinality)
+				result[k++] = b.values[j++];
+			return new ArrayContainer(result, k);
+		}
+
+		private Container filter(Container other, boolean keepContained) {
+			char[] result = new char[cardinality];
+			int k = 0;
+			for (int i = 0; i < cardinality; i++)
+				if (other.contains(values[i]) == keepContained) result[k++] =
+					values[i];
+			return k == 0 ? null : new ArrayContainer(result, k);
+		}
+
+		@Override
+		Container add(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i >= 0) return this;
+			if (cardinality == ARRAY_MAX_SIZE) return new BitmapContainer(toWords(),
+				cardinality).add(value);
+			i = -i - 1;
+			if (cardinality == values.length) values = Arrays.copyOf(values,
+				Math.min(ARRAY_MAX_SIZE, cardinality * 2));
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			int i = Arrays.binarySearch(values, 0, cardinality, value);
+			if (i < 0) return this;
+			System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+			cardinality--;
+			return cardinality == 0 ? null : this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, cardinality),
+				cardinality);
+		}
+
+		@Override
+		int first() {
+			return cardinality > 0 ? 0 : -1;
+		}
+
+		@Override
+		int next(int position) {
+			return position + 1 < cardinality ? position + 1 : -1;
+		}
+
+		@Override
+		int value(int position) {
+			return values[position];
+		}
+
+		@Override
+		long[] toWords() {
+			long[] words = new long[BITMAP_WORDS];
+			addTo(words);
+			return words;
+		}
+
+		@Override
+		void addTo(long[] words) {
+			for (int i = 0; i < cardinality; i++)
+				words[values[i] >>> 6] |= 1L << values[i];
+		}
+
+		@Override
+		void removeFrom(long[] words) {
+			for (int i = 0; i < cardinality; i++)
+				words[values[i] >>> 6] &= ~(1L << values[i]);
+		}
+
+		@Override
+		long memoryUsage() {
+			return 2L * values.length + 32;
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+
+		private final long[] words;
+
+		private int cardinality;
+
+		private BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		/**
+		 * Returns the best container for the given bits: null, an
+		 * {@link ArrayContainer} or a {@link BitmapContainer}.
+		 */
+		private static Container of(long[] words) {
+			int cardinality = 0;
+			for (long word : words)
+				cardinality += Long.bitCount(word);
+			if (cardinality == 0) return null;
+			BitmapContainer bitmap = new BitmapContainer(words, cardinality);
+			return cardinality <= ARRAY_MAX_SIZE ? bitmap.toArrayContainer()
+				: bitmap;
+		}
+
+		private ArrayContainer toArrayContainer() {
+			char[] values = new char[cardinality];
+			int k = 0;
+			for (int p = first(); p >= 0; p = next(p))
+				values[k++] = (char) p;
+			return new ArrayContainer(values, cardinality);
+		}
+
+		@Override
+		Container add(char value) {
+			long bit = 1L << value;
+			long word = words[value >>> 6];
+			if ((word & bit) == 0) {
+				words[value >>> 6] = word | bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			long bit = 1L << value;
+			long word = words[value >>> 6];
+			if ((word & bit) == 0) return this;
+			words[value >>> 6] = word & ~bit;
+			cardinality--;
+			return cardinality <= ARRAY_MAX_SIZE ? toArrayContainer() : this;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		Container copy() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		@Override
+		int first() {
+			return nextSetBit(0);
+		}
+
+		@Override
+		int next(int position) {
+			return nextSetBit(position + 1);
+		}
+
+		private int nextSetBit(int from) {
+			int w = from >>> 6;
+			if (w >= BITMAP_WORDS) return -1;
+			long word = words[w] & (-1L << from);
+			while (word == 0) {
+				w++;
+				if (w == BITMAP_WORDS) return -1;
+				word = words[w];
+			}
+			return (w << 6) + Long.numberOfTrailingZeros(word);
+		}
+
+		@Override
+		int value(int position) {
+			return position;
+		}
+
+		@Override
+		long[] toWords() {
+			return words.clone();
+		}
+
+		@Override
+		void addTo(long[] words) {
+			for (int k = 0; k < BITMAP_WORDS; k++)
+				words[k] |= this.words[k];
+		}
+
+		@Override
+		void removeFrom(long[] words) {
+			for (int k = 0; k < BITMAP_WORDS; k++)
+				words[k] &= ~this.words[k];
+		}
+
+		@Override
+		long memoryUsage() {
+			return 8L * BITMAP_WORDS + 32;
+		}
+	}
+}
@@ -0,0 +1,336 @@
+
+package net.imglib2.sparse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Memory outside of the Java heap, shared by the {@link OffHeapIntTile}s of a
+ * {@link SparseRandomAccessIntType} and its snapshots.
+ * <p>
+ * The memory is allocated as a few large direct buffers, the slabs, and handed
+ * out in blocks. The size of a block is a power of two. A freed block is put
+ * on the free list of its size, and reused by the next allocation of the same
+ * size. Converting a tile between sparse and dense, or growing its hash
+ * table, therefore doesn't allocate direct buffers.
+ * <p>
+ * If a directory is given, the slabs are mapped from a temporary file in this
+ * directory, instead of being allocated as direct buffers. The operating
+ * system then loads the pages of the file on demand, writes modified pages
+ * back to the file and evicts unmodified pages, when memory is low. The file
+ * is deleted, when the slabs are freed.
+ * <p>
+ * Each image registers itself, see {@link #register}. The slabs are freed as
+ * soon as the last registered image is closed. An image, that is garbage
+ * collected without being closed, releases its tiles the next time a block is
+ * allocated. If no registered image is closed, the slabs are freed by the
+ * garbage collector, like any other direct buffer.
+ * <p>
+ * This class is thread safe.
+ */
+final class OffHeapArena {
+
+	static final long NO_BLOCK = -1;
+
+	private static final int MIN_SLAB_INTS = 1 << 16;
+
+	private static final int MAX_SLAB_INTS = 1 << 22;
+
+	/**
+	 * The directory of the file, that the slabs are mapped from, or
+	 * {@code null} for direct buffers.
+	 */
+	private final Path directory;
+
+	private Path file = null;
+
+	private FileChannel channel = null;
+
+	private long fileSize = 0;
+
+	private final List<ByteBuffer> buffers = new ArrayList<>();
+
+	private final List<IntBuffer> slabs = new ArrayList<>();
+
+	/**
+	 * Number of ints of the last slab, that were handed out.
+	 */
+	private int used = 0;
+
+	private final long[][] freeBlocks = new long[Integer.SIZE][0];
+
+	private final int[] numFreeBlocks = new int[Integer.SIZE];
+
+	private final Set<Registration> registrations = new HashSet<>();
+
+	private final ReferenceQueue<SparseRandomAccessIntType> collected =
+		new ReferenceQueue<>();
+
+	/**
+	 * Creates an arena, that allocates the slabs as direct buffers.
+	 */
+	OffHeapArena() {
+		this(null);
+	}
+
+	/**
+	 * @param directory If not {@code null}, the slabs are mapped from a
+	 *          temporary file, that is created in this directory.
+	 */
+	OffHeapArena(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Registers an image, that stores its tiles in this arena.
+	 *
+	 * @param tiles The tiles of the image. They are released, when the image is
+	 *          closed or garbage collected.
+	 */
+	synchronized Registration register(SparseRandomAccessIntType image,
+		IntTile[] tiles)
+	{
+		Registration registration = new Registration(image, tiles, collected);
+		registrations.add(registration);
+		return registration;
+	}
+
+	/**
+	 * Releases the tiles of a closed image. Frees the slabs, if no other image
+	 * is registered.
+	 */
+	synchronized void unregister(Registration registration) {
+		if (!registrations.remove(registration)) return;
+		registration.clear();
+		releaseTiles(registration.tiles);
+		if (registrations.isEmpty()) freeSlabs();
+	}
+
+	/**
+	 * Allocates a block of the given number of ints, initialized to zero.
+	 *
+	 * @param numInts Must be a power of two.
+	 * @return Identifies the block, see {@link #slab} and {@link #offset}.
+	 */
+	synchronized long allocate(int numInts) {
+		releaseCollected();
+		int exponent = Integer.numberOfTrailingZeros(numInts);
+		if (numFreeBlocks[exponent] > 0) {
+			long block = freeBlocks[exponent][--numFreeBlocks[exponent]];
+			IntBuffer slab = slab(block);
+			int offset = offset(block);
+			for (int i = 0; i < numInts; i++)
+				slab.put(offset + i, 0);
+			return block;
+		}
+		if (slabs.isEmpty() || used + numInts > lastSlab().capacity()) newSlab(
+			numInts);
+		long block = block(slabs.size() - 1, exponent, used);
+		used += numInts;
+		return block;
+	}
+
+	/**
+	 * Returns the block to the free list of its size.
+	 */
+	synchronized void free(long block) {
+		int exponent = (int) (block >>> 32) & (Integer.SIZE - 1);
+		long[] blocks = freeBlocks[exponent];
+		if (numFreeBlocks[exponent] == blocks.length) freeBlocks[exponent] =
+			blocks = Arrays.copyOf(blocks, Math.max(16, 2 * blocks.length));
+		blocks[numFreeBlocks[exponent]++] = block;
+	}
+
+	/**
+	 * @return The slab, that contains the given block.
+	 */
+	synchronized IntBuffer slab(long block) {
+		return slabs.get((int) (block >>> 37));
+	}
+
+	/**
+	 * @return The index of the first int of the block, within its slab.
+	 */
+	static int offset(long block) {
+		return (int) block;
+	}
+
+	/**
+	 * @return The number of bytes of all slabs.
+	 */
+	synchronized long memory() {
+		long sum = 0;
+		for (ByteBuffer buffer : buffers)
+			sum += buffer.capacity();
+		return sum;
+	}
+
+	/**
+	 * @return The file, that the slabs are mapped from, or {@code null} if
+	 *         there is none.
+	 */
+	synchronized Path file() {
+		return file;
+	}
+
+	// -- Helper methods --
+
+	private static long block(int slabIndex, int exponent, int offset) {
+		return (long) slabIndex << 37 | (long) exponent << 32 | offset;
+	}
+
+	private IntBuffer lastSlab() {
+		return slabs.get(slabs.size() - 1);
+	}
+
+	private void newSlab(int numInts) {
+		// NB: The rest of the current slab is split into blocks, that are put on
+		// the free lists.
+		if (!slabs.isEmpty()) {
+			int slabIndex = slabs.size() - 1;
+			int capacity = lastSlab().capacity();
+			while (used < capacity) {
+				int size = Integer.highestOneBit(capacity - used);
+				free(block(slabIndex, Integer.numberOfTrailingZeros(size), used));
+				used += size;
+			}
+		}
+		int slabInts = Math.max(numInts, Math.min(MAX_SLAB_INTS,
+			MIN_SLAB_INTS << Math.min(slabs.size(), 6)));
+		ByteBuffer buffer = (directory == null ? ByteBuffer.allocateDirect(4 *
+			slabInts) : mapSlab(4L * slabInts)).order(ByteOrder.nativeOrder());
+		buffers.add(buffer);
+		slabs.add(buffer.asIntBuffer());
+		used = 0;
+	}
+
+	/**
+	 * Maps the next region of the file, the file grows by the size of the
+	 * slab. The region is initialized to zero. On most file systems, pages that
+	 * were never written take no disk space.
+	 */
+	private ByteBuffer mapSlab(long numBytes) {
+		try {
+			if (channel == null) {
+				file = Files.createTempFile(directory, "tiles-", ".bin");
+				file.toFile().deleteOnExit();
+				channel = FileChannel.open(file, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+				fileSize = 0;
+			}
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+				fileSize, numBytes);
+			fileSize += numBytes;
+			return buffer;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void releaseCollected() {
+		Reference<?> reference;
+		while ((reference = collected.poll()) != null) {
+			Registration registration = (Registration) reference;
+			if (registrations.remove(registration)) releaseTiles(
+				registration.tiles);
+		}
+	}
+
+	private static void releaseTiles(IntTile[] tiles) {
+		for (IntTile tile : tiles)
+			if (tile != null) tile.release();
+	}
+
+	private void freeSlabs() {
+		buffers.forEach(OffHeapArena::freeDirect);
+		buffers.clear();
+		slabs.clear();
+		used = 0;
+		for (int i = 0; i < freeBlocks.length; i++) {
+			freeBlocks[i] = new long[0];
+			numFreeBlocks[i] = 0;
+		}
+		if (channel != null) deleteFile();
+	}
+
+	private void deleteFile() {
+		try {
+			channel.close();
+			Files.deleteIfExists(file);
+		}
+		catch (IOException ignored) {
+			// NB: The file is deleted, when the JVM exits.
+		}
+		channel = null;
+		file = null;
+		fileSize = 0;
+	}
+
+	/**
+	 * Frees the memory of a direct buffer immediately, instead of waiting for
+	 * the garbage collector. A mapped buffer is unmapped. If the JVM doesn't
+	 * allow this, the buffer is left to the garbage collector.
+	 */
+	private static void freeDirect(ByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe
+				.get(null), buffer);
+		}
+		catch (NoSuchMethodException e) {
+			// NB: Java 8 has no Unsafe.invokeCleaner, but a public cleaner method.
+			try {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+			catch (ReflectiveOperationException | RuntimeException ignored) {
+				// NB: Left to the garbage collector.
+			}
+		}
+		catch (ReflectiveOperationException | RuntimeException ignored) {
+			// NB: Left to the garbage collector.
+		}
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * An image registered with the arena. The reference is enqueued, when the
+	 * image is garbage collected, the tiles are kept to release them.
+	 */
+	static final class Registration extends
+		PhantomReference<SparseRandomAccessIntType>
+	{
+
+		private final IntTile[] tiles;
+
+		private Registration(SparseRandomAccessIntType image, IntTile[] tiles,
+			ReferenceQueue<SparseRandomAccessIntType> queue)
+		{
+			super(image, queue);
+			this.tiles = tiles;
+		}
+	}
+}
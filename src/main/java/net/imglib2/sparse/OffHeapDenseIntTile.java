@@ -0,0 +1,78 @@
+
+package net.imglib2.sparse;
+
+/**
+ * {@link IntTile} that stores the values of all pixels in a block outside of
+ * the Java heap.
+ */
+class OffHeapDenseIntTile extends OffHeapIntTile {
+
+	private final int capacity;
+	private final int noEntryValue;
+	private int size;
+
+	/**
+	 * Creates a tile without any pixel set.
+	 */
+	OffHeapDenseIntTile(OffHeapArena arena, int capacity, int noEntryValue) {
+		this(arena, capacity, noEntryValue, 0);
+		if (noEntryValue != 0) for (int i = 0; i < capacity; i++)
+			putInt(i, noEntryValue);
+	}
+
+	private OffHeapDenseIntTile(OffHeapArena arena, int capacity,
+		int noEntryValue, int size)
+	{
+		super(arena);
+		this.capacity = capacity;
+		this.size = size;
+		this.noEntryValue = noEntryValue;
+		allocate(capacity);
+	}
+
+	@Override
+	int get(int offset) {
+		return getInt(offset);
+	}
+
+	@Override
+	IntTile set(int offset, int value) {
+		int old = getInt(offset);
+		if (old == value) return this;
+		putInt(offset, value);
+		if (old == noEntryValue) size++;
+		else if (value == noEntryValue) {
+			size--;
+			if (size == 0) return null;
+			if (size < capacity / SPARSE_RATIO) return OffHeapSparseIntTile
+				.fromDense(this, size, noEntryValue);
+		}
+		return this;
+	}
+
+	@Override
+	int size() {
+		return size;
+	}
+
+	@Override
+	int[] offsets() {
+		int[] offsets = new int[size];
+		int i = 0;
+		for (int offset = 0; offset < capacity; offset++)
+			if (getInt(offset) != noEntryValue) offsets[i++] = offset;
+		return offsets;
+	}
+
+	@Override
+	IntTile copy() {
+		OffHeapDenseIntTile copy = new OffHeapDenseIntTile(arena, capacity,
+			noEntryValue, size);
+		copy.copyFrom(this, capacity);
+		return copy;
+	}
+
+	int capacity() {
+		return capacity;
+	}
+}
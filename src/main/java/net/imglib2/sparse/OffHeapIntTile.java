@@ -0,0 +1,79 @@
+
+package net.imglib2.sparse;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * {@link IntTile} that stores its values in a block of an
+ * {@link OffHeapArena}. The block is freed when the tile is replaced, or when
+ * no image references the tile any more.
+ */
+abstract class OffHeapIntTile extends IntTile {
+
+	private static final AtomicIntegerFieldUpdater<OffHeapIntTile> REFERENCES =
+		AtomicIntegerFieldUpdater.newUpdater(OffHeapIntTile.class, "references");
+
+	final OffHeapArena arena;
+
+	private long block = OffHeapArena.NO_BLOCK;
+	private IntBuffer slab;
+	private int base;
+
+	@SuppressWarnings("unused")
+	private volatile int references = 0;
+
+	OffHeapIntTile(OffHeapArena arena) {
+		this.arena = arena;
+	}
+
+	@Override
+	void retain() {
+		REFERENCES.incrementAndGet(this);
+	}
+
+	@Override
+	void release() {
+		if (REFERENCES.decrementAndGet(this) == 0) free();
+	}
+
+	@Override
+	void free() {
+		if (block == OffHeapArena.NO_BLOCK) return;
+		arena.free(block);
+		block = OffHeapArena.NO_BLOCK;
+		slab = null;
+	}
+
+	/**
+	 * Replaces the block of this tile by a new block of the given number of
+	 * ints, initialized to zero. The previous block is returned, and must be
+	 * freed by the caller.
+	 */
+	long allocate(int numInts) {
+		long previous = block;
+		block = arena.allocate(numInts);
+		slab = arena.slab(block);
+		base = OffHeapArena.offset(block);
+		return previous;
+	}
+
+	int getInt(int index) {
+		return slab.get(base + index);
+	}
+
+	void putInt(int index, int value) {
+		slab.put(base + index, value);
+	}
+
+	/**
+	 * Copies the first {@code numInts} ints of the given tile into this tile.
+	 */
+	void copyFrom(OffHeapIntTile tile, int numInts) {
+		IntBuffer source = tile.slab.duplicate();
+		source.limit(tile.base + numInts).position(tile.base);
+		IntBuffer target = slab.duplicate();
+		target.position(base);
+		target.put(source);
+	}
+}
@@ -0,0 +1,177 @@
+
+package net.imglib2.sparse;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * {@link IntTile} that stores only the pixels set, in a hash table outside of
+ * the Java heap.
+ * <p>
+ * The hash table uses open addressing with linear probing. Each slot holds two
+ * ints: the offset of the pixel plus one, and the value. A key of zero marks a
+ * free slot, such that a newly allocated block needs no initialization.
+ * Removed entries are deleted by shifting back the following entries, there
+ * are no tombstones.
+ */
+class OffHeapSparseIntTile extends OffHeapIntTile {
+
+	private static final int FREE = 0;
+
+	private static final int MIN_SLOTS = 16;
+
+	private final int capacity;
+	private final int noEntryValue;
+	private int mask;
+	private int size;
+
+	OffHeapSparseIntTile(OffHeapArena arena, int capacity, int noEntryValue) {
+		this(arena, capacity, noEntryValue, MIN_SLOTS);
+	}
+
+	private OffHeapSparseIntTile(OffHeapArena arena, int capacity,
+		int noEntryValue, int slots)
+	{
+		super(arena);
+		this.capacity = capacity;
+		this.noEntryValue = noEntryValue;
+		allocate(2 * slots);
+		this.mask = slots - 1;
+		this.size = 0;
+	}
+
+	static OffHeapSparseIntTile fromDense(OffHeapDenseIntTile dense, int size,
+		int noEntryValue)
+	{
+		int capacity = dense.capacity();
+		OffHeapSparseIntTile tile = new OffHeapSparseIntTile(dense.arena, capacity,
+			noEntryValue, slotsFor(size));
+		for (int offset = 0; offset < capacity; offset++) {
+			int value = dense.get(offset);
+			if (value != noEntryValue) tile.put(offset, value);
+		}
+		return tile;
+	}
+
+	@Override
+	int get(int offset) {
+		int slot = find(offset);
+		return getInt(2 * slot) == FREE ? noEntryValue : getInt(2 * slot + 1);
+	}
+
+	@Override
+	IntTile set(int offset, int value) {
+		if (value == noEntryValue) {
+			remove(offset);
+			return size == 0 ? null : this;
+		}
+		put(offset, value);
+		return size > capacity / DENSE_RATIO ? toDense() : this;
+	}
+
+	@Override
+	int size() {
+		return size;
+	}
+
+	@Override
+	int[] offsets() {
+		int[] offsets = new int[size];
+		int i = 0;
+		for (int slot = 0; slot <= mask; slot++) {
+			int key = getInt(2 * slot);
+			if (key != FREE) offsets[i++] = key - 1;
+		}
+		Arrays.sort(offsets);
+		return offsets;
+	}
+
+	@Override
+	IntTile copy() {
+		OffHeapSparseIntTile copy = new OffHeapSparseIntTile(arena, capacity,
+			noEntryValue, mask + 1);
+		copy.copyFrom(this, 2 * (mask + 1));
+		copy.size = size;
+		return copy;
+	}
+
+	// -- Helper methods --
+
+	private void put(int offset, int value) {
+		int slot = find(offset);
+		if (getInt(2 * slot) == FREE) {
+			putInt(2 * slot, offset + 1);
+			size++;
+		}
+		putInt(2 * slot + 1, value);
+		if (2 * size > mask + 1) rehash(2 * (mask + 1));
+	}
+
+	private void remove(int offset) {
+		int slot = find(offset);
+		if (getInt(2 * slot) == FREE) return;
+		size--;
+		// NB: Move following entries of the same cluster into the gap, if their
+		// home slot isn't between the gap and their current slot.
+		int gap = slot;
+		for (int i = (gap + 1) & mask;; i = (i + 1) & mask) {
+			int key = getInt(2 * i);
+			if (key == FREE) break;
+			int home = home(key - 1);
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				putInt(2 * gap, key);
+				putInt(2 * gap + 1, getInt(2 * i + 1));
+				gap = i;
+			}
+		}
+		putInt(2 * gap, FREE);
+	}
+
+	/**
+	 * @return The slot that holds the given offset, or the free slot where it
+	 *         would be inserted.
+	 */
+	private int find(int offset) {
+		int key = offset + 1;
+		for (int slot = home(offset);; slot = (slot + 1) & mask) {
+			int k = getInt(2 * slot);
+			if (k == key || k == FREE) return slot;
+		}
+	}
+
+	private int home(int offset) {
+		int hash = offset * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private void rehash(int slots) {
+		int oldSlots = mask + 1;
+		long oldBlock = allocate(2 * slots);
+		IntBuffer old = arena.slab(oldBlock);
+		int oldBase = OffHeapArena.offset(oldBlock);
+		mask = slots - 1;
+		size = 0;
+		for (int slot = 0; slot < oldSlots; slot++) {
+			int key = old.get(oldBase + 2 * slot);
+			if (key != FREE) put(key - 1, old.get(oldBase + 2 * slot + 1));
+		}
+		arena.free(oldBlock);
+	}
+
+	private static int slotsFor(int size) {
+		int slots = MIN_SLOTS;
+		while (slots < 2 * size + 2)
+			slots *= 2;
+		return slots;
+	}
+
+	private IntTile toDense() {
+		OffHeapDenseIntTile dense = new OffHeapDenseIntTile(arena, capacity,
+			noEntryValue);
+		for (int slot = 0; slot <= mask; slot++) {
+			int key = getInt(2 * slot);
+			if (key != FREE) dense.set(key - 1, getInt(2 * slot + 1));
+		}
+		return dense;
+	}
+}
@@ -0,0 +1,412 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.AbstractCursor;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.Sampler;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.logic.BitType;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of pixels within an interval, stored as runs along the first
+ * dimension. Each line (a fixed position in all dimensions but the first)
+ * holds a sorted array of non-overlapping runs. This is compact for blobs like
+ * brush strokes or flood fill results: A line through a blob costs one run,
+ * independent of the number of pixels.
+ * <p>
+ * Iteration costs O(number of runs) plus O(number of pixels), and a
+ * containment check is a binary search within one line.
+ */
+public class RunLengthRegion extends AbstractWrappedInterval<Interval>
+	implements IterableRegion<BitType>
+{
+
+	private static final long[] NO_RUNS = new long[0];
+
+	/**
+	 * Maps the index of a line to its runs. The runs are stored as pairs of
+	 * start (inclusive) and end (exclusive) x coordinates, relative to the
+	 * minimum of the interval.
+	 */
+	private final TreeMap<Long, long[]> lines = new TreeMap<>();
+
+	private final long[] lineSteps;
+
+	private long size = 0;
+
+	public RunLengthRegion(Interval interval) {
+		super(interval);
+		int n = interval.numDimensions();
+		lineSteps = new long[n];
+		long step = 1;
+		for (int d = 1; d < n; d++) {
+			lineSteps[d] = step;
+			step *= interval.dimension(d);
+		}
+	}
+
+	/**
+	 * Creates a {@link RunLengthRegion} with the same pixels as the given
+	 * {@link IterableRegion}.
+	 */
+	public static RunLengthRegion of(IterableRegion<?> region) {
+		RunLengthRegion result = new RunLengthRegion(region);
+		Cursor<Void> cursor = region.cursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			result.add(cursor);
+		}
+		return result;
+	}
+
+	public SparseIterableRegion toSparseIterableRegion() {
+		SparseIterableRegion result = new SparseIterableRegion(this);
+		Point point = new Point(numDimensions());
+		forEachRun((start, length) -> {
+			point.setPosition(start);
+			for (long i = 0; i < length; i++) {
+				result.add(point);
+				point.fwd(0);
+			}
+		});
+		return result;
+	}
+
+	public void add(Localizable position) {
+		addRun(position, 1);
+	}
+
+	public void remove(Localizable position) {
+		removeRun(position, 1);
+	}
+
+	/**
+	 * Adds the pixels {@code start}, {@code start + 1}, ...,
+	 * {@code start + length - 1} along the first dimension.
+	 */
+	public void addRun(Localizable start, long length) {
+		if (length <= 0) return;
+		long line = lineIndex(start);
+		long x = start.getLongPosition(0) - min(0);
+		long[] runs = lines.getOrDefault(line, NO_RUNS);
+		int n = runs.length;
+		// NB: fast path for pixels that are added in increasing x order. The
+		// runs of a line are never modified in place, cursors may still use them.
+		if (n > 0 && runs[n - 2] <= x && x <= runs[n - 1]) {
+			long end = x + length;
+			if (end <= runs[n - 1]) return;
+			long[] result = runs.clone();
+			size += end - runs[n - 1];
+			result[n - 1] = end;
+			lines.put(line, result);
+			return;
+		}
+		long[] result = new long[n + 2];
+		int k = 0;
+		long s = x, e = x + length;
+		long removed = 0;
+		int i = 0;
+		for (; i < n && runs[i + 1] < s; i += 2) {
+			result[k++] = runs[i];
+			result[k++] = runs[i + 1];
+		}
+		for (; i < n && runs[i] <= e; i += 2) {
+			s = Math.min(s, runs[i]);
+			e = Math.max(e, runs[i + 1]);
+			removed += runs[i + 1] - runs[i];
+		}
+		result[k++] = s;
+		result[k++] = e;
+		for (; i < n; i += 2) {
+			result[k++] = runs[i];
+			result[k++] = runs[i + 1];
+		}
+		size += e - s - removed;
+		lines.put(line, Arrays.copyOf(result, k));
+	}
+
+	/**
+	 * Removes the pixels {@code start}, {@code start + 1}, ...,
+	 * {@code start + length - 1} along the first dimension.
+	 */
+	public void removeRun(Localizable start, long length) {
+		if (length <= 0) return;
+		long line = lineIndex(start);
+		long[] runs = lines.get(line);
+		if (runs == null) return;
+		long s = start.getLongPosition(0) - min(0);
+		long e = s + length;
+		long[] result = new long[runs.length + 2];
+		int k = 0;
+		for (int i = 0; i < runs.length; i += 2) {
+			long rs = runs[i], re = runs[i + 1];
+			if (re <= s || e <= rs) {
+				result[k++] = rs;
+				result[k++] = re;
+				continue;
+			}
+			size -= Math.min(re, e) - Math.max(rs, s);
+			if (rs < s) {
+				result[k++] = rs;
+				result[k++] = s;
+			}
+			if (e < re) {
+				result[k++] = e;
+				result[k++] = re;
+			}
+		}
+		if (k == 0) lines.remove(line);
+		else lines.put(line, Arrays.copyOf(result, k));
+	}
+
+	public boolean contains(Localizable position) {
+		long[] runs = lines.get(lineIndex(position));
+		if (runs == null) return false;
+		long x = position.getLongPosition(0) - min(0);
+		int i = runIndex(runs, x);
+		return i >= 0 && x < runs[i + 1];
+	}
+
+	/**
+	 * @return Number of runs.
+	 */
+	public long numRuns() {
+		long sum = 0;
+		for (long[] runs : lines.values())
+			sum += runs.length / 2;
+		return sum;
+	}
+
+	public interface RunConsumer {
+
+		/**
+		 * @param start Position of the first pixel of the run. The instance is
+		 *          reused for all runs.
+		 * @param length Number of pixels of the run, along the first dimension.
+		 */
+		void accept(Localizable start, long length);
+	}
+
+	/**
+	 * Calls the consumer for every run, in the order of increasing linear
+	 * index.
+	 */
+	public void forEachRun(RunConsumer consumer) {
+		Point start = new Point(numDimensions());
+		for (Map.Entry<Long, long[]> entry : lines.entrySet()) {
+			lineToPosition(entry.getKey(), start);
+			long[] runs = entry.getValue();
+			for (int i = 0; i < runs.length; i += 2) {
+				start.setPosition(runs[i] + min(0), 0);
+				consumer.accept(start, runs[i + 1] - runs[i]);
+			}
+		}
+	}
+
+	@Override
+	public Cursor<Void> cursor() {
+		return new RunCursor();
+	}
+
+	@Override
+	public Cursor<Void> localizingCursor() {
+		return cursor();
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public Void firstElement() {
+		return null;
+	}
+
+	@Override
+	public Object iterationOrder() {
+		return null;
+	}
+
+	@Override
+	public Iterator<Void> iterator() {
+		return cursor();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess() {
+		return new RunRandomAccess();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess(Interval interval) {
+		return randomAccess();
+	}
+
+	// -- Helper methods --
+
+	private long lineIndex(Localizable position) {
+		long sum = 0;
+		for (int d = 1; d < lineSteps.length; d++)
+			sum += lineSteps[d] * (position.getLongPosition(d) - min(d));
+		return sum;
+	}
+
+	private void lineToPosition(long line, Point position) {
+		for (int d = 1; d < lineSteps.length; d++)
+			position.setPosition(line / lineSteps[d] % dimension(d) + min(d), d);
+	}
+
+	private void lineToPosition(long line, long[] position) {
+		for (int d = 1; d < lineSteps.length; d++)
+			position[d] = line / lineSteps[d] % dimension(d) + min(d);
+	}
+
+	/**
+	 * @return Index of the last run with start &lt;= x, or -1.
+	 */
+	private static int runIndex(long[] runs, long x) {
+		int low = 0, high = runs.length / 2 - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (runs[2 * mid] <= x) low = mid + 1;
+			else high = mid - 1;
+		}
+		return 2 * high;
+	}
+
+	// -- Helper classes --
+
+	private class RunCursor extends AbstractCursor<Void> {
+
+		private final long[] position;
+		private long line;
+		private long[] runs;
+		private int run;
+		private long x;
+
+		private RunCursor() {
+			super(RunLengthRegion.this.numDimensions());
+			position = new long[n];
+			reset();
+		}
+
+		private RunCursor(RunCursor cursor) {
+			super(cursor.numDimensions());
+			position = cursor.position.clone();
+			line = cursor.line;
+			runs = cursor.runs;
+			run = cursor.run;
+			x = cursor.x;
+		}
+
+		@Override
+		public Void get() {
+			return null;
+		}
+
+		@Override
+		public AbstractCursor<Void> copy() {
+			return new RunCursor(this);
+		}
+
+		@Override
+		public AbstractCursor<Void> copyCursor() {
+			return copy();
+		}
+
+		@Override
+		public void fwd() {
+			x++;
+			if (run >= runs.length || x >= runs[run + 1]) {
+				if (runs.length > 0) run += 2;
+				if (run >= runs.length) {
+					Map.Entry<Long, long[]> next = lines.higherEntry(line);
+					line = next.getKey();
+					runs = next.getValue();
+					run = 0;
+					lineToPosition(line, position);
+				}
+				x = runs[run];
+			}
+			position[0] = x + min(0);
+		}
+
+		@Override
+		public void reset() {
+			line = -1;
+			runs = NO_RUNS;
+			run = 0;
+			x = -1;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (run < runs.length && x + 1 < runs[run + 1]) return true;
+			return run + 2 < runs.length || lines.higherKey(line) != null;
+		}
+
+		@Override
+		public void localize(long[] position) {
+			System.arraycopy(this.position, 0, position, 0, n);
+		}
+
+		@Override
+		public long getLongPosition(int d) {
+			return position[d];
+		}
+	}
+
+	private class RunRandomAccess extends Point implements
+		RandomAccess<BitType>
+	{
+
+		private final BitType value = new BitType(new LongArray(1)) {
+
+			@Override
+			public void set(boolean value) {
+				if (value) add(RunRandomAccess.this);
+				else remove(RunRandomAccess.this);
+			}
+
+			@Override
+			public boolean get() {
+				return contains(RunRandomAccess.this);
+			}
+		};
+
+		private RunRandomAccess() {
+			super(RunLengthRegion.this.numDimensions());
+		}
+
+		private RunRandomAccess(Localizable localizable) {
+			super(localizable);
+		}
+
+		@Override
+		public RandomAccess<BitType> copyRandomAccess() {
+			return new RunRandomAccess(this);
+		}
+
+		@Override
+		public BitType get() {
+			return value;
+		}
+
+		@Override
+		public Sampler<BitType> copy() {
+			return copyRandomAccess();
+		}
+	}
+}
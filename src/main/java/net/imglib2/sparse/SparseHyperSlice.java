@@ -0,0 +1,186 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.AbstractCursor;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Sampler;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A hyperslice of a {@link SparseRandomAccessIntType}. The slice is a read only
+ * view, it shares the tiles with the image, nothing is copied. Setting a pixel
+ * value of the slice throws an {@link UnsupportedOperationException}. The
+ * sparse cursors only visit the tiles of the image that intersect the slice.
+ */
+public class SparseHyperSlice extends AbstractWrappedInterval<Interval>
+	implements RandomAccessibleInterval<IntType>
+{
+
+	private final SparseRandomAccessIntType source;
+	private final int d;
+	private final Interval sliceInterval;
+	private final RandomAccessibleInterval<IntType> slice;
+
+	SparseHyperSlice(SparseRandomAccessIntType source, int d, long position) {
+		this(source, d, position, readOnlySlice(source, d, position));
+	}
+
+	private SparseHyperSlice(SparseRandomAccessIntType source, int d,
+		long position, RandomAccessibleInterval<IntType> slice)
+	{
+		super(slice);
+		this.source = source;
+		this.d = d;
+		this.slice = slice;
+		long[] min = Intervals.minAsLongArray(source);
+		long[] max = Intervals.maxAsLongArray(source);
+		min[d] = max[d] = position;
+		this.sliceInterval = new FinalInterval(min, max);
+	}
+
+	@Override
+	public RandomAccess<IntType> randomAccess() {
+		return slice.randomAccess();
+	}
+
+	@Override
+	public RandomAccess<IntType> randomAccess(Interval interval) {
+		return slice.randomAccess(interval);
+	}
+
+	/**
+	 * @return Cursor over the pixels of the slice, that are set.
+	 */
+	public Cursor<IntType> sparseCursor() {
+		return new SliceCursor(source.sparseCursor(sliceInterval));
+	}
+
+	/**
+	 * @return Cursor over the pixels of the slice, that are set and within the
+	 *         given interval.
+	 */
+	public Cursor<IntType> sparseCursor(Interval interval) {
+		return new SliceCursor(source.sparseCursor(sourceInterval(interval)));
+	}
+
+	/**
+	 * Same as {@link #sparseCursor()}, but split into at most
+	 * {@code numChunks} cursors, that can be used in parallel.
+	 */
+	public List<Cursor<IntType>> sparseCursors(int numChunks) {
+		return source.sparseCursors(sliceInterval, numChunks).stream().map(
+			SliceCursor::new).collect(Collectors.toList());
+	}
+
+	// -- Helper methods --
+
+	private static RandomAccessibleInterval<IntType> readOnlySlice(
+		SparseRandomAccessIntType source, int d, long position)
+	{
+		RandomAccessibleInterval<IntType> slice = Views.hyperSlice(source, d,
+			position);
+		return Converters.<IntType, IntType> convert(slice,
+			SparseHyperSlice::readOnly);
+	}
+
+	private static IntType readOnly(Sampler<? extends IntType> sampler) {
+		return new IntType(new IntAccess() {
+
+			@Override
+			public int getValue(int ignored) {
+				return sampler.get().get();
+			}
+
+			@Override
+			public void setValue(int ignored, int value) {
+				throw new UnsupportedOperationException(
+					"The hyperslice is read only.");
+			}
+		});
+	}
+
+	/**
+	 * Inserts the sliced dimension into the given interval.
+	 */
+	private Interval sourceInterval(Interval interval) {
+		int n = source.numDimensions();
+		long[] min = new long[n];
+		long[] max = new long[n];
+		for (int i = 0; i < n; i++) {
+			min[i] = i == d ? sliceInterval.min(d) : interval.min(i < d ? i : i - 1);
+			max[i] = i == d ? sliceInterval.max(d) : interval.max(i < d ? i : i - 1);
+		}
+		return new FinalInterval(min, max);
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Wraps a cursor of the image, and removes the sliced dimension from its
+	 * position.
+	 */
+	private class SliceCursor extends AbstractCursor<IntType> {
+
+		private final Cursor<IntType> cursor;
+		private final IntType value;
+
+		private SliceCursor(Cursor<IntType> cursor) {
+			super(cursor.numDimensions() - 1);
+			this.cursor = cursor;
+			this.value = readOnly(cursor);
+		}
+
+		@Override
+		public IntType get() {
+			return value;
+		}
+
+		@Override
+		public void fwd() {
+			cursor.fwd();
+		}
+
+		@Override
+		public void reset() {
+			cursor.reset();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return cursor.hasNext();
+		}
+
+		@Override
+		public void localize(long[] position) {
+			for (int i = 0; i < n; i++)
+				position[i] = getLongPosition(i);
+		}
+
+		@Override
+		public long getLongPosition(int i) {
+			return cursor.getLongPosition(i < d ? i : i + 1);
+		}
+
+		@Override
+		public AbstractCursor<IntType> copy() {
+			return new SliceCursor(cursor.copyCursor());
+		}
+
+		@Override
+		public AbstractCursor<IntType> copyCursor() {
+			return copy();
+		}
+	}
+}
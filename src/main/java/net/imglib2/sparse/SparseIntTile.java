@@ -0,0 +1,81 @@
+
+package net.imglib2.sparse;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * {@link IntTile} that stores only the pixels set, in a hash map.
+ */
+class SparseIntTile extends IntTile {
+
+	private final int capacity;
+	private final int noEntryValue;
+	private final TIntIntHashMap values;
+
+	SparseIntTile(int capacity, int noEntryValue) {
+		this(capacity, noEntryValue, new TIntIntHashMap(Constants.DEFAULT_CAPACITY,
+			Constants.DEFAULT_LOAD_FACTOR, -1, noEntryValue));
+	}
+
+	private SparseIntTile(int capacity, int noEntryValue,
+		TIntIntHashMap values)
+	{
+		this.capacity = capacity;
+		this.noEntryValue = noEntryValue;
+		this.values = values;
+	}
+
+	static SparseIntTile fromDense(int[] dense, int size, int noEntryValue) {
+		TIntIntHashMap values = new TIntIntHashMap(size * 2,
+			Constants.DEFAULT_LOAD_FACTOR, -1, noEntryValue);
+		for (int offset = 0; offset < dense.length; offset++)
+			if (dense[offset] != noEntryValue) values.put(offset, dense[offset]);
+		return new SparseIntTile(dense.length, noEntryValue, values);
+	}
+
+	@Override
+	int get(int offset) {
+		return values.get(offset);
+	}
+
+	@Override
+	IntTile set(int offset, int value) {
+		if (value == noEntryValue) {
+			values.remove(offset);
+			return values.isEmpty() ? null : this;
+		}
+		values.put(offset, value);
+		return values.size() > capacity / DENSE_RATIO ? toDense() : this;
+	}
+
+	private IntTile toDense() {
+		int[] dense = new int[capacity];
+		if (noEntryValue != 0) Arrays.fill(dense, noEntryValue);
+		values.forEachEntry((offset, value) -> {
+			dense[offset] = value;
+			return true;
+		});
+		return new DenseIntTile(dense, values.size(), noEntryValue);
+	}
+
+	@Override
+	int size() {
+		return values.size();
+	}
+
+	@Override
+	int[] offsets() {
+		int[] offsets = values.keys();
+		Arrays.sort(offsets);
+		return offsets;
+	}
+
+	@Override
+	IntTile copy() {
+		return new SparseIntTile(capacity, noEntryValue, new TIntIntHashMap(
+			values));
+	}
+}
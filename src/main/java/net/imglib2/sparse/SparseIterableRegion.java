@@ -1,8 +1,6 @@
 
 package net.imglib2.sparse;
 
-import gnu.trove.set.TLongSet;
-import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.AbstractCursor;
 import net.imglib2.AbstractWrappedInterval;
 import net.imglib2.Cursor;
@@ -14,28 +12,35 @@ import net.imglib2.Sampler;
 import net.imglib2.img.basictypeaccess.array.LongArray;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
+ * A set of pixels within an interval. The linear indices of the pixels are
+ * stored in a compressed {@link LongBitmap}, which keeps them sorted. Creating
+ * a cursor therefore costs constant time, and union, intersection and
+ * difference are computed on the compressed representation.
+ *
  * @author Matthias Arzt
  */
 public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 	implements IterableRegion<BitType>
 {
 
-	final private TLongSet codes;
+	final private LongBitmap codes;
 
 	final private IntervalIndexer2 indexer;
 
 	public SparseIterableRegion(Interval interval) {
-		this(interval, new TLongHashSet());
+		this(interval, new LongBitmap());
 	}
 
-	public SparseIterableRegion(Interval interval, TLongSet positions) {
+	public SparseIterableRegion(Interval interval, LongBitmap codes) {
 		super(interval);
-		this.codes = positions;
+		this.codes = codes;
 		this.indexer = new IntervalIndexer2(interval);
 	}
 
@@ -51,9 +56,56 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 		return codes.contains(indexer.positionToIndex(position));
 	}
 
+	public SparseIterableRegion copy() {
+		return new SparseIterableRegion(this, codes.copy());
+	}
+
+	public SparseIterableRegion union(SparseIterableRegion other) {
+		requireSameInterval(other);
+		return new SparseIterableRegion(this, LongBitmap.union(codes,
+			other.codes));
+	}
+
+	public SparseIterableRegion intersection(SparseIterableRegion other) {
+		requireSameInterval(other);
+		return new SparseIterableRegion(this, LongBitmap.intersection(codes,
+			other.codes));
+	}
+
+	public SparseIterableRegion difference(SparseIterableRegion other) {
+		requireSameInterval(other);
+		return new SparseIterableRegion(this, LongBitmap.difference(codes,
+			other.codes));
+	}
+
+	private void requireSameInterval(SparseIterableRegion other) {
+		if (!Intervals.equals(this, other)) throw new IllegalArgumentException(
+			"Intervals must match");
+	}
+
 	@Override
 	public Cursor<Void> cursor() {
-		return new SparseRoiCursor();
+		return new SparseRoiCursor(codes.sortedIterator());
+	}
+
+	/**
+	 * Splits the region into at most {@code numChunks} disjoint parts of
+	 * roughly equal size, and returns a cursor for each of them. The cursors
+	 * can be used in parallel, for as long as the region is not modified.
+	 */
+	public List<Cursor<Void>> cursors(int numChunks) {
+		List<Cursor<Void>> result = new ArrayList<>();
+		for (LongBitmap.SortedIterator iterator : codes.split(numChunks))
+			result.add(new SparseRoiCursor(iterator));
+		return result;
+	}
+
+	/**
+	 * Splits the indices of the pixels, in flat iteration order, into at most
+	 * {@code numChunks} ranges. See {@link LongBitmap#split(int)}.
+	 */
+	public List<LongBitmap.SortedIterator> indices(int numChunks) {
+		return codes.split(numChunks);
 	}
 
 	@Override
@@ -95,20 +147,24 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 		Cursor<Void>
 	{
 
-		private final long[] sortedCodes;
-		private final int lastIndex;
-		private final Point point;
-		private int i;
+		private final LongBitmap.SortedIterator iterator;
+		private final long[] position;
+		private long code;
 
-		private SparseRoiCursor() {
+		private SparseRoiCursor(LongBitmap.SortedIterator iterator) {
 			super(SparseIterableRegion.this.numDimensions());
-			point = new Point(SparseIterableRegion.this.numDimensions());
-			sortedCodes = codes.toArray();
-			Arrays.sort(sortedCodes);
-			lastIndex = sortedCodes.length - 1;
+			this.iterator = iterator;
+			position = new long[n];
 			reset();
 		}
 
+		private SparseRoiCursor(SparseRoiCursor cursor) {
+			super(cursor.numDimensions());
+			iterator = cursor.iterator.copy();
+			position = cursor.position.clone();
+			code = cursor.code;
+		}
+
 		@Override
 		public Void get() {
 			return null;
@@ -116,38 +172,41 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 
 		@Override
 		public AbstractCursor<Void> copy() {
-			throw new UnsupportedOperationException();
+			return new SparseRoiCursor(this);
 		}
 
 		@Override
 		public AbstractCursor<Void> copyCursor() {
-			throw new UnsupportedOperationException();
+			return copy();
 		}
 
 		@Override
 		public void fwd() {
-			i++;
-			indexer.indexToPosition(sortedCodes[i], point);
+			long previous = code;
+			code = iterator.next();
+			if (previous < 0) indexer.indexToPosition(code, position);
+			else indexer.indexToPosition(previous, code, position);
 		}
 
 		@Override
 		public void reset() {
-			i = -1;
+			iterator.reset();
+			code = -1;
 		}
 
 		@Override
 		public boolean hasNext() {
-			return i < lastIndex;
+			return iterator.hasNext();
 		}
 
 		@Override
 		public void localize(long[] position) {
-			point.localize(position);
+			System.arraycopy(this.position, 0, position, 0, n);
 		}
 
 		@Override
 		public long getLongPosition(int d) {
-			return point.getLongPosition(d);
+			return position[d];
 		}
 	}
 
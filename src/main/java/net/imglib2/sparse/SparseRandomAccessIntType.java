@@ -1,43 +1,115 @@
 
 package net.imglib2.sparse;
 
-import gnu.trove.impl.Constants;
-import gnu.trove.impl.hash.THash;
-import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.AbstractCursor;
 import net.imglib2.AbstractWrappedInterval;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.Localizable;
-import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.Sampler;
 import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.array.LongArray;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.type.BooleanType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.integer.IntType;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
+ * A sparse image of {@link IntType}. Pixels that are not set have the no entry
+ * value.
+ * <p>
+ * The image is split into tiles (32^3 pixels for 3D images). Empty tiles take
+ * no memory. A tile with only a few pixels set stores them in a hash map, a
+ * tile with many pixels set stores all pixel values in an array. Tiles convert
+ * between these representations as they fill or empty.
+ * <p>
+ * This class is not thread safe, use {@link ConcurrentSparseRandomAccessIntType}
+ * for concurrent access.
+ *
  * @author Matthias Arzt
  */
 public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 	implements RandomAccessibleInterval<IntType>
 {
 
-	private final IntervalIndexer2 indexer;
-	private final TLongIntHashMap values;
+	/**
+	 * The versions of the tiles of a new image start at this value, which is
+	 * incremented for every image, see {@link #tileVersions()}.
+	 */
+	private static final AtomicLong FIRST_VERSION = new AtomicLong();
+
+	private final TileGrid grid;
+	private final TileLayout layout;
+	private final IntTile[] tiles;
+	private final long[] tileVersions;
 	private final int noEntryValue;
+	private final TileStorage storage;
+	private final OffHeapArena arena;
+	private final OffHeapArena.Registration registration;
+	private volatile ChangeListener listener = null;
+
+	/**
+	 * Identifies the tiles, that are owned by this image. All other tiles are
+	 * shared with a snapshot, and are copied before they are modified.
+	 */
+	private volatile Object owner = new Object();
 
 	public SparseRandomAccessIntType(Interval source) {
 		this(source, 0);
 	}
 
 	public SparseRandomAccessIntType(Interval source, int noEntryValue) {
+		this(source, noEntryValue, TileStorage.HEAP);
+	}
+
+	public SparseRandomAccessIntType(Interval source, int noEntryValue,
+		TileStorage storage)
+	{
+		this(source, noEntryValue, storage, TileLayout.ROW_MAJOR);
+	}
+
+	/**
+	 * @param layout The order of the pixels within a tile, see
+	 *          {@link TileLayout}.
+	 */
+	public SparseRandomAccessIntType(Interval source, int noEntryValue,
+		TileStorage storage, TileLayout layout)
+	{
 		super(source);
-		this.indexer = new IntervalIndexer2(source);
-		this.values = new TLongIntHashMap(Constants.DEFAULT_CAPACITY,
-			Constants.DEFAULT_LOAD_FACTOR, -1, noEntryValue);
+		this.grid = new TileGrid(source, layout);
+		this.layout = layout;
+		this.tiles = new IntTile[grid.numTiles()];
+		this.tileVersions = new long[tiles.length];
+		Arrays.fill(tileVersions, FIRST_VERSION.getAndAdd(1L << 40));
 		this.noEntryValue = noEntryValue;
+		this.storage = storage;
+		this.arena = storage.newArena();
+		this.registration = arena == null ? null : arena.register(this, tiles);
+	}
+
+	/**
+	 * Creates a snapshot of the given image, see {@link #snapshot()}.
+	 */
+	SparseRandomAccessIntType(SparseRandomAccessIntType source) {
+		super(new FinalInterval(source));
+		this.grid = source.grid;
+		this.layout = source.layout;
+		this.tiles = source.tiles.clone();
+		this.tileVersions = source.tileVersions.clone();
+		this.noEntryValue = source.noEntryValue;
+		this.storage = source.storage;
+		this.arena = source.arena;
+		this.registration = arena == null ? null : arena.register(this, tiles);
+		if (arena != null) for (IntTile tile : tiles)
+			if (tile != null) tile.retain();
+		source.owner = new Object();
 	}
 
 	@Override
@@ -51,48 +123,349 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 	}
 
 	public Cursor<IntType> sparseCursor() {
-		return new MappingCursor<>(sparsityPattern().cursor(), randomAccess());
+		return new ValueCursor(nonEmptyTiles(), null);
+	}
+
+	/**
+	 * Splits the pixels that are set into at most {@code numChunks} disjoint
+	 * parts, with roughly equal numbers of pixels, and returns a cursor for
+	 * each part. The parts consist of whole tiles. The cursors can be used in
+	 * parallel.
+	 */
+	public List<Cursor<IntType>> sparseCursors(int numChunks) {
+		int[] tileIndices = nonEmptyTiles();
+		int[] bounds = Chunks.split(tileIndices.length, i -> numEntries(
+			tileIndices[i]), numChunks);
+		List<Cursor<IntType>> result = new ArrayList<>(bounds.length - 1);
+		for (int i = 0; i < bounds.length - 1; i++)
+			result.add(new ValueCursor(Arrays.copyOfRange(tileIndices, bounds[i],
+				bounds[i + 1]), null));
+		return result;
+	}
+
+	/**
+	 * Same as {@link #sparseCursor()}, but the cursor only visits the pixels
+	 * within the given interval. The costs are proportional to the number of
+	 * pixels set in the tiles, that intersect the interval. Tiles completely
+	 * inside the interval are visited without checking the pixel positions.
+	 */
+	public Cursor<IntType> sparseCursor(Interval interval) {
+		return new ValueCursor(nonEmptyTiles(grid.tileIndices(interval)),
+			interval);
+	}
+
+	/**
+	 * Same as {@link #sparseCursors(int)}, but the cursors only visit the pixels
+	 * within the given interval. Only the tiles that intersect the interval are
+	 * visited.
+	 */
+	public List<Cursor<IntType>> sparseCursors(Interval interval,
+		int numChunks)
+	{
+		int[] tileIndices = nonEmptyTiles(grid.tileIndices(interval));
+		int[] bounds = Chunks.split(tileIndices.length, i -> numEntries(
+			tileIndices[i]), numChunks);
+		List<Cursor<IntType>> result = new ArrayList<>(bounds.length - 1);
+		for (int i = 0; i < bounds.length - 1; i++)
+			result.add(new ValueCursor(Arrays.copyOfRange(tileIndices, bounds[i],
+				bounds[i + 1]), interval));
+		return result;
+	}
+
+	/**
+	 * Returns the hyperslice at the given position of dimension {@code d}. The
+	 * slice is a view, it shares the tiles with this image.
+	 */
+	public SparseHyperSlice hyperSlice(int d, long position) {
+		return new SparseHyperSlice(this, d, position);
 	}
 
 	public IterableRegion<? extends BooleanType<?>> sparsityPattern() {
-		return new SparseIterableRegion(this, values.keySet());
+		return new SparsityPattern();
+	}
+
+	public TileStorage storage() {
+		return storage;
+	}
+
+	public TileLayout layout() {
+		return layout;
+	}
+
+	/**
+	 * Returns a copy of this image, that shares all tiles with this image. A
+	 * shared tile is copied, when it's modified for the first time, in either
+	 * of the two images. Taking a snapshot therefore only costs one reference
+	 * per tile, independent of the number of pixels set. The snapshot has no
+	 * change listener.
+	 * <p>
+	 * Must not be called concurrently with modifications of this image, unless
+	 * this is a {@link ConcurrentSparseRandomAccessIntType}.
+	 */
+	public SparseRandomAccessIntType snapshot() {
+		return new SparseRandomAccessIntType(this);
+	}
+
+	public int numTiles() {
+		return tiles.length;
+	}
+
+	/**
+	 * @return Side lengths of the tiles. Tiles at the upper border of the
+	 *         image are cut off.
+	 */
+	public int[] tileDimensions() {
+		int[] result = new int[numDimensions()];
+		for (int d = 0; d < result.length; d++)
+			result[d] = grid.tileDimension(d);
+		return result;
+	}
+
+	/**
+	 * @return The pixels of the given tile, that are within the image.
+	 */
+	public Interval tileInterval(int tileIndex) {
+		return grid.tileInterval(tileIndex);
+	}
+
+	/**
+	 * @return The indices of the tiles that contain at least one pixel, that
+	 *         is set.
+	 */
+	public int[] nonEmptyTiles() {
+		int[] result = new int[tiles.length];
+		int count = 0;
+		for (int i = 0; i < tiles.length; i++)
+			if (tile(i) != null) result[count++] = i;
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Returns the indices of the tiles, that were modified since the given
+	 * snapshot was taken from this image. This costs one comparison per tile,
+	 * the pixels are not compared: a tile is reported as soon as it was
+	 * written to, even if its pixels were restored afterwards.
+	 * <p>
+	 * Must not be called concurrently with modifications of this image.
+	 *
+	 * @param snapshot A snapshot of this image, see {@link #snapshot()}. It
+	 *          must not have been modified.
+	 */
+	public int[] modifiedTiles(SparseRandomAccessIntType snapshot) {
+		if (snapshot.grid != grid) throw new IllegalArgumentException(
+			"The snapshot wasn't taken from this image.");
+		// NB: A snapshot shares all tiles, and every modification after the
+		// snapshot replaces the shared tile by a copy.
+		int[] result = new int[tiles.length];
+		int count = 0;
+		for (int i = 0; i < tiles.length; i++)
+			if (tile(i) != snapshot.tile(i)) result[count++] = i;
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Returns the versions of all tiles. The version of a tile is incremented,
+	 * whenever one of its pixels changes. Unlike a snapshot, the versions don't
+	 * keep a copy of the tiles alive, see {@link #modifiedTiles(long[])}. The
+	 * versions of a new image start at a value, that is unique within the JVM.
+	 * The versions of different images therefore differ, unless one image is a
+	 * snapshot of the other.
+	 * <p>
+	 * Must not be called concurrently with modifications of this image, unless
+	 * this is a {@link ConcurrentSparseRandomAccessIntType}.
+	 */
+	public long[] tileVersions() {
+		return tileVersions.clone();
+	}
+
+	/**
+	 * Returns the indices of the tiles, that were modified since the given
+	 * versions were taken from this image, or from a snapshot of it. This costs
+	 * one comparison per tile. For versions of a different image, all tiles are
+	 * reported.
+	 *
+	 * @param versions Versions of the tiles, see {@link #tileVersions()}.
+	 */
+	public int[] modifiedTiles(long[] versions) {
+		if (versions.length != tiles.length) throw new IllegalArgumentException(
+			"The versions weren't taken from this image.");
+		int[] result = new int[tiles.length];
+		int count = 0;
+		for (int i = 0; i < tiles.length; i++)
+			if (tileVersion(i) != versions[i]) result[count++] = i;
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Removes all pixels, without notifying the change listener, and releases
+	 * the tiles. For {@link TileStorage#OFF_HEAP} the memory outside of the
+	 * heap is freed immediately, once this image and all its snapshots are
+	 * closed. For {@link TileStorage#MAPPED_FILE} the file is deleted. The
+	 * image should not be used afterwards.
+	 */
+	public void close() {
+		if (arena != null) arena.unregister(registration);
+		Arrays.fill(tiles, null);
+	}
+
+	/**
+	 * Sets the listener that is notified about every pixel value that changes.
+	 * Use {@code null} to remove the listener.
+	 */
+	public void setChangeListener(ChangeListener listener) {
+		this.listener = listener;
+	}
+
+	public interface ChangeListener {
+
+		/**
+		 * Called after the value of a pixel changed. For the thread safe
+		 * {@link ConcurrentSparseRandomAccessIntType}, the call is made while the
+		 * lock of the tile is held. The calls for the same pixel are therefore
+		 * made in the order of the changes. This method must not block, and must
+		 * not access the image.
+		 *
+		 * @param index Index of the pixel in flat iteration order, as used by
+		 *          {@link IntervalIndexer2}.
+		 */
+		void valueChanged(long index, int oldValue, int newValue);
+
+		/**
+		 * @return False, if {@link #prepare} needs to be called before the given
+		 *         change can be reported without blocking.
+		 */
+		default boolean isPrepared(int oldValue, int newValue) {
+			return true;
+		}
+
+		/**
+		 * Prepares the listener for a change from {@code oldValue} to
+		 * {@code newValue}, for example by computing and caching the work that
+		 * {@link #valueChanged} needs to do. The
+		 * {@link ConcurrentSparseRandomAccessIntType} calls this method without
+		 * holding any lock, if {@link #isPrepared} returns false. It may block.
+		 */
+		default void prepare(int oldValue, int newValue) {}
 	}
 
 	// -- Helper methods --
 
-	private int get(MyRandomAccess position) {
-		return values.get(indexer.positionToIndex(position));
+	/**
+	 * @return The tile with the given index, or {@code null} if it's empty.
+	 */
+	IntTile tile(int tileIndex) {
+		return tiles[tileIndex];
 	}
 
-	private void set(MyRandomAccess position, int value) {
-		Long index = indexer.positionToIndex(position);
-		if (value == noEntryValue) values.remove(index);
-		else values.put(index, value);
+	long tileVersion(int tileIndex) {
+		return tileVersions[tileIndex];
+	}
+
+	int get(int tileIndex, int offset) {
+		IntTile tile = tiles[tileIndex];
+		return tile == null ? noEntryValue : tile.get(offset);
+	}
+
+	void set(int tileIndex, int offset, int value) {
+		int oldValue = replace(tileIndex, offset, value);
+		if (oldValue == value) return;
+		ChangeListener listener = this.listener;
+		if (listener != null) listener.valueChanged(grid.flatIndex(tileIndex,
+			offset), oldValue, value);
+	}
+
+	ChangeListener changeListener() {
+		return listener;
+	}
+
+	long flatIndex(int tileIndex, int offset) {
+		return grid.flatIndex(tileIndex, offset);
+	}
+
+	/**
+	 * Sets the value of a pixel, without notifying the change listener.
+	 *
+	 * @return The previous value of the pixel.
+	 */
+	int replace(int tileIndex, int offset, int value) {
+		IntTile old = tiles[tileIndex];
+		int oldValue = old == null ? noEntryValue : old.get(offset);
+		if (oldValue == value) return oldValue;
+		IntTile tile = old == null ? storage.emptyTile(arena, grid.tileSize(),
+			noEntryValue) : old.owner == owner ? old : old.copy();
+		IntTile result = tile.set(offset, value);
+		// NB: A tile owned by this image is referenced by no other image, it's
+		// freed as soon as it's replaced. A shared tile is only released.
+		if (result != tile) tile.free();
+		if (result != old) {
+			if (result != null) result.retain();
+			if (old != null && old != tile) old.release();
+		}
+		if (result != null) result.owner = owner;
+		tiles[tileIndex] = result;
+		tileVersions[tileIndex]++;
+		return oldValue;
+	}
+
+	OffHeapArena arena() {
+		return arena;
+	}
+
+	int[] offsets(int tileIndex) {
+		IntTile tile = tiles[tileIndex];
+		return tile == null ? IntTile.NO_OFFSETS : tile.offsets();
+	}
+
+	private int[] nonEmptyTiles(int[] tileIndices) {
+		int[] result = new int[tileIndices.length];
+		int count = 0;
+		for (int tileIndex : tileIndices)
+			if (tile(tileIndex) != null) result[count++] = tileIndex;
+		return Arrays.copyOf(result, count);
+	}
+
+	private static boolean contains(Interval interval, long[] position) {
+		for (int d = 0; d < position.length; d++)
+			if (position[d] < interval.min(d) || position[d] > interval.max(d))
+				return false;
+		return true;
+	}
+
+	long numEntries() {
+		long sum = 0;
+		for (int i = 0; i < tiles.length; i++)
+			sum += numEntries(i);
+		return sum;
+	}
+
+	int numEntries(int tileIndex) {
+		IntTile tile = tiles[tileIndex];
+		return tile == null ? 0 : tile.size();
 	}
 
 	// -- Helper classes --
 
-	private class MyRandomAccess extends Point implements RandomAccess<IntType> {
+	private class MyRandomAccess extends TileRandomAccess<IntType> {
 
-		private IntType value = new IntType(new IntAccess() {
+		private final IntType value = new IntType(new IntAccess() {
 
 			@Override
 			public int getValue(int ignored) {
-				return SparseRandomAccessIntType.this.get(MyRandomAccess.this);
+				return SparseRandomAccessIntType.this.get(tileIndex, offset);
 			}
 
 			@Override
 			public void setValue(int ignored, int value) {
-				SparseRandomAccessIntType.this.set(MyRandomAccess.this, value);
+				SparseRandomAccessIntType.this.set(tileIndex, offset, value);
 			}
 		});
 
 		private MyRandomAccess() {
-			super(SparseRandomAccessIntType.this.numDimensions());
+			super(SparseRandomAccessIntType.this.grid);
 		}
 
-		private MyRandomAccess(Localizable localizable) {
-			super(localizable);
+		private MyRandomAccess(MyRandomAccess randomAccess) {
+			super(randomAccess);
 		}
 
 		@Override
@@ -104,10 +477,277 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 		public IntType get() {
 			return value;
 		}
+	}
+
+	/**
+	 * The set of pixels, that don't have the no entry value.
+	 */
+	private class SparsityPattern extends AbstractWrappedInterval<Interval>
+		implements IterableRegion<BitType>
+	{
+
+		private SparsityPattern() {
+			super(SparseRandomAccessIntType.this);
+		}
+
+		@Override
+		public Cursor<Void> cursor() {
+			return new PatternCursor();
+		}
+
+		@Override
+		public Cursor<Void> localizingCursor() {
+			return cursor();
+		}
+
+		@Override
+		public long size() {
+			return numEntries();
+		}
+
+		@Override
+		public Void firstElement() {
+			return null;
+		}
+
+		@Override
+		public Object iterationOrder() {
+			return null;
+		}
+
+		@Override
+		public Iterator<Void> iterator() {
+			return cursor();
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess() {
+			return new SparsityPatternRandomAccess();
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess(Interval interval) {
+			return randomAccess();
+		}
+	}
+
+	/**
+	 * Visits the pixels that are set, tile by tile. Empty tiles are skipped. If
+	 * an interval is given, only the pixels within the interval are visited.
+	 */
+	private abstract class TileCursor<T> extends AbstractCursor<T> {
+
+		private final int[] tileIndices;
+		private final Interval interval;
+		private final long[] tileMin;
+		private final long[] position;
+		private int t;
+		private int[] offsets;
+		private int i;
+
+		/**
+		 * The next tile with pixels to visit, and its offsets. This allows
+		 * {@link #hasNext()} to skip tiles without pixels within the interval.
+		 */
+		private int nextT;
+		private int[] nextOffsets;
+
+		private TileCursor(int[] tileIndices, Interval interval) {
+			super(SparseRandomAccessIntType.this.numDimensions());
+			this.tileIndices = tileIndices;
+			this.interval = interval;
+			tileMin = new long[n];
+			position = new long[n];
+			reset();
+		}
+
+		private TileCursor(TileCursor<T> cursor) {
+			super(cursor.numDimensions());
+			tileIndices = cursor.tileIndices;
+			interval = cursor.interval;
+			tileMin = cursor.tileMin.clone();
+			position = cursor.position.clone();
+			t = cursor.t;
+			offsets = cursor.offsets;
+			i = cursor.i;
+			nextT = cursor.nextT;
+			nextOffsets = cursor.nextOffsets;
+		}
+
+		protected int tileIndex() {
+			return tileIndices[t];
+		}
+
+		protected int offset() {
+			return offsets[i];
+		}
+
+		@Override
+		public AbstractCursor<T> copyCursor() {
+			return copy();
+		}
+
+		@Override
+		public void fwd() {
+			i++;
+			if (i >= offsets.length) {
+				findNextTile();
+				t = nextT;
+				offsets = nextOffsets;
+				nextOffsets = null;
+				grid.tileMin(tileIndices[t], tileMin);
+				i = 0;
+			}
+			grid.localize(tileMin, offsets[i], position);
+		}
+
+		@Override
+		public void reset() {
+			t = -1;
+			offsets = IntTile.NO_OFFSETS;
+			i = -1;
+			nextT = -1;
+			nextOffsets = null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return i + 1 < offsets.length || findNextTile();
+		}
+
+		private boolean findNextTile() {
+			if (nextOffsets != null) return true;
+			for (nextT = Math.max(nextT, t) + 1; nextT < tileIndices.length; nextT++) {
+				int[] o = offsetsWithin(tileIndices[nextT]);
+				if (o.length > 0) {
+					nextOffsets = o;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private int[] offsetsWithin(int tileIndex) {
+			int[] offsets = offsets(tileIndex);
+			if (interval == null || grid.isTileInside(tileIndex, interval))
+				return offsets;
+			long[] min = new long[n];
+			long[] pos = new long[n];
+			grid.tileMin(tileIndex, min);
+			int[] result = new int[offsets.length];
+			int count = 0;
+			for (int offset : offsets) {
+				grid.localize(min, offset, pos);
+				if (contains(interval, pos)) result[count++] = offset;
+			}
+			return count == offsets.length ? offsets : Arrays.copyOf(result, count);
+		}
+
+		@Override
+		public void localize(long[] position) {
+			System.arraycopy(this.position, 0, position, 0, n);
+		}
+
+		@Override
+		public long getLongPosition(int d) {
+			return position[d];
+		}
+	}
+
+	private class PatternCursor extends TileCursor<Void> {
+
+		private PatternCursor() {
+			super(nonEmptyTiles(), null);
+		}
+
+		private PatternCursor(PatternCursor cursor) {
+			super(cursor);
+		}
+
+		@Override
+		public Void get() {
+			return null;
+		}
+
+		@Override
+		public AbstractCursor<Void> copy() {
+			return new PatternCursor(this);
+		}
+	}
+
+	/**
+	 * Cursor over the pixels that are set. The value is accessed by the tile
+	 * index and offset of the cursor, without any index computation.
+	 */
+	private class ValueCursor extends TileCursor<IntType> {
+
+		private final IntType value = new IntType(new IntAccess() {
+
+			@Override
+			public int getValue(int ignored) {
+				return SparseRandomAccessIntType.this.get(tileIndex(), offset());
+			}
+
+			@Override
+			public void setValue(int ignored, int value) {
+				SparseRandomAccessIntType.this.set(tileIndex(), offset(), value);
+			}
+		});
+
+		private ValueCursor(int[] tileIndices, Interval interval) {
+			super(tileIndices, interval);
+		}
+
+		private ValueCursor(ValueCursor cursor) {
+			super(cursor);
+		}
+
+		@Override
+		public IntType get() {
+			return value;
+		}
 
 		@Override
-		public Sampler<IntType> copy() {
-			throw new UnsupportedOperationException();
+		public AbstractCursor<IntType> copy() {
+			return new ValueCursor(this);
+		}
+	}
+
+	private class SparsityPatternRandomAccess extends TileRandomAccess<BitType> {
+
+		private final BitType value = new BitType(new LongArray(1)) {
+
+			@Override
+			public void set(boolean value) {
+				throw new UnsupportedOperationException(
+					"The sparsity pattern is read only.");
+			}
+
+			@Override
+			public boolean get() {
+				return SparseRandomAccessIntType.this.get(tileIndex,
+					offset) != noEntryValue;
+			}
+		};
+
+		private SparsityPatternRandomAccess() {
+			super(SparseRandomAccessIntType.this.grid);
+		}
+
+		private SparsityPatternRandomAccess(
+			SparsityPatternRandomAccess randomAccess)
+		{
+			super(randomAccess);
+		}
+
+		@Override
+		public RandomAccess<BitType> copyRandomAccess() {
+			return new SparsityPatternRandomAccess(this);
+		}
+
+		@Override
+		public BitType get() {
+			return value;
 		}
 	}
 }
@@ -0,0 +1,307 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.util.Intervals;
+
+/**
+ * Splits an interval into tiles, whose side lengths are powers of two. A pixel
+ * is addressed by the flat index of the tile it belongs to, and by the offset
+ * of the pixel within that tile. Both are computed with shifts and masks only.
+ * <p>
+ * The offsets are ordered according to the {@link TileLayout}. In Morton
+ * order, the part of the offset for each dimension is looked up in a small
+ * table, the coordinates of an offset are gathered bit by bit.
+ */
+class TileGrid {
+
+	private final long[] min;
+	private final long[] max;
+	private final long[] gridDimensions;
+	private final int[] shift;
+	private final int[] mask;
+	private final int[] offsetShift;
+	private final int[] tileSteps;
+	private final long[] flatSteps;
+	private final int tileSize;
+	private final int numTiles;
+
+	/**
+	 * For Morton order, the offset part of each local coordinate, per
+	 * dimension. {@code null} for row-major order.
+	 */
+	private final int[][] spread;
+
+	/**
+	 * For Morton order, the bits of the offset, that hold the bits of the
+	 * local coordinate, per dimension.
+	 */
+	private final int[][] bitPositions;
+
+	TileGrid(Interval interval) {
+		this(interval, TileLayout.ROW_MAJOR);
+	}
+
+	TileGrid(Interval interval, TileLayout layout) {
+		this(interval, defaultShift(interval), layout);
+	}
+
+	TileGrid(Interval interval, int[] shift, TileLayout layout) {
+		int n = interval.numDimensions();
+		this.min = Intervals.minAsLongArray(interval);
+		this.max = Intervals.maxAsLongArray(interval);
+		this.shift = shift.clone();
+		this.gridDimensions = new long[n];
+		fitGridIntoArray(Intervals.dimensionsAsLongArray(interval));
+		this.mask = new int[n];
+		this.offsetShift = new int[n];
+		this.tileSteps = new int[n];
+		this.flatSteps = new long[n];
+		long flatStep = 1;
+		for (int d = 0; d < n; d++) {
+			flatSteps[d] = flatStep;
+			flatStep *= interval.dimension(d);
+		}
+		int bits = 0;
+		int step = 1;
+		for (int d = 0; d < n; d++) {
+			mask[d] = (1 << this.shift[d]) - 1;
+			offsetShift[d] = bits;
+			bits += this.shift[d];
+			tileSteps[d] = step;
+			step *= gridDimensions[d];
+		}
+		this.tileSize = 1 << bits;
+		this.numTiles = step;
+		// NB: With less than two dimensions split into tiles, Morton order is
+		// the same as row-major order.
+		int splitDimensions = 0;
+		for (int d = 0; d < n; d++)
+			if (this.shift[d] > 0) splitDimensions++;
+		boolean morton = layout == TileLayout.MORTON && splitDimensions > 1;
+		this.bitPositions = morton ? mortonBitPositions(this.shift) : null;
+		this.spread = morton ? spread(bitPositions) : null;
+	}
+
+	/**
+	 * Assigns the bits of the offset to the dimensions in turns, starting with
+	 * the lowest bit. A dimension, that has no bits left, is skipped.
+	 */
+	private static int[][] mortonBitPositions(int[] shift) {
+		int n = shift.length;
+		int[][] positions = new int[n][];
+		int maxShift = 0;
+		for (int d = 0; d < n; d++) {
+			positions[d] = new int[shift[d]];
+			maxShift = Math.max(maxShift, shift[d]);
+		}
+		int bit = 0;
+		for (int b = 0; b < maxShift; b++)
+			for (int d = 0; d < n; d++)
+				if (b < shift[d]) positions[d][b] = bit++;
+		return positions;
+	}
+
+	private static int[][] spread(int[][] bitPositions) {
+		int[][] spread = new int[bitPositions.length][];
+		for (int d = 0; d < spread.length; d++) {
+			int[] positions = bitPositions[d];
+			spread[d] = new int[1 << positions.length];
+			for (int x = 0; x < spread[d].length; x++)
+				for (int b = 0; b < positions.length; b++)
+					spread[d][x] |= ((x >>> b) & 1) << positions[b];
+		}
+		return spread;
+	}
+
+	private static int[] defaultShift(Interval interval) {
+		int n = interval.numDimensions();
+		// 2^15 pixels per tile, spread over the first three dimensions: 32^3,
+		// 128^2 or 32768 pixels.
+		int bits = 15 / Math.max(1, Math.min(3, n));
+		int[] shift = new int[n];
+		for (int d = 0; d < Math.min(3, n); d++)
+			shift[d] = Math.min(bits, ceilLog2(interval.dimension(d)));
+		return shift;
+	}
+
+	private void fitGridIntoArray(long[] dimensions) {
+		while (true) {
+			long numTiles = 1;
+			int largest = 0;
+			for (int d = 0; d < dimensions.length; d++) {
+				gridDimensions[d] = ((dimensions[d] - 1) >> shift[d]) + 1;
+				numTiles *= gridDimensions[d];
+				if (gridDimensions[d] > gridDimensions[largest]) largest = d;
+			}
+			if (numTiles < Integer.MAX_VALUE - 8) return;
+			shift[largest]++;
+		}
+	}
+
+	private static int ceilLog2(long value) {
+		return 64 - Long.numberOfLeadingZeros(value - 1);
+	}
+
+	public int numDimensions() {
+		return min.length;
+	}
+
+	/**
+	 * @return Number of pixels in a tile.
+	 */
+	public int tileSize() {
+		return tileSize;
+	}
+
+	public int numTiles() {
+		return numTiles;
+	}
+
+	public int tileIndex(Localizable position) {
+		int sum = 0;
+		for (int d = 0; d < min.length; d++)
+			sum += tileIndexPart(position.getLongPosition(d), d);
+		return sum;
+	}
+
+	public int offset(Localizable position) {
+		int sum = 0;
+		for (int d = 0; d < min.length; d++)
+			sum += offsetPart(position.getLongPosition(d), d);
+		return sum;
+	}
+
+	/**
+	 * The tile index of a pixel is the sum of the parts for each dimension.
+	 * This allows to update the tile index, when the position changes along a
+	 * single dimension.
+	 */
+	public int tileIndexPart(long position, int d) {
+		return (int) ((position - min[d]) >> shift[d]) * tileSteps[d];
+	}
+
+	/**
+	 * The offset of a pixel is the sum of the parts for each dimension.
+	 */
+	public int offsetPart(long position, int d) {
+		int local = (int) (position - min[d]) & mask[d];
+		return spread == null ? local << offsetShift[d] : spread[d][local];
+	}
+
+	/**
+	 * Writes the position of the pixel with smallest coordinates in the given
+	 * tile into {@code tileMin}.
+	 */
+	public void tileMin(int tileIndex, long[] tileMin) {
+		for (int d = 0; d < min.length; d++) {
+			long gridPosition = (tileIndex / tileSteps[d]) % gridDimensions[d];
+			tileMin[d] = (gridPosition << shift[d]) + min[d];
+		}
+	}
+
+	/**
+	 * @return Side length of the tiles along dimension {@code d}.
+	 */
+	public int tileDimension(int d) {
+		return 1 << shift[d];
+	}
+
+	/**
+	 * @return The pixels of the given tile, that are within the grid's
+	 *         interval.
+	 */
+	public Interval tileInterval(int tileIndex) {
+		long[] tileMin = new long[min.length];
+		tileMin(tileIndex, tileMin);
+		long[] tileMax = new long[min.length];
+		for (int d = 0; d < min.length; d++)
+			tileMax[d] = Math.min(tileMin[d] + mask[d], max[d]);
+		return new FinalInterval(tileMin, tileMax);
+	}
+
+	/**
+	 * @return The indices of all tiles that intersect the given interval, in
+	 *         increasing order.
+	 */
+	public int[] tileIndices(Interval interval) {
+		int n = min.length;
+		int[] lo = new int[n];
+		int[] hi = new int[n];
+		int count = 1;
+		for (int d = 0; d < n; d++) {
+			long start = Math.max(interval.min(d) - min[d], 0);
+			long end = Math.min(interval.max(d) - min[d], (gridDimensions[d] << shift[
+				d]) - 1);
+			if (start > end) return new int[0];
+			lo[d] = (int) (start >> shift[d]);
+			hi[d] = (int) (end >> shift[d]);
+			count *= hi[d] - lo[d] + 1;
+		}
+		int[] result = new int[count];
+		int[] gridPosition = lo.clone();
+		for (int i = 0; i < count; i++) {
+			int tileIndex = 0;
+			for (int d = 0; d < n; d++)
+				tileIndex += gridPosition[d] * tileSteps[d];
+			result[i] = tileIndex;
+			for (int d = 0; d < n; d++) {
+				if (++gridPosition[d] <= hi[d]) break;
+				gridPosition[d] = lo[d];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return True if all pixels of the tile, that are within the grid's
+	 *         interval, are also within the given interval.
+	 */
+	public boolean isTileInside(int tileIndex, Interval interval) {
+		for (int d = 0; d < min.length; d++) {
+			long gridPosition = (tileIndex / tileSteps[d]) % gridDimensions[d];
+			long tileMin = (gridPosition << shift[d]) + min[d];
+			long tileMax = Math.min(tileMin + mask[d], max[d]);
+			if (tileMin < interval.min(d) || tileMax > interval.max(d)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The index of the pixel in flat iteration order of the interval,
+	 *         as used by {@link IntervalIndexer2}.
+	 */
+	public long flatIndex(int tileIndex, int offset) {
+		long sum = 0;
+		for (int d = 0; d < min.length; d++) {
+			long gridPosition = (tileIndex / tileSteps[d]) % gridDimensions[d];
+			long position = (gridPosition << shift[d]) + localPosition(offset, d);
+			sum += position * flatSteps[d];
+		}
+		return sum;
+	}
+
+	/**
+	 * Writes the position of the pixel, given by {@code offset} within the tile
+	 * with minimum {@code tileMin}, into {@code position}.
+	 */
+	public void localize(long[] tileMin, int offset, long[] position) {
+		for (int d = 0; d < min.length; d++)
+			position[d] = tileMin[d] + localPosition(offset, d);
+	}
+
+	/**
+	 * @return The coordinate along dimension {@code d} of the pixel with the
+	 *         given offset, relative to the minimum of its tile.
+	 */
+	private int localPosition(int offset, int d) {
+		if (spread == null) return (offset >>> offsetShift[d]) & mask[d];
+		int[] positions = bitPositions[d];
+		int local = 0;
+		for (int b = 0; b < positions.length; b++)
+			local |= ((offset >>> positions[b]) & 1) << b;
+		return local;
+	}
+}
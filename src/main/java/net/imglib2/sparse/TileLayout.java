@@ -0,0 +1,28 @@
+
+package net.imglib2.sparse;
+
+/**
+ * How a {@link SparseRandomAccessIntType} orders the pixels within a tile. A
+ * dense tile stores the pixel values in this order. The tiles themselves, and
+ * the flat indices reported to the change listener, are in row-major order
+ * for both layouts.
+ */
+public enum TileLayout {
+
+	/**
+	 * Flat iteration order, the first dimension is the fastest. Pixels that are
+	 * neighbours along the first dimension are stored next to each other,
+	 * neighbours along the third dimension of a 32^3 tile are 4 KB apart.
+	 */
+	ROW_MAJOR,
+
+	/**
+	 * Morton order, also called Z-order: The bits of the coordinates within
+	 * the tile are interleaved. Pixels that are close to each other along any
+	 * dimension are mostly stored close to each other. A brush stroke or a flood
+	 * fill in 3D therefore touches fewer cache lines and memory pages of a
+	 * dense tile. This matters most for {@link TileStorage#MAPPED_FILE}, where
+	 * every page touched might have to be read from disk.
+	 */
+	MORTON
+}
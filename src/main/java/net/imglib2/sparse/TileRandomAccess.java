@@ -0,0 +1,111 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.AbstractLocalizable;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+
+/**
+ * {@link RandomAccess} on a {@link TileGrid}, that keeps the tile index and the
+ * offset of the current position up to date. Moving along one dimension
+ * updates both with a few shifts, instead of recomputing them from all
+ * coordinates.
+ */
+abstract class TileRandomAccess<T> extends AbstractLocalizable implements
+	RandomAccess<T>
+{
+
+	protected final TileGrid grid;
+
+	protected int tileIndex;
+
+	protected int offset;
+
+	TileRandomAccess(TileGrid grid) {
+		super(grid.numDimensions());
+		this.grid = grid;
+		this.tileIndex = grid.tileIndex(this);
+		this.offset = grid.offset(this);
+	}
+
+	TileRandomAccess(TileRandomAccess<T> randomAccess) {
+		super(randomAccess.position.clone());
+		this.grid = randomAccess.grid;
+		this.tileIndex = randomAccess.tileIndex;
+		this.offset = randomAccess.offset;
+	}
+
+	@Override
+	public void setPosition(long position, int d) {
+		long old = this.position[d];
+		this.position[d] = position;
+		tileIndex += grid.tileIndexPart(position, d) - grid.tileIndexPart(old, d);
+		offset += grid.offsetPart(position, d) - grid.offsetPart(old, d);
+	}
+
+	@Override
+	public void setPosition(int position, int d) {
+		setPosition((long) position, d);
+	}
+
+	@Override
+	public void setPosition(Localizable localizable) {
+		for (int d = 0; d < n; d++)
+			setPosition(localizable.getLongPosition(d), d);
+	}
+
+	@Override
+	public void setPosition(int[] position) {
+		for (int d = 0; d < n; d++)
+			setPosition(position[d], d);
+	}
+
+	@Override
+	public void setPosition(long[] position) {
+		for (int d = 0; d < n; d++)
+			setPosition(position[d], d);
+	}
+
+	@Override
+	public void fwd(int d) {
+		setPosition(position[d] + 1, d);
+	}
+
+	@Override
+	public void bck(int d) {
+		setPosition(position[d] - 1, d);
+	}
+
+	@Override
+	public void move(int distance, int d) {
+		setPosition(position[d] + distance, d);
+	}
+
+	@Override
+	public void move(long distance, int d) {
+		setPosition(position[d] + distance, d);
+	}
+
+	@Override
+	public void move(Localizable localizable) {
+		for (int d = 0; d < n; d++)
+			move(localizable.getLongPosition(d), d);
+	}
+
+	@Override
+	public void move(int[] distance) {
+		for (int d = 0; d < n; d++)
+			move(distance[d], d);
+	}
+
+	@Override
+	public void move(long[] distance) {
+		for (int d = 0; d < n; d++)
+			move(distance[d], d);
+	}
+
+	@Override
+	public RandomAccess<T> copy() {
+		return copyRandomAccess();
+	}
+}
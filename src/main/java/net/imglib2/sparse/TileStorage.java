@@ -0,0 +1,87 @@
+
+package net.imglib2.sparse;
+
+import java.nio.file.Paths;
+
+/**
+ * Where a {@link SparseRandomAccessIntType} stores the pixel values of its
+ * tiles.
+ */
+public enum TileStorage {
+
+	/**
+	 * Values are stored in Java arrays and hash maps.
+	 */
+	HEAP {
+
+		@Override
+		OffHeapArena newArena() {
+			return null;
+		}
+
+		@Override
+		IntTile emptyTile(OffHeapArena arena, int tileSize, int noEntryValue) {
+			return new SparseIntTile(tileSize, noEntryValue);
+		}
+	},
+
+	/**
+	 * Values are stored outside of the Java heap. Only a small object per
+	 * non-empty tile remains on the heap, which keeps garbage collection pauses
+	 * short, no matter how many pixels are set.
+	 * <p>
+	 * An image and its snapshots allocate the memory in large direct buffers,
+	 * which are freed when the image and all its snapshots are closed, see
+	 * {@link SparseRandomAccessIntType#close()}. The JVM limits the total size
+	 * of direct buffers, by default to the maximum heap size. Start the JVM
+	 * with {@code -XX:MaxDirectMemorySize=<size>}, for example
+	 * {@code -XX:MaxDirectMemorySize=32g}, to store labelings larger than that.
+	 */
+	OFF_HEAP {
+
+		@Override
+		OffHeapArena newArena() {
+			return new OffHeapArena();
+		}
+
+		@Override
+		IntTile emptyTile(OffHeapArena arena, int tileSize, int noEntryValue) {
+			return new OffHeapSparseIntTile(arena, tileSize, noEntryValue);
+		}
+	},
+
+	/**
+	 * Values are stored in a temporary file, that is mapped into memory, for
+	 * labelings larger than the available memory. The operating system loads
+	 * the pages of the file on demand, writes modified pages back and evicts
+	 * unmodified pages, when memory is low. Only a small object per non-empty
+	 * tile remains on the heap, like for {@link #OFF_HEAP}.
+	 * <p>
+	 * The file is created in the directory given by the system property
+	 * {@code labkit.tiles.dir}, by default in the temporary directory. It's
+	 * deleted when the image and all its snapshots are closed, see
+	 * {@link SparseRandomAccessIntType#close()}, or when the JVM exits.
+	 */
+	MAPPED_FILE {
+
+		@Override
+		OffHeapArena newArena() {
+			return new OffHeapArena(Paths.get(System.getProperty("labkit.tiles.dir",
+				System.getProperty("java.io.tmpdir"))));
+		}
+
+		@Override
+		IntTile emptyTile(OffHeapArena arena, int tileSize, int noEntryValue) {
+			return new OffHeapSparseIntTile(arena, tileSize, noEntryValue);
+		}
+	};
+
+	/**
+	 * @return The memory shared by the tiles of an image and its snapshots, or
+	 *         {@code null} if not needed.
+	 */
+	abstract OffHeapArena newArena();
+
+	abstract IntTile emptyTile(OffHeapArena arena, int tileSize,
+		int noEntryValue);
+}
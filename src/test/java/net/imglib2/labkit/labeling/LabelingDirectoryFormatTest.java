@@ -0,0 +1,183 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.IntegerType;
+import org.junit.Test;
+import org.scijava.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LabelingDirectoryFormatTest {
+
+	private final LabelingSerializer serializer = new LabelingSerializer(
+		new Context());
+
+	@Test
+	public void testSaveAndOpen() throws IOException {
+		for (Labeling labeling : Arrays.asList(exampleLabeling(), Labeling
+			.createEmpty(Collections.emptyList(), new FinalInterval(2, 2))))
+		{
+			String directory = tempDirectory();
+			serializer.save(labeling, directory);
+			assertLabelingEquals(labeling, serializer.open(directory));
+		}
+	}
+
+	@Test
+	public void testSaveOnlyModifiedBlocks() throws IOException {
+		// NB: A block file, that is deleted behind the back of the labeling, is
+		// not written again, as long as its block isn't modified.
+		String directory = tempDirectory();
+		Labeling labeling = exampleLabeling();
+		serializer.save(labeling, directory);
+		Path blocks = new File(directory, "blocks").toPath();
+		Path untouched = blocks.resolve("0_0_0");
+		Path modified = blocks.resolve("1_0_0");
+		assertTrue(Files.exists(untouched));
+		assertFalse(Files.exists(modified));
+		Files.delete(untouched);
+		set(labeling, "B", 40, 5, 1);
+		serializer.save(labeling, directory);
+		assertFalse(Files.exists(untouched));
+		assertTrue(Files.exists(modified));
+		Labeling actual = serializer.open(directory);
+		assertEquals(Collections.singleton("B"), labelsAt(actual, 40, 5, 1));
+		assertEquals(Collections.emptySet(), labelsAt(actual, 0, 4, 0));
+	}
+
+	@Test
+	public void testSaveOpenedLabeling() throws IOException {
+		String directory = tempDirectory();
+		serializer.save(exampleLabeling(), directory);
+		Labeling labeling = serializer.open(directory);
+		Label c = labeling.addLabel("C");
+		c.setColor(new ARGBType(0xff123456));
+		set(labeling, "C", 1, 5, 3);
+		labeling.removeLabel(labeling.getLabel("A"));
+		serializer.save(labeling, directory);
+		assertLabelingEquals(labeling, serializer.open(directory));
+	}
+
+	@Test
+	public void testRewriteToOtherDirectory() throws IOException {
+		String first = tempDirectory();
+		String second = tempDirectory();
+		Labeling labeling = exampleLabeling();
+		serializer.save(labeling, first);
+		set(labeling, "A", 0, 3, 0);
+		serializer.save(labeling, second);
+		assertLabelingEquals(labeling, serializer.open(second));
+		serializer.save(labeling, first);
+		assertLabelingEquals(labeling, serializer.open(first));
+	}
+
+	@Test
+	public void testIncrementalSaveWhileWriting() throws Exception {
+		// NB: A thread writes pixels, while the labeling is saved several times.
+		// Pixels written during a save are saved by the next save.
+		String directory = tempDirectory();
+		Labeling labeling = exampleLabeling();
+		serializer.save(labeling, directory);
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = labeling
+			.getIndexImg();
+		int numLabelSets = labeling.getLabelSets().size();
+		AtomicBoolean done = new AtomicBoolean(false);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> writer = executor.submit(() -> {
+				RandomAccess<? extends IntegerType<?>> ra = indexImg.randomAccess();
+				Random random = new Random(42);
+				while (!done.get()) {
+					ra.setPosition(new long[] { random.nextInt(66) - 5, 3 + random
+						.nextInt(38), random.nextInt(8) });
+					ra.get().setInteger(random.nextInt(numLabelSets));
+				}
+			});
+			for (int i = 0; i < 10; i++)
+				serializer.save(labeling, directory);
+			done.set(true);
+			writer.get();
+		}
+		finally {
+			executor.shutdown();
+		}
+		serializer.save(labeling, directory);
+		assertLabelingEquals(labeling, serializer.open(directory));
+	}
+
+	// -- Helper methods --
+
+	private static Labeling exampleLabeling() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B"),
+			new FinalInterval(new long[] { -5, 3, 0 }, new long[] { 60, 40, 7 }));
+		labeling.getLabel("B").setColor(new ARGBType(0xffffff00));
+		set(labeling, "A", 0, 4, 0);
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			String label = i % 2 == 0 ? "A" : "B";
+			set(labeling, label, random.nextInt(32) - 5, 3 + random.nextInt(38),
+				random.nextInt(8));
+		}
+		return labeling;
+	}
+
+	private static void set(Labeling labeling, String label, long... position) {
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(position);
+		ra.get().add(labeling.getLabel(label));
+	}
+
+	private static void assertLabelingEquals(Labeling expected,
+		Labeling actual)
+	{
+		assertEquals(names(expected.getLabels()), names(actual.getLabels()));
+		for (int i = 0; i < expected.getLabels().size(); i++)
+			assertEquals(expected.getLabels().get(i).color(), actual.getLabels().get(
+				i).color());
+		ImgLib2Assert.assertImageEquals(expected, actual, (a, b) -> names(a)
+			.equals(names(b)));
+	}
+
+	private static Set<String> labelsAt(Labeling labeling, long... position) {
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(position);
+		return names(ra.get());
+	}
+
+	private static List<String> names(List<Label> labels) {
+		return labels.stream().map(Label::name).collect(Collectors.toList());
+	}
+
+	private static Set<String> names(Set<Label> labels) {
+		return labels.stream().map(Label::name).collect(Collectors.toSet());
+	}
+
+	private static String tempDirectory() throws IOException {
+		Path directory = Files.createTempDirectory("test-");
+		directory.toFile().deleteOnExit();
+		return directory.resolve("test.labelingdir").toString();
+	}
+}
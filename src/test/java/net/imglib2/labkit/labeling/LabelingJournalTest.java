@@ -0,0 +1,214 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.sparse.LongBitmap;
+import net.imglib2.sparse.SparseIterableRegion;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.type.numeric.ARGBType;
+import org.junit.Test;
+import org.scijava.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LabelingJournalTest {
+
+	private final LabelingSerializer serializer = new LabelingSerializer(
+		new Context());
+
+	@Test
+	public void testReplay() throws IOException {
+		String labelingFile = tempFile();
+		String journalFile = LabelingJournal.journalFile(labelingFile);
+		Labeling labeling = exampleLabeling();
+		serializer.save(labeling, labelingFile);
+		LabelingJournal journal = LabelingJournal.attach(labeling);
+		set(labeling, "foreground", 5, 5);
+		set(labeling, "foreground", 6, 5);
+		remove(labeling, "background", 1, 1);
+		journal.flush(journalFile, labelingFile);
+		labeling.renameLabel(labeling.getLabel("foreground"), "cells");
+		Label nuclei = labeling.addLabel("nuclei");
+		nuclei.setColor(new ARGBType(0xff123456));
+		set(labeling, "nuclei", 7, 8);
+		labeling.mergeLabels(labeling.getLabel("background"), labeling.getLabel(
+			"cells"));
+		journal.flush(journalFile, labelingFile);
+		Labeling actual = serializer.open(labelingFile);
+		assertLabelingEquals(labeling, actual);
+	}
+
+	@Test
+	public void testClearAndRemoveLabel() throws IOException {
+		String labelingFile = tempFile();
+		String journalFile = LabelingJournal.journalFile(labelingFile);
+		Labeling labeling = exampleLabeling();
+		serializer.save(labeling, labelingFile);
+		LabelingJournal journal = LabelingJournal.attach(labeling);
+		labeling.clearLabel(labeling.getLabel("background"));
+		set(labeling, "background", 3, 3);
+		labeling.removeLabel(labeling.getLabel("foreground"));
+		labeling.addLabel("foreground");
+		journal.flush(journalFile, labelingFile);
+		Labeling actual = serializer.open(labelingFile);
+		assertLabelingEquals(labeling, actual);
+	}
+
+	@Test
+	public void testIncompleteRecordIsIgnored() throws IOException {
+		String labelingFile = tempFile();
+		String journalFile = LabelingJournal.journalFile(labelingFile);
+		Labeling labeling = exampleLabeling();
+		serializer.save(labeling, labelingFile);
+		LabelingJournal journal = LabelingJournal.attach(labeling);
+		set(labeling, "foreground", 5, 5);
+		journal.flush(journalFile, labelingFile);
+		Labeling expected = serializer.open(labelingFile);
+		set(labeling, "foreground", 6, 6);
+		journal.flush(journalFile, labelingFile);
+		try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+		Labeling actual = serializer.open(labelingFile);
+		assertLabelingEquals(expected, actual);
+	}
+
+	@Test
+	public void testJournalOfOldLabelingFileIsIgnored() throws IOException {
+		String labelingFile = tempFile();
+		String journalFile = LabelingJournal.journalFile(labelingFile);
+		Labeling labeling = exampleLabeling();
+		serializer.save(labeling, labelingFile);
+		LabelingJournal journal = LabelingJournal.attach(labeling);
+		set(labeling, "foreground", 5, 5);
+		journal.flush(journalFile, labelingFile);
+		labeling.addLabel("a label with a long name");
+		serializer.save(labeling, labelingFile);
+		Labeling actual = serializer.open(labelingFile);
+		assertFalse(LabelingJournal.replay(actual, journalFile, labelingFile));
+		assertLabelingEquals(labeling, actual);
+	}
+
+	@Test
+	public void testSameSizeRewriteIsDetected() throws IOException {
+		// NB: On file systems with a coarse modification time, the labeling file
+		// can be rewritten with the same size and time.
+		String labelingFile = tempFile();
+		String journalFile = LabelingJournal.journalFile(labelingFile);
+		Labeling labeling = exampleLabeling();
+		serializer.save(labeling, labelingFile);
+		LabelingJournal journal = LabelingJournal.attach(labeling);
+		set(labeling, "foreground", 5, 5);
+		journal.flush(journalFile, labelingFile);
+		Path path = Paths.get(labelingFile);
+		long size = Files.size(path);
+		FileTime time = Files.getLastModifiedTime(path);
+		labeling.renameLabel(labeling.getLabel("foreground"), "foregrounc");
+		serializer.save(labeling, labelingFile);
+		Files.setLastModifiedTime(path, time);
+		assertEquals(size, Files.size(path));
+		Labeling actual = serializer.open(labelingFile);
+		assertFalse(LabelingJournal.replay(actual, journalFile, labelingFile));
+		assertLabelingEquals(labeling, actual);
+	}
+
+	@Test
+	public void testChangesOfSeveralThreads() throws Exception {
+		String labelingFile = tempFile();
+		String journalFile = LabelingJournal.journalFile(labelingFile);
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("background",
+			"foreground"), new FinalInterval(1000, 1000));
+		serializer.save(labeling, labelingFile);
+		LabelingJournal journal = LabelingJournal.attach(labeling);
+		// NB: Labeling.applyMask sets the pixels in parallel.
+		LongBitmap codes = new LongBitmap();
+		for (long code = 0; code < 1000 * 1000; code += 3)
+			codes.add(code);
+		labeling.applyMask(labeling.getLabel("foreground"),
+			new SparseIterableRegion(labeling, codes));
+		// NB: The pixel is added by one thread, and removed by another.
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(() -> set(labeling, "background", 7, 7)).get();
+			remove(labeling, "background", 7, 7);
+			executor.submit(() -> set(labeling, "background", 8, 8)).get();
+		}
+		finally {
+			executor.shutdown();
+		}
+		journal.flush(journalFile, labelingFile);
+		Labeling actual = serializer.open(labelingFile);
+		assertLabelingEquals(labeling, actual);
+	}
+
+	// -- Helper methods --
+
+	private static Labeling exampleLabeling() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("background",
+			"foreground"), new FinalInterval(new long[] { -2, 0 }, new long[] { 20,
+				10 }));
+		set(labeling, "background", 1, 1);
+		set(labeling, "background", 2, 1);
+		set(labeling, "foreground", 2, 1);
+		return labeling;
+	}
+
+	private static void set(Labeling labeling, String label, long... position) {
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(position);
+		ra.get().add(labeling.getLabel(label));
+	}
+
+	private static void remove(Labeling labeling, String label,
+		long... position)
+	{
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(position);
+		ra.get().remove(labeling.getLabel(label));
+	}
+
+	private static void assertLabelingEquals(Labeling expected,
+		Labeling actual)
+	{
+		assertEquals(names(expected.getLabels()), names(actual.getLabels()));
+		for (int i = 0; i < expected.getLabels().size(); i++)
+			assertEquals(expected.getLabels().get(i).color(), actual.getLabels().get(
+				i).color());
+		ImgLib2Assert.assertImageEquals(expected, actual, (a, b) -> names(a)
+			.equals(names(b)));
+	}
+
+	private static List<String> names(List<Label> labels) {
+		return labels.stream().map(Label::name).collect(Collectors.toList());
+	}
+
+	private static Set<String> names(Set<Label> labels) {
+		return labels.stream().map(Label::name).collect(Collectors.toSet());
+	}
+
+	private static String tempFile() throws IOException {
+		File file = File.createTempFile("test-", ".labeling");
+		file.deleteOnExit();
+		new File(LabelingJournal.journalFile(file.getAbsolutePath()))
+			.deleteOnExit();
+		return file.getAbsolutePath();
+	}
+}
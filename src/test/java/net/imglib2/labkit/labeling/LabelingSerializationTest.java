@@ -1,30 +1,49 @@
 
 package net.imglib2.labkit.labeling;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.internal.LinkedTreeMap;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.roi.IterableRegion;
+import net.imglib2.roi.labeling.LabelingMapping;
+import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.sparse.SparseIterableRegion;
+import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.sparse.TileLayout;
+import net.imglib2.sparse.TileStorage;
 import net.imglib2.test.ImgLib2Assert;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.view.Views;
 import org.junit.Test;
 import org.scijava.Context;
 
 import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Matthias Arzt
@@ -35,14 +54,128 @@ public class LabelingSerializationTest {
 	public void testJson() throws IOException {
 		testSerialization(exampleLabeling(), "json");
 		testSerialization(emptyLabeling(), "json");
+		testSerialization(runsLabeling(), "json");
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		testSerialization(exampleLabeling(), "labelingbin");
+		testSerialization(emptyLabeling(), "labelingbin");
+		testSerialization(runsLabeling(), "labelingbin");
+	}
+
+	@Test
+	public void testBinaryWithManyLabelsAndChunks() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Collections.emptyList(),
+			new FinalInterval(500, 500));
+		Label large = labeling.addLabel("large");
+		Label small = null;
+		Cursor<LabelingType<Label>> cursor = Views.iterable(labeling).cursor();
+		while (cursor.hasNext()) {
+			LabelingType<Label> value = cursor.next();
+			value.add(large);
+			long x = cursor.getLongPosition(0);
+			long y = cursor.getLongPosition(1);
+			if (y % 5 == 0 && x < 10) {
+				if (x == 0) small = labeling.addLabel("small " + y);
+				value.add(small);
+			}
+		}
+		testSerialization(labeling, "labelingbin");
+	}
+
+	@Test
+	public void testLabelingExtensionIsSavedAsJson() throws IOException {
+		Labeling expected = exampleLabeling();
+		LabelingSerializer serializer = new LabelingSerializer(new Context());
+		String filename = tempFileWithExtension("labeling");
+		serializer.save(expected, filename);
+		assertTrue(new JsonParser().parse(new String(Files.readAllBytes(Paths.get(
+			filename)), StandardCharsets.UTF_8)).isJsonObject());
+		testSerialization(expected, "labeling");
+	}
+
+	@Test
+	public void testOpenBinaryWithLabelingExtension() throws IOException {
+		Labeling expected = exampleLabeling();
+		LabelingSerializer serializer = new LabelingSerializer(new Context());
+		String binaryFilename = tempFileWithExtension("labelingbin");
+		serializer.save(expected, binaryFilename);
+		String filename = tempFileWithExtension("labeling");
+		Files.copy(Paths.get(binaryFilename), Paths.get(filename),
+			StandardCopyOption.REPLACE_EXISTING);
+		Labeling actual = serializer.open(filename);
+		ImgLib2Assert.assertImageEquals(expected, actual, (a, b) -> setsEqual(
+			toStrings(a), toStrings(b)));
+	}
+
+	@Test
+	public void testDecodeRunsRejectsOutOfBounds() throws IOException {
+		assertArrayEquals(new long[] { 2, 3, 4 }, LabelingBinaryFormat.decodeRuns(
+			runs(2, 3), 5).toArray());
+		assertDecodeRunsFails(runs(2, 4), 5);
+		assertDecodeRunsFails(runs(Long.MAX_VALUE, Long.MAX_VALUE), 5);
+	}
+
+	private byte[] runs(long gap, long length) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		LabelingBinaryFormat.writeVarLong(out, gap);
+		LabelingBinaryFormat.writeVarLong(out, length);
+		return bytes.toByteArray();
+	}
+
+	private void assertDecodeRunsFails(byte[] block, long numElements) {
+		try {
+			LabelingBinaryFormat.decodeRuns(block, numElements);
+			fail();
+		}
+		catch (UncheckedIOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testJsonWithLabelsBeforeInterval() throws IOException {
+		Labeling expected = exampleLabeling();
+		LabelingSerializer serializer = new LabelingSerializer(new Context());
+		String filename = tempFileWithExtension("json");
+		serializer.save(expected, filename);
+		JsonObject json = new JsonParser().parse(new String(Files.readAllBytes(
+			Paths.get(filename)))).getAsJsonObject();
+		JsonObject reordered = new JsonObject();
+		reordered.add("labels", json.get("labels"));
+		reordered.add("interval", json.get("interval"));
+		reordered.add("pixelSizes", json.get("pixelSizes"));
+		Files.write(Paths.get(filename), reordered.toString().getBytes());
+		Labeling actual = serializer.open(filename);
+		ImgLib2Assert.assertImageEquals(expected, actual, (a, b) -> setsEqual(
+			toStrings(a), toStrings(b)));
+	}
+
+	@Test
+	public void testJsonWithNonAsciiLabelName() throws IOException {
+		Labeling expected = exampleLabeling();
+		expected.renameLabel(expected.getLabel("A"), "Zellkern \u00b5m \u00e4");
+		LabelingSerializer serializer = new LabelingSerializer(new Context());
+		String filename = tempFileWithExtension("labeling");
+		serializer.save(expected, filename);
+		Labeling actual = serializer.open(filename);
+		assertColorsAndLabelOrderMatches(expected.getLabels(), actual.getLabels());
 	}
 
 	@Test
 	public void testColorsAndLabelOrder() throws IOException {
+		testColorsAndLabelOrder("json");
+		testColorsAndLabelOrder("labeling");
+		testColorsAndLabelOrder("labelingbin");
+	}
+
+	private void testColorsAndLabelOrder(String extension) throws IOException {
 		Labeling expected = exampleLabeling();
 		expected.getLabel("B").setColor(new ARGBType(Color.yellow.getRGB()));
 		expected.getLabel("A").setColor(new ARGBType(Color.green.getRGB()));
-		final String filename = tempFileWithExtension("json");
+		final String filename = tempFileWithExtension(extension);
 		LabelingSerializer serializer = new LabelingSerializer(new Context());
 		serializer.save(expected, filename);
 		Labeling actual = serializer.open(filename);
@@ -55,6 +188,115 @@ public class LabelingSerializationTest {
 		testSerialization(emptyLabeling(), "tif");
 	}
 
+	@Test
+	public void testTifDoesNotCompactTheLabeling() throws IOException {
+		Labeling labeling = exampleLabeling();
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { 0, 0 });
+		// NB: The label set {A, B} is no longer used after clearing the pixel.
+		ra.get().add(labeling.getLabels().get(0));
+		ra.get().add(labeling.getLabels().get(1));
+		ra.get().clear();
+		int numLabelSets = labeling.getLabelSets().size();
+		testSerialization(labeling, "tif");
+		assertEquals(numLabelSets, labeling.getLabelSets().size());
+	}
+
+	@Test
+	public void testOpenBackedByMappedFile() throws IOException {
+		// NB: The index image of the opened labeling is stored in a memory mapped
+		// file. It can be modified and saved like any other labeling.
+		LabelingSerializer serializer = new LabelingSerializer(new Context(),
+			TileStorage.MAPPED_FILE);
+		for (String filename : Arrays.asList(tempFileWithExtension("json"),
+			tempFileWithExtension("labelingbin"), tempFileWithExtension("tif"), Files
+				.createTempDirectory("test-").resolve("test.labelingdir").toString()))
+		{
+			Labeling expected = exampleLabeling();
+			serializer.save(expected, filename);
+			Labeling actual = serializer.open(filename);
+			SparseRandomAccessIntType indexImg = (SparseRandomAccessIntType) actual
+				.getIndexImg();
+			assertEquals(TileStorage.MAPPED_FILE, indexImg.storage());
+			assertEquals(TileLayout.MORTON, indexImg.layout());
+			ImgLib2Assert.assertImageEquals(expected, actual, (a, b) -> setsEqual(
+				toStrings(a), toStrings(b)));
+			for (Labeling labeling : Arrays.asList(expected, actual)) {
+				RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+				ra.setPosition(new long[] { 3, 4 });
+				ra.get().add(labeling.getLabel("B"));
+			}
+			serializer.save(actual, filename);
+			actual.close();
+			ImgLib2Assert.assertImageEquals(expected, new LabelingSerializer(
+				new Context()).open(filename), (a, b) -> setsEqual(toStrings(a),
+					toStrings(b)));
+		}
+	}
+
+	@Test
+	public void testTif3d() throws IOException {
+		// NB: The pages are split into several strips.
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B", "C"),
+			new FinalInterval(1100, 1000, 3));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			ra.setPosition(new long[] { random.nextInt(1100), random.nextInt(1000),
+				random.nextInt(3) });
+			ra.get().add(labeling.getLabels().get(random.nextInt(3)));
+		}
+		testSerialization(labeling, "tif");
+	}
+
+	@Test
+	public void testTifWithoutLabelsFile() throws IOException {
+		// NB: Without the *.labels file, each pixel value becomes a label.
+		LabelingSerializer serializer = new LabelingSerializer(new Context());
+		String filename = tempFileWithExtension("tif");
+		serializer.save(exampleLabeling(), filename);
+		Files.delete(Paths.get(filename + ".labels"));
+		Labeling actual = serializer.open(filename);
+		assertEquals(Arrays.asList("1", "2"), actual.getLabels().stream().map(
+			Label::name).collect(Collectors.toList()));
+		assertTrue(actual.getIndexImg() instanceof SparseRandomAccessIntType);
+		RandomAccess<LabelingType<Label>> ra = actual.randomAccess();
+		ra.setPosition(new long[] { 10, 10 });
+		Set<String> a = toStrings(ra.get());
+		ra.setPosition(new long[] { 42, 12 });
+		Set<String> b = toStrings(ra.get());
+		assertEquals(1, a.size());
+		assertEquals(1, b.size());
+		assertFalse(a.equals(b));
+		ra.setPosition(new long[] { 11, 10 });
+		assertTrue(ra.get().isEmpty());
+	}
+
+	@Test
+	public void testTifWithoutLabelsFileSortsValues() throws IOException {
+		// NB: The pixel values are found in parallel, in any order, but the
+		// indices follow the sorted values.
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B", "C"),
+			new FinalInterval(1100, 1000, 3));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			ra.setPosition(new long[] { random.nextInt(1100), random.nextInt(1000),
+				random.nextInt(3) });
+			ra.get().add(labeling.getLabels().get(random.nextInt(3)));
+		}
+		LabelingSerializer serializer = new LabelingSerializer(new Context());
+		String filename = tempFileWithExtension("tif");
+		serializer.save(labeling, filename);
+		Files.delete(Paths.get(filename + ".labels"));
+		LabelingMapping<String> mapping = serializer.openImgLabelingFromTiff(
+			filename).getMapping();
+		assertTrue(mapping.numSets() > 2);
+		for (int i = 1; i < mapping.numSets(); i++)
+			assertEquals(Collections.singleton(Integer.toString(i)), mapping
+				.labelsAtIndex(i));
+	}
+
 	private void testSerialization(Labeling labeling, String extension)
 		throws IOException
 	{
@@ -102,6 +344,24 @@ public class LabelingSerializationTest {
 		return labeling;
 	}
 
+	private static Labeling runsLabeling() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B"),
+			new FinalInterval(new long[] { -5, 3, 0 }, new long[] { 60, 40, 7 }));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			ra.setPosition(new long[] { -5 + random.nextInt(66), 3 + random.nextInt(
+				38), random.nextInt(8) });
+			Label label = labeling.getLabels().get(i % 2);
+			int length = random.nextInt(20);
+			for (int x = 0; x < length && ra.getLongPosition(0) <= 60; x++) {
+				ra.get().add(label);
+				ra.fwd(0);
+			}
+		}
+		return labeling;
+	}
+
 	private static Labeling emptyLabeling() {
 		return Labeling.createEmpty(Collections.emptyList(), new FinalInterval(2,
 			2));
@@ -1,6 +1,7 @@
 
 package net.imglib2.labkit.labeling;
 
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -51,6 +52,43 @@ public class LabelingSlicerTest {
 		assertImageEquals(slices.get(1), result.get(1));
 	}
 
+	@Test
+	public void testSliceSparsityCursor() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a"), Intervals
+			.createMinSize(0, 0, 2, 10, 10, 50));
+		Label a = labeling.getLabel("a");
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		for (long[] position : new long[][] { { 1, 2, 7 }, { 3, 4, 8 }, { 5, 6,
+			8 }, { 7, 8, 40 } })
+		{
+			ra.setPosition(position);
+			ra.get().add(a);
+		}
+		Labeling slice = labeling.hyperSlice(2, 8);
+		assertEquals(2, slice.numDimensions());
+		Set<List<Long>> positions = new HashSet<>();
+		Cursor<?> cursor = slice.sparsityCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			positions.add(Arrays.asList(cursor.getLongPosition(0), cursor
+				.getLongPosition(1)));
+		}
+		assertEquals(2, positions.size());
+		assertTrue(positions.contains(Arrays.asList(3L, 4L)));
+		assertTrue(positions.contains(Arrays.asList(5L, 6L)));
+		assertEquals(2, slice.iterableRegions().get(a).size());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSliceIsReadOnly() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a"), Intervals
+			.createMinSize(0, 0, 0, 10, 10, 10));
+		Labeling slice = labeling.hyperSlice(2, 5);
+		RandomAccess<LabelingType<Label>> ra = slice.randomAccess();
+		ra.setPosition(new long[] { 1, 2 });
+		ra.get().add(slice.getLabel("a"));
+	}
+
 	private <T> void assertImageEquals(
 		RandomAccessibleInterval<LabelingType<T>> expected,
 		RandomAccessibleInterval<LabelingType<T>> actual)
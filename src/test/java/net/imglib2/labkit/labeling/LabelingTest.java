@@ -1,16 +1,31 @@
 
 package net.imglib2.labkit.labeling;
 
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.IterableRegion;
 import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -42,6 +57,214 @@ public class LabelingTest {
 			labeling, position)));
 	}
 
+	@Test
+	public void testIterableRegionsFollowWrites() {
+		// NB: The regions are maintained incrementally, they must reflect every
+		// write to the labeling.
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 0, 0);
+		addPixelLabel(labeling, f, 1, 1);
+		addPixelLabel(labeling, b, 1, 1);
+		assertEquals(2, labeling.iterableRegions().get(f).size());
+		assertEquals(1, labeling.iterableRegions().get(b).size());
+		getPixelLabels(labeling, 1, 1).remove(f);
+		assertEquals(1, labeling.iterableRegions().get(f).size());
+		labeling.clearLabel(b);
+		assertEquals(0, labeling.iterableRegions().get(b).size());
+		assertTrue(getPixelLabels(labeling, 1, 1).isEmpty());
+	}
+
+	@Test
+	public void testCompactLabelSets() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, b, 0, 0);
+		addPixelLabel(labeling, f, 0, 0);
+		addPixelLabel(labeling, f, 1, 1);
+		getPixelLabels(labeling, 0, 0).remove(b);
+		// NB: The sets {b} and {b, f} are no longer used.
+		assertEquals(4, labeling.getLabelSets().size());
+		assertEquals(2, labeling.compactLabelSets());
+		assertEquals(2, labeling.getLabelSets().size());
+		assertEquals(Collections.singleton(f), new HashSet<>(getPixelLabels(
+			labeling, 0, 0)));
+		assertEquals(2, labeling.iterableRegions().get(f).size());
+		addPixelLabel(labeling, b, 1, 1);
+		assertEquals(1, labeling.iterableRegions().get(b).size());
+		assertEquals(0, labeling.compactLabelSets());
+	}
+
+	@Test
+	public void testCompactedCopy() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, b, 0, 0);
+		addPixelLabel(labeling, f, 0, 0);
+		getPixelLabels(labeling, 0, 0).remove(b);
+		assertEquals(4, labeling.getLabelSets().size());
+		Labeling copy = labeling.compactedCopy();
+		// NB: Only the copy is compacted, the labeling is unchanged.
+		assertEquals(2, copy.getLabelSets().size());
+		assertEquals(4, labeling.getLabelSets().size());
+		assertEquals(Collections.singleton(f), new HashSet<>(getPixelLabels(copy,
+			0, 0)));
+		assertTrue(getPixelLabels(copy, 1, 1).isEmpty());
+		copy.close();
+		assertEquals(Collections.singleton(f), new HashSet<>(getPixelLabels(
+			labeling, 0, 0)));
+	}
+
+	@Test
+	public void testClearLabel() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 0, 0);
+		addPixelLabel(labeling, b, 0, 0);
+		addPixelLabel(labeling, b, 1, 1);
+		addPixelLabel(labeling, f, 1, 0);
+		labeling.clearLabel(b);
+		assertEquals(Collections.singleton(f), new HashSet<>(getPixelLabels(
+			labeling, 0, 0)));
+		assertEquals(Collections.singleton(f), new HashSet<>(getPixelLabels(
+			labeling, 1, 0)));
+		assertTrue(getPixelLabels(labeling, 1, 1).isEmpty());
+		assertEquals(0, labeling.iterableRegions().get(b).size());
+		assertEquals(2, labeling.iterableRegions().get(f).size());
+		// NB: Painting the label again, reuses the sets.
+		addPixelLabel(labeling, b, 1, 1);
+		assertEquals(Collections.singleton(b), new HashSet<>(getPixelLabels(
+			labeling, 1, 1)));
+		assertEquals(1, labeling.iterableRegions().get(b).size());
+	}
+
+	@Test
+	public void testMergeLabels() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 0, 0);
+		addPixelLabel(labeling, b, 0, 0);
+		addPixelLabel(labeling, b, 1, 1);
+		labeling.mergeLabels(b, f);
+		assertEquals(Collections.singletonList(f), labeling.getLabels());
+		assertEquals(Collections.singleton(f), new HashSet<>(getPixelLabels(
+			labeling, 0, 0)));
+		assertEquals(Collections.singleton(f), new HashSet<>(getPixelLabels(
+			labeling, 1, 1)));
+		assertEquals(2, labeling.iterableRegions().get(f).size());
+	}
+
+	@Test
+	public void testApplyMask() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			Intervals.createMinSize(0, 0, 100, 100));
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 10, 10);
+		Img<BitType> mask = ArrayImgs.bits(100, 100);
+		RandomAccess<BitType> ra = mask.randomAccess();
+		for (long x = 0; x < 100; x++)
+			for (long y = 0; y < 100; y += 2) {
+				ra.setPosition(new long[] { x, y });
+				ra.get().set(true);
+			}
+		labeling.applyMask(b, mask);
+		assertEquals(new HashSet<>(Arrays.asList(f, b)), new HashSet<>(
+			getPixelLabels(labeling, 10, 10)));
+		assertEquals(Collections.singleton(b), new HashSet<>(getPixelLabels(
+			labeling, 99, 98)));
+		assertTrue(getPixelLabels(labeling, 99, 99).isEmpty());
+		assertEquals(5000, labeling.iterableRegions().get(b).size());
+		// NB: Applying a sparse region adds the label only inside the region.
+		Label c = labeling.addLabel("c");
+		labeling.applyMask(c, labeling.iterableRegions().get(f));
+		assertEquals(new HashSet<>(Arrays.asList(f, b, c)), new HashSet<>(
+			getPixelLabels(labeling, 10, 10)));
+		assertEquals(1, labeling.iterableRegions().get(c).size());
+	}
+
+	@Test
+	public void testLabelIndexAfterOverlappingWrites() throws Exception {
+		// NB: Two masks and a thread that clears pixels write the same pixels at
+		// the same time. Labels may get lost, but the pixel index must agree with
+		// the index image.
+		Interval volume = Intervals.createMinSize(0, 0, 0, 100, 100, 20);
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			volume);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		Img<BitType> maskF = randomMask(volume, 1);
+		Img<BitType> maskB = randomMask(volume, 2);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			futures.add(executor.submit(() -> labeling.applyMask(f, maskF)));
+			futures.add(executor.submit(() -> labeling.applyMask(b, maskB)));
+			futures.add(executor.submit(() -> {
+				RandomAccess<? extends IntegerType<?>> ra = labeling.getIndexImg()
+					.randomAccess();
+				Random random = new Random(3);
+				for (int i = 0; i < 100000; i++) {
+					ra.setPosition(new long[] { random.nextInt(100), random.nextInt(
+						100), random.nextInt(20) });
+					ra.get().setInteger(0);
+				}
+			}));
+			for (Future<?> future : futures)
+				future.get();
+		}
+		finally {
+			executor.shutdown();
+		}
+		Map<Label, IterableRegion<BitType>> regions = labeling.iterableRegions();
+		for (Label label : Arrays.asList(f, b)) {
+			RandomAccess<BitType> region = regions.get(label).randomAccess();
+			long count = 0;
+			Cursor<LabelingType<Label>> cursor = Views.iterable(labeling)
+				.localizingCursor();
+			while (cursor.hasNext()) {
+				boolean expected = cursor.next().contains(label);
+				region.setPosition(cursor);
+				assertEquals(expected, region.get().get());
+				if (expected) count++;
+			}
+			assertEquals(count, regions.get(label).size());
+		}
+	}
+
+	@Test
+	public void testSnapshot() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"), interval);
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 0, 0);
+		Labeling snapshot = labeling.snapshot();
+		addPixelLabel(labeling, b, 0, 0);
+		addPixelLabel(labeling, b, 1, 1);
+		labeling.clearLabel(f);
+		assertEquals(Collections.singleton(f), new HashSet<>(getPixelLabels(
+			snapshot, 0, 0)));
+		assertTrue(getPixelLabels(snapshot, 1, 1).isEmpty());
+		assertEquals(1, snapshot.iterableRegions().get(f).size());
+		assertEquals(0, snapshot.iterableRegions().get(b).size());
+		assertEquals(Collections.singleton(b), new HashSet<>(getPixelLabels(
+			labeling, 0, 0)));
+	}
+
+	private Img<BitType> randomMask(Interval interval, long seed) {
+		Img<BitType> mask = ArrayImgs.bits(Intervals.dimensionsAsLongArray(
+			interval));
+		Random random = new Random(seed);
+		for (BitType pixel : mask)
+			pixel.set(random.nextBoolean());
+		return mask;
+	}
+
 	private void addPixelLabel(Labeling labeling, Label value, long... position) {
 		RandomAccess<LabelingType<Label>> randomAccess = labeling.randomAccess();
 		randomAccess.setPosition(position);
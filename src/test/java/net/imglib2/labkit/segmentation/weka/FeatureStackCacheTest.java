@@ -0,0 +1,93 @@
+
+package net.imglib2.labkit.segmentation.weka;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.trainable_segmentation.classification.Segmenter;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.SingleFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
+import net.imglib2.trainable_segmentation.utils.SingletonContext;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FeatureStackCacheTest {
+
+	private final FeatureSettings settings = new FeatureSettings(GlobalSettings
+		.default2d().build(), SingleFeatures.identity());
+
+	private final FeatureCalculator calculator = new Segmenter(SingletonContext
+		.getInstance(), Arrays.asList("a", "b"), settings, new FastRandomForest())
+			.features();
+
+	private final RandomAccessibleInterval<FloatType> image = ArrayImgs.floats(
+		300, 200);
+
+	private final RandomAccessibleInterval<FloatType> otherImage = ArrayImgs
+		.floats(300, 200);
+
+	private final Object owner = new Object();
+
+	@Test
+	public void testReuseFeatureStack() {
+		FeatureStackCache cache = new FeatureStackCache();
+		FeatureStackCache.Key key = new FeatureStackCache.Key(image, settings);
+		FeatureStackCache.FeatureStack stack = cache.get(owner, key, calculator,
+			image);
+		assertSame(stack, cache.get(owner, new FeatureStackCache.Key(image,
+			settings), calculator, image));
+		assertNotSame(stack, cache.get(owner, key.slice(1), calculator, image));
+		assertNotSame(stack, cache.get(owner, new FeatureStackCache.Key(
+			otherImage, settings), calculator, image));
+		assertEquals(3, cache.size());
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testClearOwner() {
+		FeatureStackCache cache = new FeatureStackCache();
+		Object other = new Object();
+		FeatureStackCache.Key key = new FeatureStackCache.Key(image, settings);
+		FeatureStackCache.FeatureStack stack = cache.get(owner, key, calculator,
+			image);
+		cache.get(other, key, calculator, image);
+		cache.get(other, key.slice(1), calculator, image);
+		cache.clear(other);
+		assertEquals(1, cache.size());
+		assertSame(stack, cache.get(owner, key, calculator, image));
+		cache.clear(owner);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed() {
+		// NB: The memory budget fits two cells of the feature stacks.
+		long bytesPerCell = 128 * 128 * Float.BYTES;
+		FeatureStackCache cache = new FeatureStackCache(2 * bytesPerCell);
+		FeatureStackCache.Key key = new FeatureStackCache.Key(image, settings);
+		FeatureStackCache.FeatureStack a = cache.get(owner, key.slice(0),
+			calculator, image);
+		a.cellUsed(0);
+		FeatureStackCache.FeatureStack b = cache.get(owner, key.slice(1),
+			calculator, image);
+		b.cellUsed(0);
+		assertSame(a, cache.get(owner, key.slice(0), calculator, image));
+		FeatureStackCache.FeatureStack c = cache.get(owner, key.slice(2),
+			calculator, image);
+		c.cellUsed(0);
+		assertSame(c, cache.get(owner, key.slice(2), calculator, image));
+		assertEquals(2, cache.size());
+		assertSame(a, cache.get(owner, key.slice(0), calculator, image));
+		assertNotSame(b, cache.get(owner, key.slice(1), calculator, image));
+		cache.clear();
+	}
+}
@@ -0,0 +1,171 @@
+
+package net.imglib2.labkit.segmentation.weka;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.labkit.labeling.Label;
+import net.imglib2.labkit.labeling.Labeling;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.trainable_segmentation.classification.Segmenter;
+import net.imglib2.trainable_segmentation.classification.Training;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.SingleFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
+import net.imglib2.trainable_segmentation.utils.SingletonContext;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.composite.Composite;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrainingSamplesTest {
+
+	private final List<String> classes = Arrays.asList("a", "b");
+
+	private final FeatureSettings settings = new FeatureSettings(GlobalSettings
+		.default2d().build(), SingleFeatures.identity());
+
+	private final FeatureCalculator calculator = new Segmenter(SingletonContext
+		.getInstance(), classes, settings, new FastRandomForest()).features();
+
+	private final Img<FloatType> image = pixelIndexImage(300, 200);
+
+	private final FeatureStackCache featureStackCache = new FeatureStackCache();
+
+	private final TrainingSamples samples = new TrainingSamples();
+
+	private final FeatureStackCache.Key key = new FeatureStackCache.Key(image,
+		settings);
+
+	private final AtomicInteger featureStackRequests = new AtomicInteger();
+
+	@Test
+	public void testOnlyExtractModifiedTiles() {
+		Labeling labeling = Labeling.createEmpty(classes, new FinalInterval(300,
+			200));
+		set(labeling, "a", 10, 10);
+		set(labeling, "b", 200, 10);
+		assertEquals(set("0 10 10", "1 200 10"), train(labeling));
+		assertEquals(1, featureStackRequests.get());
+		assertEquals(set("0 10 10", "1 200 10"), train(labeling));
+		assertEquals(1, featureStackRequests.get());
+		set(labeling, "b", 20, 150);
+		clear(labeling, 200, 10);
+		assertEquals(set("0 10 10", "1 20 150"), train(labeling));
+		assertEquals(2, featureStackRequests.get());
+		featureStackCache.clear();
+	}
+
+	@Test
+	public void testRenamedLabel() {
+		Labeling labeling = Labeling.createEmpty(classes, new FinalInterval(300,
+			200));
+		set(labeling, "a", 10, 10);
+		set(labeling, "b", 200, 10);
+		train(labeling);
+		labeling.renameLabel(labeling.getLabel("b"), "c");
+		List<String> classes = Arrays.asList("a", "c");
+		assertEquals(set("0 10 10", "1 200 10"), train(labeling, classes));
+		featureStackCache.clear();
+	}
+
+	@Test
+	public void testNewLabelSetOrLabeling() {
+		Labeling labeling = Labeling.createEmpty(classes, new FinalInterval(300,
+			200));
+		set(labeling, "a", 10, 10);
+		set(labeling, "b", 200, 10);
+		train(labeling);
+		// NB: A new label set, or a different labeling, extracts all samples.
+		set(labeling, "b", 10, 10);
+		assertEquals(set("0 10 10", "1 200 10"), train(labeling));
+		assertEquals(2, featureStackRequests.get());
+		Labeling other = Labeling.createEmpty(classes, new FinalInterval(300,
+			200));
+		set(other, "b", 20, 20);
+		assertEquals(set("1 20 20"), train(other));
+		assertEquals(3, featureStackRequests.get());
+		featureStackCache.clear();
+	}
+
+	// -- Helper methods --
+
+	private Set<String> train(Labeling labeling) {
+		return train(labeling, classes);
+	}
+
+	private Set<String> train(Labeling labeling, List<String> classes) {
+		RecordingTraining training = new RecordingTraining();
+		TrainingSamples.Changes changes = samples.changes(key, labeling, classes);
+		samples.addSamples(training, classes, key, labeling, changes, () -> {
+			featureStackRequests.incrementAndGet();
+			return featureStackCache.get(this, key, calculator, image);
+		});
+		samples.finish(changes);
+		samples.retainUsed();
+		return training.samples;
+	}
+
+	private static Img<FloatType> pixelIndexImage(long... dimensions) {
+		// NB: The pixel value encodes the position, x + 1000 * y.
+		Img<FloatType> image = ArrayImgs.floats(dimensions);
+		Cursor<FloatType> cursor = image.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().setReal(cursor.getLongPosition(0) + 1000 * cursor
+				.getLongPosition(1));
+		}
+		return image;
+	}
+
+	private static void set(Labeling labeling, String label, long... position) {
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(position);
+		ra.get().add(labeling.getLabel(label));
+	}
+
+	private static void clear(Labeling labeling, long... position) {
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(position);
+		ra.get().clear();
+	}
+
+	private static Set<String> set(String... values) {
+		return new HashSet<>(Arrays.asList(values));
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Records the samples as strings: class index, x and y.
+	 */
+	private static class RecordingTraining implements Training {
+
+		private final Set<String> samples = new HashSet<>();
+
+		@Override
+		public void add(Composite<? extends RealType<?>> features,
+			int classIndex)
+		{
+			int value = (int) features.get(0).getRealDouble();
+			samples.add(classIndex + " " + value % 1000 + " " + value / 1000);
+		}
+
+		@Override
+		public void train() {
+			// NB: Nothing to train.
+		}
+	}
+}
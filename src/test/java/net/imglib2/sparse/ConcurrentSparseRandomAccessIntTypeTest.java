@@ -0,0 +1,247 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress test for {@link ConcurrentSparseRandomAccessIntType}. Several threads
+ * write to disjoint and overlapping regions at the same time.
+ */
+public class ConcurrentSparseRandomAccessIntTypeTest {
+
+	private static final int NUM_THREADS = 8;
+
+	private final Interval interval = Intervals.createMinSize(0, 0, 0, 100, 70,
+		NUM_THREADS * 10);
+
+	@Test
+	public void testDisjointWrites() throws Exception {
+		SparseRandomAccessIntType image = new ConcurrentSparseRandomAccessIntType(
+			interval);
+		// NB: Each thread writes into its own slab of 10 z-slices. The slabs are
+		// not aligned with the tiles, neighboring threads share tiles.
+		runInParallel(thread -> {
+			RandomAccess<IntType> ra = image.randomAccess();
+			for (long z = thread * 10; z < thread * 10 + 10; z++)
+				for (long y = 0; y < 70; y++)
+					for (long x = 0; x < 100; x++) {
+						ra.setPosition(new long[] { x, y, z });
+						ra.get().set((x + y) % 3 == 0 ? 0 : thread + 1);
+					}
+		});
+		RandomAccess<IntType> ra = image.randomAccess();
+		long count = 0;
+		for (long z = 0; z < NUM_THREADS * 10; z++)
+			for (long y = 0; y < 70; y++)
+				for (long x = 0; x < 100; x++) {
+					ra.setPosition(new long[] { x, y, z });
+					int expected = (x + y) % 3 == 0 ? 0 : (int) (z / 10 + 1);
+					assertEquals(expected, ra.get().get());
+					if (expected != 0) count++;
+				}
+		assertEquals(count, image.sparsityPattern().size());
+		assertEquals(count, countSparseCursor(image));
+	}
+
+	@Test
+	public void testOverlappingWrites() throws Exception {
+		SparseRandomAccessIntType image = new ConcurrentSparseRandomAccessIntType(
+			interval);
+		long size = Intervals.numElements(interval);
+		// NB: All threads write to all pixels, in different orders.
+		runInParallel(thread -> {
+			RandomAccess<IntType> ra = image.randomAccess();
+			for (long i = 0; i < size; i++) {
+				long index = (i * 7919 + thread * 104729) % size;
+				ra.setPosition(new long[] { index % 100, index / 100 % 70, index /
+					7000 });
+				ra.get().set(thread + 1);
+			}
+		});
+		assertEquals(size, image.sparsityPattern().size());
+		Cursor<IntType> cursor = image.sparseCursor();
+		while (cursor.hasNext()) {
+			int value = cursor.next().get();
+			assertTrue(value >= 1 && value <= NUM_THREADS);
+		}
+		// NB: All threads clear all pixels, while the tiles convert from dense
+		// to sparse and disappear.
+		runInParallel(thread -> {
+			RandomAccess<IntType> ra = image.randomAccess();
+			for (long i = 0; i < size; i++) {
+				long index = (i * 7919 + thread * 104729) % size;
+				ra.setPosition(new long[] { index % 100, index / 100 % 70, index /
+					7000 });
+				ra.get().set(0);
+			}
+		});
+		assertEquals(0, image.sparsityPattern().size());
+		assertEquals(0, countSparseCursor(image));
+	}
+
+	@Test
+	public void testSnapshotWhileWriting() throws Exception {
+		SparseRandomAccessIntType image = new ConcurrentSparseRandomAccessIntType(
+			interval);
+		long size = Intervals.numElements(interval);
+		AtomicBoolean done = new AtomicBoolean(false);
+		List<SparseRandomAccessIntType> snapshots = new ArrayList<>();
+		List<int[]> snapshotValues = new ArrayList<>();
+		// NB: Thread 0 takes snapshots, all other threads write meanwhile.
+		runInParallel(thread -> {
+			if (thread == 0) {
+				for (int i = 0; i < 10; i++) {
+					SparseRandomAccessIntType snapshot = image.snapshot();
+					snapshots.add(snapshot);
+					snapshotValues.add(values(snapshot));
+				}
+				done.set(true);
+				return;
+			}
+			RandomAccess<IntType> ra = image.randomAccess();
+			Random random = new Random(thread);
+			while (!done.get()) {
+				long index = (long) (random.nextDouble() * size);
+				ra.setPosition(new long[] { index % 100, index / 100 % 70, index /
+					7000 });
+				ra.get().set(random.nextInt(3));
+			}
+		});
+		int[] values = values(image);
+		for (int i = 0; i < snapshots.size(); i++) {
+			SparseRandomAccessIntType snapshot = snapshots.get(i);
+			// NB: The snapshot didn't change, while the image was written.
+			assertArrayEquals(snapshotValues.get(i), values(snapshot));
+			// NB: Every pixel that differs, is in a modified tile.
+			boolean[] modified = new boolean[(int) size];
+			for (int tile : image.modifiedTiles(snapshot))
+				markPixels(image.tileInterval(tile), modified);
+			boolean[] modifiedVersions = new boolean[(int) size];
+			for (int tile : image.modifiedTiles(snapshot.tileVersions()))
+				markPixels(image.tileInterval(tile), modifiedVersions);
+			for (int j = 0; j < size; j++)
+				if (values[j] != snapshotValues.get(i)[j]) {
+					assertTrue(modified[j]);
+					assertTrue(modifiedVersions[j]);
+				}
+		}
+	}
+
+	@Test
+	public void testChangeListenerOrder() throws Exception {
+		SparseRandomAccessIntType image = new ConcurrentSparseRandomAccessIntType(
+			interval);
+		long size = Intervals.numElements(interval);
+		// NB: The listener keeps a copy of the image. It only stays equal, if the
+		// changes of each pixel are reported in order.
+		int[] copy = new int[(int) size];
+		Set<Long> prepared = ConcurrentHashMap.newKeySet();
+		image.setChangeListener(new SparseRandomAccessIntType.ChangeListener() {
+
+			@Override
+			public boolean isPrepared(int oldValue, int newValue) {
+				return prepared.contains(key(oldValue, newValue));
+			}
+
+			@Override
+			public void prepare(int oldValue, int newValue) {
+				prepared.add(key(oldValue, newValue));
+			}
+
+			@Override
+			public void valueChanged(long index, int oldValue, int newValue) {
+				assertTrue(isPrepared(oldValue, newValue));
+				synchronized (copy) {
+					assertEquals(copy[(int) index], oldValue);
+					copy[(int) index] = newValue;
+				}
+			}
+		});
+		// NB: All threads write to the same few pixels.
+		runInParallel(thread -> {
+			RandomAccess<IntType> ra = image.randomAccess();
+			Random random = new Random(thread);
+			for (int i = 0; i < 100000; i++) {
+				long index = random.nextInt(100);
+				ra.setPosition(new long[] { index, 0, 0 });
+				ra.get().set(random.nextInt(4));
+			}
+		});
+		assertArrayEquals(copy, values(image));
+	}
+
+	private static long key(int oldValue, int newValue) {
+		return ((long) oldValue << 32) | (newValue & 0xffffffffL);
+	}
+
+	private int[] values(SparseRandomAccessIntType image) {
+		int[] values = new int[(int) Intervals.numElements(interval)];
+		RandomAccess<IntType> ra = image.randomAccess();
+		for (int i = 0; i < values.length; i++) {
+			ra.setPosition(new long[] { i % 100, i / 100 % 70, i / 7000 });
+			values[i] = ra.get().get();
+		}
+		return values;
+	}
+
+	private void markPixels(Interval tile, boolean[] pixels) {
+		for (long z = tile.min(2); z <= tile.max(2); z++)
+			for (long y = tile.min(1); y <= tile.max(1); y++)
+				for (long x = tile.min(0); x <= tile.max(0); x++)
+					pixels[(int) (x + 100 * y + 7000 * z)] = true;
+	}
+
+	private long countSparseCursor(SparseRandomAccessIntType image) {
+		Cursor<IntType> cursor = image.sparseCursor();
+		long count = 0;
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			count++;
+		}
+		return count;
+	}
+
+	private interface ThreadAction {
+
+		void run(int thread);
+	}
+
+	private void runInParallel(ThreadAction action) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < NUM_THREADS; i++) {
+				int thread = i;
+				tasks.add(() -> {
+					action.run(thread);
+					return null;
+				});
+			}
+			for (Future<Void> future : executor.invokeAll(tasks))
+				future.get();
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
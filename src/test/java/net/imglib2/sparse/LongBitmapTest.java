@@ -0,0 +1,152 @@
+
+package net.imglib2.sparse;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongBitmapTest {
+
+	@Test
+	public void testAddRemoveContains() {
+		LongBitmap bitmap = new LongBitmap();
+		assertTrue(bitmap.add(42));
+		assertFalse(bitmap.add(42));
+		assertTrue(bitmap.add(1L << 40));
+		assertTrue(bitmap.contains(42));
+		assertFalse(bitmap.contains(43));
+		assertEquals(2, bitmap.size());
+		assertTrue(bitmap.remove(42));
+		assertFalse(bitmap.remove(42));
+		assertArrayEquals(new long[] { 1L << 40 }, bitmap.toArray());
+	}
+
+	@Test
+	public void testRandomOperations() {
+		// NB: Values are concentrated on a few containers, such that the
+		// containers switch between array and bitmap representation.
+		Random random = new Random(42);
+		LongBitmap bitmap = new LongBitmap();
+		TreeSet<Long> expected = new TreeSet<>();
+		for (int i = 0; i < 200000; i++) {
+			long value = randomValue(random);
+			boolean add = i < 100000 ? random.nextInt(4) != 0 : random.nextInt(
+				4) == 0;
+			assertEquals(add ? expected.add(value) : expected.remove(value), add
+				? bitmap.add(value) : bitmap.remove(value));
+		}
+		assertEquals(expected.size(), bitmap.size());
+		assertArrayEquals(toArray(expected), bitmap.toArray());
+	}
+
+	@Test
+	public void testSetAlgebra() {
+		Random random = new Random(42);
+		LongBitmap a = new LongBitmap();
+		LongBitmap b = new LongBitmap();
+		TreeSet<Long> setA = new TreeSet<>();
+		TreeSet<Long> setB = new TreeSet<>();
+		for (int i = 0; i < 50000; i++) {
+			long value = randomValue(random);
+			a.add(value);
+			setA.add(value);
+			value = randomValue(random);
+			b.add(value);
+			setB.add(value);
+		}
+		TreeSet<Long> union = new TreeSet<>(setA);
+		union.addAll(setB);
+		TreeSet<Long> intersection = new TreeSet<>(setA);
+		intersection.retainAll(setB);
+		TreeSet<Long> difference = new TreeSet<>(setA);
+		difference.removeAll(setB);
+		assertArrayEquals(toArray(union), LongBitmap.union(a, b).toArray());
+		assertArrayEquals(toArray(intersection), LongBitmap.intersection(a, b)
+			.toArray());
+		assertArrayEquals(toArray(difference), LongBitmap.difference(a, b)
+			.toArray());
+		assertEquals(intersection.size(), LongBitmap.intersection(a, b).size());
+		LongBitmap c = a.copy();
+		c.addAll(b);
+		assertArrayEquals(toArray(union), c.toArray());
+		assertEquals(union.size(), c.size());
+		assertTrue(c.add(1L << 40));
+		assertTrue(c.contains(1L << 40));
+	}
+
+	@Test
+	public void testCopyIterator() {
+		LongBitmap bitmap = new LongBitmap();
+		for (long i = 0; i < 10; i++)
+			bitmap.add(i * 100000);
+		LongBitmap.SortedIterator iterator = bitmap.sortedIterator();
+		iterator.next();
+		LongBitmap.SortedIterator copy = iterator.copy();
+		assertEquals(100000, iterator.next());
+		assertEquals(100000, copy.next());
+	}
+
+	@Test
+	public void testSplit() {
+		Random random = new Random(42);
+		LongBitmap bitmap = new LongBitmap();
+		for (int i = 0; i < 50000; i++)
+			bitmap.add(randomValue(random));
+		for (int numChunks : new int[] { 1, 4, 100 }) {
+			List<LongBitmap.SortedIterator> iterators = bitmap.split(numChunks);
+			assertTrue(iterators.size() <= numChunks);
+			List<Long> values = new ArrayList<>();
+			for (LongBitmap.SortedIterator iterator : iterators)
+				while (iterator.hasNext())
+					values.add(iterator.next());
+			assertArrayEquals(bitmap.toArray(), values.stream().mapToLong(x -> x)
+				.toArray());
+		}
+	}
+
+	@Test
+	public void testAddRange() {
+		// NB: The ranges cross container boundaries, and are short and long, such
+		// that both array and bitmap containers are filled.
+		Random random = new Random(42);
+		LongBitmap bitmap = new LongBitmap();
+		TreeSet<Long> expected = new TreeSet<>();
+		for (int i = 0; i < 300; i++) {
+			long start = randomValue(random);
+			long end = start + (random.nextBoolean() ? random.nextInt(10) : random
+				.nextInt(100000));
+			bitmap.addRange(start, end);
+			for (long value = start; value < end; value++)
+				expected.add(value);
+			long value = randomValue(random);
+			assertEquals(expected.add(value), bitmap.add(value));
+		}
+		assertEquals(expected.size(), bitmap.size());
+		assertArrayEquals(toArray(expected), bitmap.toArray());
+	}
+
+	@Test
+	public void testMemoryUsage() {
+		// NB: A compact blob of 1 million pixels takes about 1 bit per pixel.
+		LongBitmap bitmap = new LongBitmap();
+		for (long i = 0; i < 1000000; i++)
+			bitmap.add(i);
+		assertTrue(bitmap.memoryUsage() < 1000000 / 4);
+	}
+
+	private long randomValue(Random random) {
+		return random.nextInt(6) * 65536L * 1000 + random.nextInt(20000);
+	}
+
+	private long[] toArray(TreeSet<Long> set) {
+		return set.stream().mapToLong(x -> x).toArray();
+	}
+}
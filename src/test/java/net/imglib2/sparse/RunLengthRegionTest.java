@@ -0,0 +1,140 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RunLengthRegionTest {
+
+	private final Interval interval = Intervals.createMinSize(-5, 2, 1, 40, 30,
+		20);
+
+	@Test
+	public void testAddRemoveRuns() {
+		RunLengthRegion region = new RunLengthRegion(interval);
+		region.addRun(new Point(0, 3, 4), 10);
+		region.addRun(new Point(20, 3, 4), 5);
+		assertEquals(15, region.size());
+		assertEquals(2, region.numRuns());
+		// NB: Joins the two runs.
+		region.addRun(new Point(5, 3, 4), 20);
+		assertEquals(25, region.size());
+		assertEquals(1, region.numRuns());
+		// NB: Splits the run.
+		region.removeRun(new Point(10, 3, 4), 2);
+		assertEquals(23, region.size());
+		assertEquals(2, region.numRuns());
+		assertTrue(region.contains(new Point(9, 3, 4)));
+		assertFalse(region.contains(new Point(10, 3, 4)));
+		assertFalse(region.contains(new Point(11, 3, 4)));
+		assertTrue(region.contains(new Point(12, 3, 4)));
+		assertFalse(region.contains(new Point(12, 3, 5)));
+	}
+
+	@Test
+	public void testRandomOperations() {
+		Random random = new Random(42);
+		RunLengthRegion region = new RunLengthRegion(interval);
+		TreeSet<Long> expected = new TreeSet<>();
+		for (int i = 0; i < 5000; i++) {
+			Point start = new Point(random.nextInt(30) - 5, random.nextInt(3) + 2,
+				random.nextInt(2) + 1);
+			long length = random.nextInt(10);
+			boolean add = random.nextInt(3) != 0;
+			if (add) region.addRun(start, length);
+			else region.removeRun(start, length);
+			for (long j = 0; j < length; j++) {
+				Point point = new Point(start);
+				point.move(j, 0);
+				if (add) expected.add(index(point));
+				else expected.remove(index(point));
+			}
+		}
+		assertEquals(expected.size(), region.size());
+		assertEquals(new ArrayList<>(expected), indices(region.cursor()));
+		RandomAccess<BitType> ra = region.randomAccess();
+		IntervalIndexer2 indexer = new IntervalIndexer2(interval);
+		for (long index = 0; index < indexer.size(); index++) {
+			indexer.indexToPosition(index, ra);
+			assertEquals(expected.contains(index(ra)), ra.get().get());
+		}
+	}
+
+	@Test
+	public void testConversion() {
+		SparseIterableRegion sparse = new SparseIterableRegion(interval);
+		RandomAccess<BitType> ra = sparse.randomAccess();
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			ra.setPosition(new long[] { random.nextInt(40) - 5, random.nextInt(30) +
+				2, random.nextInt(20) + 1 });
+			ra.get().setOne();
+		}
+		RunLengthRegion region = RunLengthRegion.of(sparse);
+		assertEquals(sparse.size(), region.size());
+		assertEquals(indices(sparse.cursor()), indices(region.cursor()));
+		SparseIterableRegion back = region.toSparseIterableRegion();
+		assertEquals(indices(sparse.cursor()), indices(back.cursor()));
+	}
+
+	@Test
+	public void testCopyCursor() {
+		RunLengthRegion region = new RunLengthRegion(interval);
+		region.addRun(new Point(0, 3, 4), 2);
+		region.addRun(new Point(0, 4, 4), 2);
+		Cursor<Void> cursor = region.cursor();
+		cursor.fwd();
+		cursor.fwd();
+		Cursor<Void> copy = cursor.copyCursor();
+		cursor.fwd();
+		copy.fwd();
+		assertEquals(cursor.getLongPosition(1), copy.getLongPosition(1));
+		assertEquals(4, copy.getLongPosition(1));
+	}
+
+	@Test
+	public void testCursorIgnoresLaterRuns() {
+		// NB: The fast path for increasing x extends the last run of a line. The
+		// runs that an existing cursor uses must not change.
+		RunLengthRegion region = new RunLengthRegion(interval);
+		region.addRun(new Point(0, 3, 4), 2);
+		Cursor<Void> cursor = region.cursor();
+		cursor.fwd();
+		region.addRun(new Point(2, 3, 4), 3);
+		assertEquals(1, indices(cursor).size());
+		assertEquals(5, indices(region.cursor()).size());
+		assertEquals(5, region.size());
+	}
+
+	private long index(Localizable position) {
+		long index = 0;
+		for (int d = 2; d >= 0; d--)
+			index = index * interval.dimension(d) + position.getLongPosition(d) -
+				interval.min(d);
+		return index;
+	}
+
+	private List<Long> indices(Cursor<?> cursor) {
+		List<Long> result = new ArrayList<>();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			result.add(index(cursor));
+		}
+		return result;
+	}
+}
@@ -1,13 +1,19 @@
 
 package net.imglib2.sparse;
 
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class SparseIterableRegionTest {
@@ -27,4 +33,43 @@ public class SparseIterableRegionTest {
 		Views.iterable(region).forEach(x -> assertTrue(x.get()));
 	}
 
+	@Test
+	public void testSetAlgebra() {
+		Interval interval = Intervals.createMinSize(0, 0, 10, 10);
+		SparseIterableRegion a = region(interval, new long[] { 1, 1 }, new long[] {
+			2, 2 });
+		SparseIterableRegion b = region(interval, new long[] { 2, 2 }, new long[] {
+			3, 3 });
+		assertEquals(3, a.union(b).size());
+		assertEquals(1, a.intersection(b).size());
+		SparseIterableRegion difference = a.difference(b);
+		assertEquals(1, difference.size());
+		Cursor<Void> cursor = difference.cursor();
+		cursor.fwd();
+		long[] position = new long[2];
+		cursor.localize(position);
+		assertArrayEquals(new long[] { 1, 1 }, position);
+	}
+
+	@Test
+	public void testCopyCursor() {
+		Interval interval = Intervals.createMinSize(0, 0, 10, 10);
+		SparseIterableRegion region = region(interval, new long[] { 1, 1 },
+			new long[] { 2, 2 });
+		Cursor<Void> cursor = region.cursor();
+		cursor.fwd();
+		Cursor<Void> copy = cursor.copyCursor();
+		cursor.fwd();
+		assertEquals(1, copy.getLongPosition(0));
+		copy.fwd();
+		assertEquals(2, copy.getLongPosition(0));
+		assertFalse(copy.hasNext());
+	}
+
+	private SparseIterableRegion region(Interval interval, long[]... positions) {
+		SparseIterableRegion region = new SparseIterableRegion(interval);
+		for (long[] position : positions)
+			region.add(new Point(position));
+		return region;
+	}
 }
@@ -1,13 +1,28 @@
 
 package net.imglib2.sparse;
 
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
 import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class SparseRandomAccessIntTypeTest {
 
@@ -24,4 +39,337 @@ public class SparseRandomAccessIntTypeTest {
 		// test
 		assertFalse(image.sparsityPattern().cursor().hasNext());
 	}
+
+	@Test
+	public void testFillAndClear() {
+		// NB: Filling the image converts the tiles to dense tiles, clearing it
+		// converts them back to sparse tiles, and finally removes them.
+		Interval interval = Intervals.createMinSize(-7, 3, 2, 70, 40, 35);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		Views.iterable(image).forEach(x -> x.setOne());
+		long size = Intervals.numElements(interval);
+		assertEquals(size, image.sparsityPattern().size());
+		Views.iterable(Views.hyperSlice(image, 2, 10)).forEach(x -> x.setZero());
+		assertEquals(size - 70 * 40, image.sparsityPattern().size());
+		assertEquals(0, get(image, 0, 20, 10));
+		assertEquals(1, get(image, 0, 20, 11));
+		Views.iterable(image).forEach(x -> x.setZero());
+		assertEquals(0, image.sparsityPattern().size());
+		assertFalse(image.sparseCursor().hasNext());
+	}
+
+	@Test
+	public void testSparseCursor() {
+		Interval interval = Intervals.createMinSize(0, 0, 0, 100, 100, 100);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		List<List<Long>> expected = Arrays.asList(Arrays.asList(1L, 2L, 3L), Arrays
+			.asList(99L, 0L, 50L), Arrays.asList(40L, 70L, 99L));
+		RandomAccess<IntType> ra = image.randomAccess();
+		for (List<Long> position : expected) {
+			ra.setPosition(position.stream().mapToLong(x -> x).toArray());
+			ra.get().set(42);
+		}
+		List<List<Long>> actual = new ArrayList<>();
+		Cursor<IntType> cursor = image.sparseCursor();
+		while (cursor.hasNext()) {
+			assertEquals(42, cursor.next().get());
+			actual.add(Arrays.asList(cursor.getLongPosition(0), cursor
+				.getLongPosition(1), cursor.getLongPosition(2)));
+		}
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testSparseCursors() {
+		// NB: The chunks together visit the same pixels as a single cursor.
+		Interval interval = Intervals.createMinSize(0, 0, 0, 200, 100, 100);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			ra.setPosition(new long[] { random.nextInt(200), random.nextInt(100),
+				random.nextInt(100) });
+			ra.get().set(random.nextInt(5));
+		}
+		List<Cursor<IntType>> cursors = image.sparseCursors(7);
+		assertEquals(7, cursors.size());
+		List<List<Long>> actual = new ArrayList<>();
+		for (Cursor<IntType> cursor : cursors)
+			actual.addAll(positions(cursor));
+		assertEquals(positions(image.sparseCursor()), actual);
+	}
+
+	@Test
+	public void testSparseCursorInterval() {
+		// NB: The interval covers some tiles completely, and some partially.
+		Interval interval = Intervals.createMinSize(-10, 0, 5, 100, 80, 70);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			ra.setPosition(new long[] { random.nextInt(100) - 10, random.nextInt(80),
+				random.nextInt(70) + 5 });
+			ra.get().set(1);
+		}
+		Interval restriction = Intervals.createMinMax(-3, 10, 20, 70, 50, 37);
+		List<List<Long>> expected = new ArrayList<>();
+		for (List<Long> position : positions(image.sparseCursor()))
+			if (Intervals.contains(restriction, new Point(position.get(0), position
+				.get(1), position.get(2)))) expected.add(position);
+		assertEquals(expected, positions(image.sparseCursor(restriction)));
+	}
+
+	@Test
+	public void testOffHeapStorage() {
+		testOffHeapStorage(TileStorage.OFF_HEAP);
+	}
+
+	@Test
+	public void testMappedFileStorage() {
+		testOffHeapStorage(TileStorage.MAPPED_FILE);
+	}
+
+	private void testOffHeapStorage(TileStorage storage) {
+		// NB: Compare with on heap storage. Writes are concentrated in a small
+		// region, such that tiles convert between sparse and dense.
+		Interval interval = Intervals.createMinSize(-10, 0, 5, 100, 50, 40);
+		for (int noEntryValue : new int[] { 0, -1 }) {
+			SparseRandomAccessIntType heap = new SparseRandomAccessIntType(interval,
+				noEntryValue, TileStorage.HEAP);
+			SparseRandomAccessIntType offHeap = new SparseRandomAccessIntType(
+				interval, noEntryValue, storage);
+			RandomAccess<IntType> a = heap.randomAccess();
+			RandomAccess<IntType> b = offHeap.randomAccess();
+			Random random = new Random(42);
+			for (int i = 0; i < 200000; i++) {
+				long[] position = { random.nextInt(40) - 10, random.nextInt(40),
+					random.nextInt(32) + 5 };
+				a.setPosition(position);
+				b.setPosition(position);
+				int value = random.nextInt(3) == 0 ? random.nextInt(100) : noEntryValue;
+				if (i > 100000 && random.nextInt(4) != 0) value = noEntryValue;
+				assertEquals(a.get().get(), b.get().get());
+				a.get().set(value);
+				b.get().set(value);
+			}
+			assertEquals(positions(heap.sparseCursor()), positions(offHeap
+				.sparseCursor()));
+			offHeap.close();
+			assertFalse(offHeap.sparseCursor().hasNext());
+		}
+	}
+
+	@Test
+	public void testSnapshot() {
+		// NB: Writes to the image and to the snapshot don't affect each other,
+		// this includes tiles that convert between sparse and dense.
+		Interval interval = Intervals.createMinSize(0, 0, 0, 100, 50, 40);
+		for (TileStorage storage : TileStorage.values()) {
+			SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval,
+				0, storage);
+			RandomAccess<IntType> ra = image.randomAccess();
+			Random random = new Random(42);
+			for (int i = 0; i < 50000; i++) {
+				ra.setPosition(new long[] { random.nextInt(40), random.nextInt(40),
+					random.nextInt(40) });
+				ra.get().set(random.nextInt(100));
+			}
+			List<List<Long>> expected = positions(image.sparseCursor());
+			SparseRandomAccessIntType snapshot = image.snapshot();
+			int value = get(image, 1, 2, 3);
+			Views.iterable(image).forEach(x -> x.setZero());
+			assertEquals(expected, positions(snapshot.sparseCursor()));
+			assertEquals(value, get(snapshot, 1, 2, 3));
+			set(snapshot, 42, 1, 2, 3);
+			assertEquals(0, get(image, 1, 2, 3));
+			assertFalse(image.sparseCursor().hasNext());
+		}
+	}
+
+	@Test
+	public void testOffHeapMemoryReuseAndClose() {
+		// NB: Tiles that fill and empty repeatedly, reuse the freed memory.
+		// Closing the image and its snapshot frees all memory.
+		Interval interval = Intervals.createMinSize(0, 0, 0, 64, 64, 64);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval,
+			0, TileStorage.OFF_HEAP);
+		OffHeapArena arena = image.arena();
+		fill(image, 1);
+		fill(image, 0);
+		long memory = arena.memory();
+		for (int i = 2; i < 6; i++) {
+			fill(image, i);
+			fill(image, 0);
+		}
+		assertEquals(memory, arena.memory());
+		fill(image, 7);
+		SparseRandomAccessIntType snapshot = image.snapshot();
+		fill(image, 8);
+		image.close();
+		assertTrue(arena.memory() > 0);
+		assertEquals(7, get(snapshot, 63, 63, 63));
+		snapshot.close();
+		assertEquals(0, arena.memory());
+	}
+
+	@Test
+	public void testMappedFileIsDeletedOnClose() throws IOException {
+		Interval interval = Intervals.createMinSize(0, 0, 0, 64, 64, 64);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval,
+			0, TileStorage.MAPPED_FILE);
+		fill(image, 7);
+		Path file = image.arena().file();
+		assertTrue(Files.size(file) >= image.arena().memory());
+		SparseRandomAccessIntType snapshot = image.snapshot();
+		image.close();
+		assertTrue(Files.exists(file));
+		assertEquals(7, get(snapshot, 63, 63, 63));
+		snapshot.close();
+		assertFalse(Files.exists(file));
+	}
+
+	@Test
+	public void testModifiedTiles() {
+		Interval interval = Intervals.createMinSize(0, 0, 0, 100, 50, 40);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		set(image, 7, 1, 2, 3);
+		set(image, 7, 70, 2, 3);
+		SparseRandomAccessIntType snapshot = image.snapshot();
+		assertEquals(0, image.modifiedTiles(snapshot).length);
+		set(image, 8, 70, 2, 3);
+		set(image, 8, 80, 40, 30);
+		int[] modified = image.modifiedTiles(snapshot);
+		assertEquals(2, modified.length);
+		assertTrue(Intervals.contains(image.tileInterval(modified[0]),
+			new Point(70, 2, 3)));
+		assertTrue(Intervals.contains(image.tileInterval(modified[1]),
+			new Point(80, 40, 30)));
+		set(image, 0, 1, 2, 3);
+		assertEquals(3, image.modifiedTiles(snapshot).length);
+	}
+
+	@Test
+	public void testModifiedTilesByVersions() {
+		Interval interval = Intervals.createMinSize(0, 0, 0, 100, 50, 40);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		set(image, 7, 1, 2, 3);
+		long[] versions = image.tileVersions();
+		set(image, 7, 1, 2, 3);
+		assertEquals(0, image.modifiedTiles(versions).length);
+		set(image, 8, 80, 40, 30);
+		int[] modified = image.modifiedTiles(versions);
+		assertEquals(1, modified.length);
+		assertTrue(Intervals.contains(image.tileInterval(modified[0]),
+			new Point(80, 40, 30)));
+		// NB: The versions of a snapshot are those of the image at that time.
+		SparseRandomAccessIntType snapshot = image.snapshot();
+		set(image, 0, 1, 2, 3);
+		assertEquals(1, image.modifiedTiles(snapshot.tileVersions()).length);
+		assertEquals(1, snapshot.modifiedTiles(versions).length);
+		// NB: For the versions of a different image, all tiles are modified.
+		SparseRandomAccessIntType other = new SparseRandomAccessIntType(interval);
+		assertEquals(image.numTiles(), image.modifiedTiles(other.tileVersions())
+			.length);
+	}
+
+	@Test
+	public void testMovingRandomAccess() {
+		// NB: The random access updates its index incrementally, compare with a
+		// newly created random access at each step.
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPosition(new long[] { 3, -5, 6 });
+		Random random = new Random(42);
+		long[] current = new long[3];
+		for (int i = 0; i < 10000; i++) {
+			int d = random.nextInt(3);
+			long position = ra.getLongPosition(d) + random.nextInt(3) - 1;
+			if (position < interval.min(d) || position > interval.max(d)) continue;
+			if (random.nextBoolean()) ra.setPosition(position, d);
+			else ra.move(position - ra.getLongPosition(d), d);
+			int value = random.nextInt(3);
+			ra.get().set(value);
+			ra.localize(current);
+			assertEquals(value, get(image, current));
+		}
+	}
+
+	@Test
+	public void testMortonLayout() {
+		// NB: The second interval has tiles of unequal side lengths.
+		for (Interval interval : Arrays.asList(Intervals.createMinSize(-10, 0, 5,
+			100, 50, 40), Intervals.createMinSize(-3, 2, 1, 100, 12, 3)))
+		{
+			SparseRandomAccessIntType rowMajor = new SparseRandomAccessIntType(
+				interval, 0, TileStorage.HEAP, TileLayout.ROW_MAJOR);
+			SparseRandomAccessIntType morton = new SparseRandomAccessIntType(
+				interval, 0, TileStorage.HEAP, TileLayout.MORTON);
+			List<Long> expectedIndices = new ArrayList<>();
+			List<Long> actualIndices = new ArrayList<>();
+			rowMajor.setChangeListener((index, oldValue,
+				newValue) -> expectedIndices.add(index));
+			morton.setChangeListener((index, oldValue, newValue) -> actualIndices
+				.add(index));
+			RandomAccess<IntType> a = rowMajor.randomAccess();
+			RandomAccess<IntType> b = morton.randomAccess();
+			for (int d = 0; d < 3; d++) {
+				a.setPosition(interval.min(d), d);
+				b.setPosition(interval.min(d), d);
+			}
+			Random random = new Random(42);
+			for (int i = 0; i < 20000; i++) {
+				int d = random.nextInt(3);
+				long position = Math.min(interval.max(d), Math.max(interval.min(d),
+					a.getLongPosition(d) + random.nextInt(5) - 2));
+				a.setPosition(position, d);
+				b.setPosition(position, d);
+				assertEquals(a.get().get(), b.get().get());
+				int value = random.nextInt(3);
+				a.get().set(value);
+				b.get().set(value);
+			}
+			assertEquals(expectedIndices, actualIndices);
+			List<List<Long>> expected = positions(rowMajor.sparseCursor());
+			List<List<Long>> actual = positions(morton.sparseCursor());
+			Comparator<List<Long>> order = Comparator.comparing(
+				(List<Long> position) -> position.get(2)).thenComparing(
+					position -> position.get(1)).thenComparing(position -> position
+						.get(0));
+			expected.sort(order);
+			actual.sort(order);
+			assertEquals(expected, actual);
+			for (List<Long> position : actual)
+				assertEquals(get(rowMajor, position.get(0), position.get(1), position
+					.get(2)), get(morton, position.get(0), position.get(1), position
+						.get(2)));
+		}
+	}
+
+	private List<List<Long>> positions(Cursor<IntType> cursor) {
+		List<List<Long>> result = new ArrayList<>();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			result.add(Arrays.asList(cursor.getLongPosition(0), cursor
+				.getLongPosition(1), cursor.getLongPosition(2)));
+		}
+		return result;
+	}
+
+	private int get(SparseRandomAccessIntType image, long... position) {
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPosition(position);
+		return ra.get().get();
+	}
+
+	private void set(SparseRandomAccessIntType image, int value,
+		long... position)
+	{
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPosition(position);
+		ra.get().set(value);
+	}
+
+	private void fill(SparseRandomAccessIntType image, int value) {
+		Views.iterable(image).forEach(x -> x.set(value));
+	}
 }
@@ -0,0 +1,147 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Compares {@link TileLayout#ROW_MAJOR} and {@link TileLayout#MORTON} for a
+ * 3D {@link SparseRandomAccessIntType}. The brush stroke workload paints
+ * spheres along a helix, the flood fill workload fills an ellipsoid in
+ * breadth first order, and reads the six neighbours of each pixel. Both
+ * workloads fill their tiles densely. The iteration workload visits the
+ * pixels of the flood fill with the sparse cursor.
+ */
+@State(Scope.Benchmark)
+public class TileLayoutBenchmark {
+
+	private static final Interval interval = Intervals.createMinSize(0, 0, 0,
+		512, 512, 256);
+
+	@Param({ "ROW_MAJOR", "MORTON" })
+	public TileLayout layout;
+
+	@Param({ "HEAP", "MAPPED_FILE" })
+	public TileStorage storage;
+
+	private SparseRandomAccessIntType image;
+
+	private SparseRandomAccessIntType filled;
+
+	@Setup(Level.Trial)
+	public void setupFilled() {
+		filled = new SparseRandomAccessIntType(interval, 0, storage, layout);
+		floodFill(filled);
+	}
+
+	@TearDown(Level.Trial)
+	public void closeFilled() {
+		filled.close();
+	}
+
+	@Setup(Level.Invocation)
+	public void setup() {
+		image = new SparseRandomAccessIntType(interval, 0, storage, layout);
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() {
+		image.close();
+	}
+
+	@Benchmark
+	public void brushStroke() {
+		brushStroke(image);
+	}
+
+	@Benchmark
+	public long floodFill() {
+		return floodFill(image);
+	}
+
+	@Benchmark
+	public long iterate() {
+		long sum = 0;
+		Cursor<IntType> cursor = filled.sparseCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			sum += cursor.getLongPosition(2);
+		}
+		return sum;
+	}
+
+	// -- Helper methods --
+
+	private static void brushStroke(SparseRandomAccessIntType image) {
+		RandomAccess<IntType> ra = image.randomAccess();
+		int radius = 5;
+		for (int step = 0; step < 2000; step++) {
+			double angle = step * 0.01;
+			long cx = 256 + Math.round(150 * Math.cos(angle));
+			long cy = 256 + Math.round(150 * Math.sin(angle));
+			long cz = 20 + step / 10;
+			for (int z = -radius; z <= radius; z++)
+				for (int y = -radius; y <= radius; y++)
+					for (int x = -radius; x <= radius; x++)
+						if (x * x + y * y + z * z <= radius * radius) {
+							ra.setPosition(new long[] { cx + x, cy + y, cz + z });
+							ra.get().set(1 + step % 3);
+						}
+		}
+	}
+
+	private static long floodFill(SparseRandomAccessIntType image) {
+		RandomAccess<IntType> ra = image.randomAccess();
+		Queue<long[]> queue = new ArrayDeque<>();
+		queue.add(new long[] { 256, 256, 128 });
+		long count = 0;
+		while (!queue.isEmpty()) {
+			long[] p = queue.remove();
+			double dx = (p[0] - 256) / 120.0;
+			double dy = (p[1] - 256) / 80.0;
+			double dz = (p[2] - 128) / 40.0;
+			if (dx * dx + dy * dy + dz * dz > 1) continue;
+			ra.setPosition(p);
+			if (ra.get().get() != 0) continue;
+			ra.get().set(1);
+			count++;
+			for (int d = 0; d < 3; d++)
+				for (int delta = -1; delta <= 1; delta += 2) {
+					ra.move(delta, d);
+					if (ra.get().get() == 0) {
+						long[] neighbor = p.clone();
+						neighbor[d] += delta;
+						queue.add(neighbor);
+					}
+					ra.move(-delta, d);
+				}
+		}
+		return count;
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		final Options opt = new OptionsBuilder().include(TileLayoutBenchmark.class
+			.getSimpleName()).forks(1).warmupIterations(4).measurementIterations(8)
+			.warmupTime(TimeValue.milliseconds(1000)).measurementTime(TimeValue
+				.milliseconds(1000)).build();
+		new Runner(opt).run();
+	}
+}